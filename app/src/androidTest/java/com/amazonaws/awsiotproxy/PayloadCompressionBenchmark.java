@@ -0,0 +1,89 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Measures bytes saved against CPU time spent by PayloadCodec on the device running the test,
+ * results are logged under the PayloadBenchmark tag, e.g. "adb logcat -s PayloadBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class PayloadCompressionBenchmark {
+    private static final String TAG = "PayloadBenchmark";
+    private static final int ITERATIONS = 2000;
+    private static final String READING = "{\"name\":\"esp32\",\"temp\":\"25.56\",\"humidity\":\"41.20\",\"bat\":\"98%\",\"rssi\":\"-67\"}";
+
+    @Test
+    public void compareLevelsAndDictionary() throws Exception {
+        byte[][] payloads = new byte[][]{
+                READING.getBytes("UTF-8"),
+                summary(8).getBytes("UTF-8"),
+                summary(64).getBytes("UTF-8")
+        };
+        int[] levels = new int[]{Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION};
+        for (byte[] payload : payloads) {
+            for (int level : levels) {
+                run(payload, level, 0);
+                run(payload, level, PayloadCodec.DEVICE_JSON_DICTIONARY_ID);
+            }
+        }
+    }
+
+    private static void run(byte[] payload, int level, int dictionaryId) throws Exception {
+        byte[] compressed = PayloadCodec.compress(payload, level, dictionaryId);
+        assertArrayEquals(payload, PayloadCodec.decompress(compressed));
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            compressed = PayloadCodec.compress(payload, level, dictionaryId);
+        }
+        long compressNs = (SystemClock.elapsedRealtimeNanos() - startNs) / ITERATIONS;
+        startNs = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            PayloadCodec.decompress(compressed);
+        }
+        long decompressNs = (SystemClock.elapsedRealtimeNanos() - startNs) / ITERATIONS;
+        Log.i(TAG, String.format(Locale.US, "%5dB level=%2d dict=%d -> %5dB (%3d%%) compress=%6dns decompress=%6dns",
+                payload.length, level, dictionaryId, compressed.length, 100 * compressed.length / payload.length,
+                compressNs, decompressNs));
+    }
+
+    private static String summary(int fields) {
+        StringBuilder summary = new StringBuilder("{\"window_ms\":60000,\"timestamp\":1600000000000");
+        for (int i = 0; i < fields; i++) {
+            summary.append(String.format(Locale.US,
+                    ",\"sensor%d\":{\"min\":%.2f,\"max\":%.2f,\"mean\":%.3f,\"count\":60,\"last\":%.2f}",
+                    i, 20 + i * 0.5, 25 + i * 0.5, 22.5 + i * 0.25, 23 + i * 0.5));
+        }
+        return summary.append('}').toString();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttClientStatusCallback;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttManager;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttMessageDeliveryCallback;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttNewMessageCallback;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+/**
+ * ProxyMqttClient backed by AWSIotMqttManager.
+ */
+public class AWSIotProxyMqttClient implements ProxyMqttClient {
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public ProxyMqttClient create(String clientId, String brokerEndpoint, AWSCredentialsProvider awsCredentials) {
+            return new AWSIotProxyMqttClient(clientId, brokerEndpoint, awsCredentials);
+        }
+    };
+    private final AWSIotMqttManager mIotMqttManager;
+    private final AWSCredentialsProvider mAWSCredential;
+
+    /**
+     * Instantiates a new AWSIotProxyMqttClient.
+     *
+     * @param clientId       Unique client ID.
+     * @param brokerEndpoint Broker endpoint.
+     * @param awsCredentials AWS credentials.
+     */
+    public AWSIotProxyMqttClient(String clientId, String brokerEndpoint, AWSCredentialsProvider awsCredentials) {
+        mIotMqttManager = new AWSIotMqttManager(clientId, brokerEndpoint);
+        mAWSCredential = awsCredentials;
+    }
+
+    @Override
+    public void connect(AWSIotMqttClientStatusCallback statusCallback) {
+        mIotMqttManager.connect(mAWSCredential, statusCallback);
+    }
+
+    @Override
+    public void disconnect() {
+        mIotMqttManager.disconnect();
+    }
+
+    @Override
+    public void publishData(byte[] data, String topic, AWSIotMqttQos qos,
+                            AWSIotMqttMessageDeliveryCallback deliveryCallback, Object userData) {
+        mIotMqttManager.publishData(data, topic, qos, deliveryCallback, userData);
+    }
+
+    @Override
+    public void subscribeToTopic(String topicFilter, AWSIotMqttQos qos, AWSIotMqttNewMessageCallback callback) {
+        mIotMqttManager.subscribeToTopic(topicFilter, qos, callback);
+    }
+
+    @Override
+    public void unsubscribeTopic(String topicFilter) {
+        mIotMqttManager.unsubscribeTopic(topicFilter);
+    }
+}
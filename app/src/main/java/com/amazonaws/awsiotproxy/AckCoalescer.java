@@ -0,0 +1,107 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import androidx.annotation.NonNull;
+
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects PUBACK message ids for a short window and sends them back to device with as few
+ * frames as possible: a run of consecutive ids becomes one cumulative PUBACK_RANGE frame and
+ * a single id becomes a compact PUBACK frame.
+ */
+public class AckCoalescer {
+    private final long mWindowMs;
+    private final AckSink mSink;
+    private final TreeSet<Integer> mPendingIds = new TreeSet<>();
+    private boolean mFlushScheduled;
+
+    public interface AckSink {
+        /**
+         * Called with every ACK package generated on flush.
+         *
+         * @param ack ACK package to send to device.
+         */
+        void onAck(MyTLV ack);
+    }
+
+    /**
+     * Instantiates a new AckCoalescer.
+     *
+     * @param windowMs How long an ACK may wait for others to be merged with.
+     * @param sink     Where generated ACK packages are sent to.
+     */
+    public AckCoalescer(long windowMs, @NonNull AckSink sink) {
+        mWindowMs = windowMs;
+        mSink = sink;
+    }
+
+    /**
+     * Queue a message id to be acknowledged within the coalescing window.
+     *
+     * @param messageId Message id the device attached to its publish.
+     */
+    public void add(int messageId) {
+        synchronized (this) {
+            mPendingIds.add(messageId);
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        ProxyScheduler.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, mWindowMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send every pending ACK right now.
+     */
+    public void flush() {
+        Integer[] ids;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mPendingIds.isEmpty()) {
+                return;
+            }
+            ids = mPendingIds.toArray(new Integer[0]);
+            mPendingIds.clear();
+        }
+        int first = ids[0];
+        int last = first;
+        for (int i = 1; i <= ids.length; i++) {
+            if (i < ids.length && ids[i] == last + 1) {
+                last = ids[i];
+                continue;
+            }
+            mSink.onAck(first == last ? MyTLV.newPubAck(first) : MyTLV.newAckRange(first, last));
+            if (i < ids.length) {
+                first = ids[i];
+                last = first;
+            }
+        }
+    }
+}
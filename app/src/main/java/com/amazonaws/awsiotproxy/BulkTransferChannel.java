@@ -0,0 +1,586 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Streams large objects from AWS IoT core to a thing, e.g. config blobs, lookup tables or
+ * firmware images. The cloud publishes an object in chunks on
+ * "topicPrefix/objectId/chunkIndex/chunkCount". Once every chunk arrived the object is sent
+ * to thing in BLOCK_SIZE blocks with a sliding window:
+ * <pre>
+ *   BULK_BEGIN  id(2) length(4) crc32(4) blockSize(1)    proxy to thing
+ *   BULK_DATA   id(2) block(2) bytes                      proxy to thing
+ *   BULK_ACK    id(2) next(2) bitmap(4) status(1)         thing to proxy
+ * </pre>
+ * Thing acknowledges the next block it expects plus a bitmap of the 32 blocks after it which it
+ * already has, most significant bit first, so only missing blocks are sent again. Thing
+ * answers BULK_BEGIN with its state, which lets a transfer resume where it left off after a
+ * disconnect. Once thing has every block it checks the CRC32 and reports STATUS_VERIFIED or
+ * STATUS_CRC_ERROR.
+ */
+public class BulkTransferChannel {
+    private static final String TAG = "BulkTransferChannel";
+    /* Fits a TLV frame together with transfer id and block number */
+    public static final int BLOCK_SIZE = 200;
+    public static final int DEFAULT_WINDOW = 8;
+    public static final long DEFAULT_RETRANSMIT_TIMEOUT_MS = 2000;
+    /* Time an incomplete object waits for its next chunk, and a completed one ignores redeliveries */
+    public static final long DEFAULT_ASSEMBLY_TTL_MS = 5 * 60 * 1000;
+    public static final int STATUS_IN_PROGRESS = 0;
+    public static final int STATUS_VERIFIED = 1;
+    public static final int STATUS_CRC_ERROR = 2;
+    private static final int HEAD_SIZE = 2;
+    private static final int ACK_VALUE_SIZE = 9;
+    private static final int SACK_BITS = 32;
+    private static final int MAX_OBJECT_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int PROGRESS_STEP_PERCENT = 10;
+    private static final int MAX_ASSEMBLIES = 8;
+    private static final int MAX_COMPLETED = 32;
+    private final String mTopicPrefix;
+    private final int mWindow;
+    private final long mRetransmitTimeoutMs;
+    private final Listener mListener;
+    /* Access ordered, the object which got no chunk for the longest time is evicted first */
+    private final LinkedHashMap<String, Assembly> mAssemblies = new LinkedHashMap<String, Assembly>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Assembly> eldest) {
+            if (size() <= MAX_ASSEMBLIES) {
+                return false;
+            }
+            Log.w(TAG, "Too many incomplete objects, dropped: " + eldest.getKey());
+            return true;
+        }
+    };
+    /* Completion time of recently assembled objects, oldest first */
+    private final LinkedHashMap<String, Long> mCompleted = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_COMPLETED;
+        }
+    };
+    private long mAssemblyTtlMs = DEFAULT_ASSEMBLY_TTL_MS;
+    private final ArrayDeque<Transfer> mQueued = new ArrayDeque<>();
+    private Transfer mCurrent;
+    private boolean mLinkUp;
+    private boolean mWakeScheduled;
+    private int mNextTransferId;
+    private long mSendOrder;
+
+    public enum State {
+        QUEUED,
+        SENDING,
+        VERIFYING,
+        DONE,
+        FAILED,
+    }
+
+    public interface Listener {
+        /**
+         * Frames may be ready, nextFrame() is to be called until it returns null.
+         */
+        void onReady();
+
+        /**
+         * Called every PROGRESS_STEP_PERCENT percent and when a transfer ends.
+         *
+         * @param progress Progress of the transfer.
+         */
+        void onProgress(Progress progress);
+    }
+
+    /**
+     * Snapshot of a transfer.
+     */
+    public static class Progress {
+        public final String objectId;
+        public final State state;
+        public final int totalBytes;
+        public final int ackedBytes;
+        public final double bytesPerSecond;
+        public final long retransmits;
+
+        Progress(Transfer transfer) {
+            objectId = transfer.mObjectId;
+            state = transfer.mState;
+            totalBytes = transfer.mData.length;
+            ackedBytes = Math.min(transfer.mData.length, transfer.mAcked.cardinality() * BLOCK_SIZE);
+            long elapsedMs = (transfer.mEndMs > 0 ? transfer.mEndMs : System.currentTimeMillis()) - transfer.mStartMs;
+            bytesPerSecond = transfer.mStartMs == 0 || elapsedMs <= 0 ? 0 : ackedBytes * 1000.0 / elapsedMs;
+            retransmits = transfer.mRetransmits;
+        }
+
+        public int getPercent() {
+            return totalBytes == 0 ? 100 : (int) (100L * ackedBytes / totalBytes);
+        }
+
+        public String toJson() {
+            return "{\"objectId\":\"" + objectId + "\",\"state\":\"" + state + "\",\"totalBytes\":" + totalBytes
+                    + ",\"ackedBytes\":" + ackedBytes + ",\"bytesPerSecond\":" + (long) bytesPerSecond
+                    + ",\"retransmits\":" + retransmits + "}";
+        }
+    }
+
+    /**
+     * Instantiates a new BulkTransferChannel.
+     *
+     * @param topicPrefix         Topic prefix the chunks are published under.
+     * @param window              Blocks sent ahead of the first unacknowledged one.
+     * @param retransmitTimeoutMs Time after which an unacknowledged block is sent again.
+     * @param listener            Told when frames are ready and how transfers progress.
+     */
+    public BulkTransferChannel(@NonNull String topicPrefix, int window, long retransmitTimeoutMs,
+                               @NonNull Listener listener) {
+        mTopicPrefix = topicPrefix;
+        mWindow = Math.max(1, Math.min(window, SACK_BITS));
+        mRetransmitTimeoutMs = retransmitTimeoutMs;
+        mListener = listener;
+    }
+
+    /**
+     * @return Topic filter of the chunks.
+     */
+    public String getTopicFilter() {
+        return mTopicPrefix + "/#";
+    }
+
+    /**
+     * @param ttlMs Time an incomplete object is kept without receiving a chunk, and a completed
+     *              one ignores chunks redelivered by the broker.
+     */
+    public synchronized void setAssemblyTtlMs(long ttlMs) {
+        mAssemblyTtlMs = ttlMs;
+    }
+
+    /**
+     * @return Objects whose chunks are still arriving.
+     */
+    public synchronized int getAssemblyCount() {
+        return mAssemblies.size();
+    }
+
+    /**
+     * @return Progress of the transfer in flight, null if none.
+     */
+    public synchronized Progress getProgress() {
+        return mCurrent == null ? null : new Progress(mCurrent);
+    }
+
+    /**
+     * Take a chunk received from AWS IoT core.
+     *
+     * @param topic Topic of the chunk.
+     * @param data  Chunk bytes.
+     * @return False if topic is not a chunk topic of this channel.
+     */
+    public boolean onCloudMessage(@NonNull String topic, @NonNull byte[] data) {
+        String[] levels = topic.startsWith(mTopicPrefix + "/")
+                ? topic.substring(mTopicPrefix.length() + 1).split("/") : null;
+        if (levels == null || levels.length != 3) {
+            return false;
+        }
+        int index;
+        int count;
+        try {
+            index = Integer.parseInt(levels[1]);
+            count = Integer.parseInt(levels[2]);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Malformed chunk topic: " + topic);
+            return false;
+        }
+        if (count <= 0 || index < 0 || index >= count) {
+            Log.e(TAG, "Chunk out of range on topic: " + topic);
+            return false;
+        }
+        boolean ready;
+        synchronized (this) {
+            ready = addChunk(levels[0], index, count, data);
+        }
+        if (ready) {
+            notifyReady();
+        }
+        return true;
+    }
+
+    /**
+     * Take a frame received from thing.
+     *
+     * @param frame Raw TLV frame.
+     * @return False if it is not a bulk transfer frame.
+     */
+    public boolean onFrame(@NonNull byte[] frame) {
+        if (frame.length < HEAD_SIZE || frame[0] != MyTLV.TLVType.BULK_ACK.ordinal()) {
+            return false;
+        }
+        if (frame.length < HEAD_SIZE + ACK_VALUE_SIZE) {
+            Log.e(TAG, "Malformed bulk ack");
+            return true;
+        }
+        int id = readShort(frame, HEAD_SIZE);
+        int next = readShort(frame, HEAD_SIZE + 2);
+        int bitmap = ((frame[HEAD_SIZE + 4] & 0xFF) << 24) | ((frame[HEAD_SIZE + 5] & 0xFF) << 16)
+                | ((frame[HEAD_SIZE + 6] & 0xFF) << 8) | (frame[HEAD_SIZE + 7] & 0xFF);
+        int status = frame[HEAD_SIZE + 8];
+        Progress progress;
+        synchronized (this) {
+            if (mCurrent == null || mCurrent.mId != id) {
+                /* Late ack of an earlier transfer */
+                return true;
+            }
+            progress = onAck(mCurrent, next, bitmap, status);
+        }
+        if (progress != null) {
+            mListener.onProgress(progress);
+        }
+        notifyReady();
+        return true;
+    }
+
+    /**
+     * Tell the channel whether thing is connected. Blocks in flight are sent again once the
+     * link is back, after thing reported what it already has.
+     *
+     * @param up True if thing is connected.
+     */
+    public void setLinkUp(boolean up) {
+        synchronized (this) {
+            if (up == mLinkUp) {
+                return;
+            }
+            mLinkUp = up;
+            if (mCurrent != null) {
+                mCurrent.restart();
+            }
+        }
+        if (up) {
+            notifyReady();
+        }
+    }
+
+    /**
+     * @return Next frame to send to thing, null if nothing is due right now.
+     */
+    public synchronized byte[] nextFrame() {
+        Transfer transfer = mCurrent;
+        if (!mLinkUp || transfer == null) {
+            return null;
+        }
+        long nowMs = System.currentTimeMillis();
+        if (transfer.mState == State.VERIFYING && nowMs - transfer.mBeginSentAtMs >= mRetransmitTimeoutMs) {
+            /* Verification result got lost, ask thing for its state again */
+            transfer.restart();
+        }
+        if (!transfer.mBeginAcked) {
+            if (transfer.mBeginSentAtMs == 0 || nowMs - transfer.mBeginSentAtMs >= mRetransmitTimeoutMs) {
+                transfer.mBeginSentAtMs = nowMs;
+                scheduleWake(mRetransmitTimeoutMs);
+                return transfer.newBeginFrame();
+            }
+            return null;
+        }
+        if (transfer.mState == State.VERIFYING) {
+            scheduleWake(transfer.mBeginSentAtMs + mRetransmitTimeoutMs - nowMs);
+            return null;
+        }
+        int end = Math.min(transfer.mBlockCount, transfer.mBase + mWindow);
+        long earliestDeadlineMs = Long.MAX_VALUE;
+        for (int block = transfer.mBase; block < end; block++) {
+            if (transfer.mAcked.get(block)) {
+                continue;
+            }
+            long sentAtMs = transfer.mSentAtMs[block];
+            if (sentAtMs == 0 || nowMs - sentAtMs >= mRetransmitTimeoutMs) {
+                if (transfer.mSent.get(block)) {
+                    transfer.mRetransmits++;
+                }
+                transfer.mSent.set(block);
+                transfer.mSentAtMs[block] = nowMs;
+                transfer.mSentOrder[block] = ++mSendOrder;
+                return transfer.newDataFrame(block);
+            }
+            earliestDeadlineMs = Math.min(earliestDeadlineMs, sentAtMs + mRetransmitTimeoutMs);
+        }
+        if (earliestDeadlineMs != Long.MAX_VALUE) {
+            scheduleWake(earliestDeadlineMs - nowMs);
+        }
+        return null;
+    }
+
+    private boolean addChunk(String objectId, int index, int count, byte[] data) {
+        long nowMs = System.currentTimeMillis();
+        expireAssemblies(nowMs);
+        if (mCompleted.containsKey(objectId)) {
+            /* QoS1 redelivery of an object already assembled */
+            return false;
+        }
+        Assembly assembly = mAssemblies.get(objectId);
+        if (assembly == null || assembly.mChunks.length != count) {
+            assembly = new Assembly(count);
+            mAssemblies.put(objectId, assembly);
+        }
+        assembly.mLastChunkAtMs = nowMs;
+        if (assembly.mChunks[index] != null) {
+            /* Duplicate of a QoS1 redelivery */
+            return false;
+        }
+        if (assembly.mSize + data.length > MAX_OBJECT_SIZE) {
+            Log.e(TAG, "Object too large, dropped: " + objectId);
+            mAssemblies.remove(objectId);
+            return false;
+        }
+        assembly.mChunks[index] = data;
+        assembly.mSize += data.length;
+        assembly.mReceived++;
+        if (assembly.mReceived < count) {
+            return false;
+        }
+        mAssemblies.remove(objectId);
+        mCompleted.put(objectId, nowMs);
+        byte[] object = new byte[assembly.mSize];
+        int offset = 0;
+        for (byte[] chunk : assembly.mChunks) {
+            System.arraycopy(chunk, 0, object, offset, chunk.length);
+            offset += chunk.length;
+        }
+        Log.i(TAG, "Received object " + objectId + " of " + object.length + " bytes");
+        mQueued.add(new Transfer(objectId, nextTransferId(), object));
+        if (mCurrent == null) {
+            startNext();
+        }
+        return true;
+    }
+
+    private void expireAssemblies(long nowMs) {
+        Iterator<Map.Entry<String, Assembly>> assemblies = mAssemblies.entrySet().iterator();
+        while (assemblies.hasNext()) {
+            Map.Entry<String, Assembly> entry = assemblies.next();
+            if (nowMs - entry.getValue().mLastChunkAtMs >= mAssemblyTtlMs) {
+                Log.w(TAG, "Incomplete object timed out, dropped: " + entry.getKey());
+                assemblies.remove();
+            }
+        }
+        Iterator<Long> completed = mCompleted.values().iterator();
+        while (completed.hasNext() && nowMs - completed.next() >= mAssemblyTtlMs) {
+            completed.remove();
+        }
+    }
+
+    private Progress onAck(Transfer transfer, int next, int bitmap, int status) {
+        if (!transfer.mBeginAcked) {
+            /* Answer to BULK_BEGIN, thing's state replaces whatever was assumed before */
+            transfer.mBeginAcked = true;
+            transfer.mAcked.clear();
+        }
+        next = Math.min(next, transfer.mBlockCount);
+        transfer.mAcked.set(0, next);
+        int highest = -1;
+        for (int bit = 0; bit < SACK_BITS; bit++) {
+            int block = next + 1 + bit;
+            if (block < transfer.mBlockCount && (bitmap & (1 << (SACK_BITS - 1 - bit))) != 0) {
+                transfer.mAcked.set(block);
+                highest = block;
+            }
+        }
+        transfer.mBase = next;
+        if (highest > 0) {
+            /* Holes sent before a block thing already has were lost, send them right away */
+            for (int block = next; block < highest; block++) {
+                if (!transfer.mAcked.get(block) && transfer.mSent.get(block)
+                        && transfer.mSentOrder[block] < transfer.mSentOrder[highest]) {
+                    transfer.mSentAtMs[block] = 0;
+                }
+            }
+        }
+        if (status == STATUS_VERIFIED) {
+            return finish(transfer, State.DONE);
+        }
+        if (status == STATUS_CRC_ERROR) {
+            Log.e(TAG, "Thing reported CRC error for object " + transfer.mObjectId);
+            if (++transfer.mAttempts > MAX_ATTEMPTS) {
+                return finish(transfer, State.FAILED);
+            }
+            /* New id so thing discards the corrupted copy */
+            transfer.mId = nextTransferId();
+            transfer.mAcked.clear();
+            transfer.mBase = 0;
+            transfer.restart();
+            return null;
+        }
+        if (next < transfer.mBlockCount) {
+            transfer.mState = State.SENDING;
+        } else if (transfer.mState != State.VERIFYING) {
+            transfer.mState = State.VERIFYING;
+            transfer.mBeginSentAtMs = System.currentTimeMillis();
+        }
+        int percent = new Progress(transfer).getPercent();
+        if (percent >= transfer.mReportedPercent + PROGRESS_STEP_PERCENT) {
+            transfer.mReportedPercent = percent - percent % PROGRESS_STEP_PERCENT;
+            return new Progress(transfer);
+        }
+        return null;
+    }
+
+    private Progress finish(Transfer transfer, State state) {
+        transfer.mState = state;
+        transfer.mEndMs = System.currentTimeMillis();
+        Progress progress = new Progress(transfer);
+        Log.i(TAG, "Transfer of " + transfer.mObjectId + " " + state + ", "
+                + (long) progress.bytesPerSecond + " B/s, " + transfer.mRetransmits + " retransmits");
+        mCurrent = null;
+        startNext();
+        return progress;
+    }
+
+    private void startNext() {
+        mCurrent = mQueued.poll();
+        if (mCurrent != null) {
+            mCurrent.mState = State.SENDING;
+            mCurrent.mStartMs = System.currentTimeMillis();
+        }
+    }
+
+    private int nextTransferId() {
+        mNextTransferId = (mNextTransferId + 1) & 0xFFFF;
+        return mNextTransferId;
+    }
+
+    private void scheduleWake(long delayMs) {
+        if (mWakeScheduled) {
+            return;
+        }
+        mWakeScheduled = true;
+        ProxyScheduler.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BulkTransferChannel.this) {
+                    mWakeScheduled = false;
+                }
+                mListener.onReady();
+            }
+        }, Math.max(1, delayMs), TimeUnit.MILLISECONDS);
+    }
+
+    private void notifyReady() {
+        /* Not called with the channel locked, the listener takes the thing's downlink lock */
+        mListener.onReady();
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static void putShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        putShort(data, offset, value >>> 16);
+        putShort(data, offset + 2, value);
+    }
+
+    private static class Assembly {
+        private final byte[][] mChunks;
+        private int mReceived;
+        private int mSize;
+        private long mLastChunkAtMs;
+
+        Assembly(int count) {
+            mChunks = new byte[count][];
+        }
+    }
+
+    private static class Transfer {
+        private final String mObjectId;
+        private final byte[] mData;
+        private final int mCrc;
+        private final int mBlockCount;
+        private final BitSet mAcked = new BitSet();
+        private final BitSet mSent = new BitSet();
+        private final long[] mSentAtMs;
+        private final long[] mSentOrder;
+        private int mId;
+        private int mBase;
+        private boolean mBeginAcked;
+        private long mBeginSentAtMs;
+        private State mState = State.QUEUED;
+        private int mAttempts = 1;
+        private long mStartMs;
+        private long mEndMs;
+        private long mRetransmits;
+        private int mReportedPercent;
+
+        Transfer(String objectId, int id, byte[] data) {
+            mObjectId = objectId;
+            mId = id;
+            mData = data;
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            mCrc = (int) crc.getValue();
+            mBlockCount = (data.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            mSentAtMs = new long[mBlockCount];
+            mSentOrder = new long[mBlockCount];
+        }
+
+        /**
+         * Forget what is in flight, thing reports its state again on the next BULK_BEGIN.
+         */
+        void restart() {
+            mBeginAcked = false;
+            mBeginSentAtMs = 0;
+            mState = State.SENDING;
+            for (int block = 0; block < mBlockCount; block++) {
+                mSentAtMs[block] = 0;
+            }
+        }
+
+        byte[] newBeginFrame() {
+            byte[] value = new byte[11];
+            putShort(value, 0, mId);
+            putInt(value, 2, mData.length);
+            putInt(value, 6, mCrc);
+            value[10] = (byte) BLOCK_SIZE;
+            return new MyTLV(MyTLV.TLVType.BULK_BEGIN, value).encodedBytesStream;
+        }
+
+        byte[] newDataFrame(int block) {
+            int offset = block * BLOCK_SIZE;
+            int length = Math.min(BLOCK_SIZE, mData.length - offset);
+            byte[] value = new byte[4 + length];
+            putShort(value, 0, mId);
+            putShort(value, 2, block);
+            System.arraycopy(mData, offset, value, 4, length);
+            return new MyTLV(MyTLV.TLVType.BULK_DATA, value).encodedBytesStream;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Capabilities negotiated with every thing, by thing id. A reconnecting thing gets its last
+ * configuration right away instead of running on legacy settings until it answered HELLO.
+ */
+public class CapabilityCache {
+    private final Map<String, ThingCapabilities> mCapabilities = new ConcurrentHashMap<>();
+    private final SharedPreferences mPreferences;
+
+    /**
+     * Instantiates a new CapabilityCache.
+     *
+     * @param preferences Keeps the cache across app restarts, null to keep it in memory only.
+     */
+    public CapabilityCache(@Nullable SharedPreferences preferences) {
+        mPreferences = preferences;
+        if (preferences == null) {
+            return;
+        }
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (entry.getValue() instanceof Integer) {
+                mCapabilities.put(entry.getKey(), ThingCapabilities.unpack((Integer) entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * @param thingId Thing id.
+     * @return Last negotiated capabilities, null if thing never answered HELLO.
+     */
+    public ThingCapabilities get(String thingId) {
+        return mCapabilities.get(thingId);
+    }
+
+    public void put(String thingId, ThingCapabilities capabilities) {
+        if (capabilities.equals(mCapabilities.put(thingId, capabilities)) || mPreferences == null) {
+            return;
+        }
+        mPreferences.edit().putInt(thingId, capabilities.pack()).apply();
+    }
+
+    public void remove(String thingId) {
+        mCapabilities.remove(thingId);
+        if (mPreferences != null) {
+            mPreferences.edit().remove(thingId).apply();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package com.amazonaws.awsiotproxy;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Signals that sign-in and policy attachment are done, so connections to AWS IoT can succeed.
+ * AWSMobileClient initializes in background while things may already be connecting, their
+ * cloud connection is deferred until then instead of failing once and never being retried.
+ */
+public final class CloudReadiness {
+    private static final List<Runnable> PENDING = new ArrayList<>();
+    private static boolean sReady;
+
+    private CloudReadiness() {
+    }
+
+    /**
+     * Run a task once the cloud is ready, right away if it already is.
+     *
+     * @param task Task to run, on the caller's thread or on the thread calling setReady().
+     */
+    public static void runWhenReady(@NonNull Runnable task) {
+        synchronized (PENDING) {
+            if (!sReady) {
+                PENDING.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Mark the cloud ready and run the deferred tasks.
+     */
+    public static void setReady() {
+        List<Runnable> pending;
+        synchronized (PENDING) {
+            sReady = true;
+            pending = new ArrayList<>(PENDING);
+            PENDING.clear();
+        }
+        for (Runnable task : pending) {
+            task.run();
+        }
+    }
+
+    /**
+     * Forget the readiness, e.g. after signing out, following tasks are deferred again.
+     */
+    public static void reset() {
+        synchronized (PENDING) {
+            sReady = false;
+            PENDING.clear();
+        }
+    }
+
+    public static boolean isReady() {
+        synchronized (PENDING) {
+            return sReady;
+        }
+    }
+}
@@ -24,12 +24,30 @@ import androidx.annotation.NonNull;
 
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
 
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class CustomizedMqttEnvelope {
+    public static final int NO_MESSAGE_ID = -1;
+    private static final int POOL_SIZE = 64;
+    private static final ArrayDeque<CustomizedMqttEnvelope> sPool = new ArrayDeque<>(POOL_SIZE);
     public String topic;
     public AWSIotMqttQos qoS;
 
     public CustomizedMqttEnvelopeType envelopeType;
     public byte[] payload;
+    public int messageId = NO_MESSAGE_ID;
+    /* Thing the envelope was received from, null if it was not received from a thing */
+    public String thingId;
+    /* Payload as received from thing, a legacy PUBACK echoes it even if a stage rewrote payload */
+    public byte[] thingPayload;
+    /* Lane assigned by PriorityLanes, higher lanes preempt lower ones in every queue */
+    public Priority priority = Priority.NORMAL;
+    /* When the proxy received or created the envelope, for per lane latency */
+    public long receivedAtMs = System.currentTimeMillis();
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+    private boolean mPooled;
+    private LeakDetector.Tracker mLeakTracker;
 
     public enum CustomizedMqttEnvelopeType {
         Publish,
@@ -37,6 +55,13 @@ public class CustomizedMqttEnvelope {
         Unsubscribe,
     }
 
+    /* Declared from highest to lowest */
+    public enum Priority {
+        ALARM,
+        NORMAL,
+        BULK,
+    }
+
     /**
      * Instantiates a new CustomizedMqttEnvelope.
      *
@@ -63,4 +88,89 @@ public class CustomizedMqttEnvelope {
     public static CustomizedMqttEnvelope newUnsubscribeEnvelope(String topic) {
         return new CustomizedMqttEnvelope(topic, AWSIotMqttQos.QOS0, CustomizedMqttEnvelopeType.Unsubscribe, null);
     }
+
+    /**
+     * Take a recycled envelope from the pool, the caller owns one reference and the last
+     * holder has to release() it. Not releasing it only costs the recycling.
+     *
+     * @param topic        Topic to publish/subscribe/unsubscribe.
+     * @param qoS          MQTT QoS.
+     * @param envelopeType Request type.
+     * @param payload      Payload bytes stream, null for subscribe and unsubscribe.
+     * @return Envelope with a reference count of 1.
+     */
+    public static CustomizedMqttEnvelope obtain(String topic, AWSIotMqttQos qoS, CustomizedMqttEnvelopeType envelopeType, byte[] payload) {
+        CustomizedMqttEnvelope envelope;
+        synchronized (sPool) {
+            envelope = sPool.poll();
+        }
+        if (envelope == null) {
+            envelope = new CustomizedMqttEnvelope(topic, qoS, envelopeType, payload);
+            envelope.mPooled = true;
+        } else {
+            envelope.topic = topic;
+            envelope.qoS = qoS;
+            envelope.envelopeType = envelopeType;
+            envelope.payload = payload;
+            envelope.receivedAtMs = System.currentTimeMillis();
+            envelope.mRefCount.set(1);
+        }
+        envelope.mLeakTracker = LeakDetector.track(envelope, "CustomizedMqttEnvelope");
+        return envelope;
+    }
+
+    /**
+     * Take another reference, e.g. to keep the envelope after handing it on.
+     *
+     * @return This envelope.
+     */
+    public CustomizedMqttEnvelope retain() {
+        mRefCount.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drop a reference, the envelope must not be used afterwards. A pooled envelope goes back
+     * to the pool with its last reference.
+     */
+    public void release() {
+        int refCount = mRefCount.decrementAndGet();
+        if (refCount > 0 || !mPooled) {
+            return;
+        }
+        if (refCount < 0) {
+            throw new IllegalStateException("Envelope released twice.");
+        }
+        if (mLeakTracker != null) {
+            mLeakTracker.close();
+            mLeakTracker = null;
+        }
+        topic = null;
+        payload = null;
+        thingPayload = null;
+        messageId = NO_MESSAGE_ID;
+        thingId = null;
+        priority = Priority.NORMAL;
+        synchronized (sPool) {
+            if (sPool.size() < POOL_SIZE) {
+                sPool.push(this);
+            }
+        }
+    }
+
+    /**
+     * Tags this envelope with the message id the device attached to its request, so the ack
+     * sent back only needs to carry the id.
+     *
+     * @param messageId Message id in range [0, 65535].
+     * @return This envelope.
+     */
+    public CustomizedMqttEnvelope withMessageId(int messageId) {
+        this.messageId = messageId;
+        return this;
+    }
+
+    public boolean hasMessageId() {
+        return messageId != NO_MESSAGE_ID;
+    }
 }
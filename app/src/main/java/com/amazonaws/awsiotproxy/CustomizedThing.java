@@ -27,24 +27,91 @@ import androidx.annotation.Nullable;
 
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttClientStatusCallback;
-import com.amazonaws.mobileconnectors.iot.AWSIotMqttManager;
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttMessageDeliveryCallback;
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttNewMessageCallback;
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
 
 import java.io.UnsupportedEncodingException;
+import java.util.List;
 
 import software.amazon.freertos.amazonfreertossdk.AmazonFreeRTOSConstants.MqttConnectionState;
 
 public abstract class CustomizedThing {
     private static final String TAG = "CustomizedThing";
+    private static final int DOWNLINK_QUEUE_CAPACITY = 32;
+    private static final String BULK_PROGRESS_SUFFIX = "/progress";
+    private static volatile TrafficRecorder sTrafficRecorder;
+    private static volatile PriorityLanes sPriorityLanes = new PriorityLanes();
+    private static volatile RetainedMessageCache sRetainedCache;
+    private static volatile CapabilityCache sCapabilityCache;
+    /* Settings turned on for things which advertised the matching feature in CAPS */
+    private static final long NEGOTIATED_ACK_WINDOW_MS = 20;
+    private static final int NEGOTIATED_COMPRESSION_MIN_SIZE = 128;
     protected String mThingId;
     protected String mBrokerEndpoint;
-    protected AWSIotMqttManager mIotMqttManager;
+    protected ProxyMqttClient mMqttClient;
+    private ProxyMqttClient.Factory mMqttClientFactory = AWSIotProxyMqttClient.FACTORY;
     private MqttConnectionState mMqttConnectionState = MqttConnectionState.MQTT_Disconnected;
     private ThingConnectionState mThingConnectionState = ThingConnectionState.Thing_Disconnected;
     private AWSCredentialsProvider mAWSCredential;
     private OnConnectionStateListener mOnConnectionStateListener;
+    private AckCoalescer mAckCoalescer;
+    private volatile PayloadCompressor mDownlinkCompressor;
+    private volatile DownlinkQueue mDownlinkQueue = new DownlinkQueue(DOWNLINK_QUEUE_CAPACITY, DownlinkQueue.Policy.DROP_OLDEST);
+    private final Object mDownlinkLock = new Object();
+    private volatile BulkTransferChannel mBulkChannel;
+    private volatile DeviceShadow mDeviceShadow;
+    private volatile RpcChannel mRpcChannel;
+    private volatile ThingCapabilities mCapabilities = ThingCapabilities.LEGACY;
+    private volatile boolean mHelloPending;
+    /* Shared by every publish, the envelope travels as user data and is released once delivered */
+    private final AWSIotMqttMessageDeliveryCallback mDeliveryCallback = new AWSIotMqttMessageDeliveryCallback() {
+        @Override
+        public void statusChanged(MessageDeliveryStatus status, Object userData) {
+            CustomizedMqttEnvelope envelope = (CustomizedMqttEnvelope) userData;
+            Log.d(TAG, "Publish msg delivery status: " + status.toString());
+            /* Envelopes built by the proxy, e.g. summaries, have no thing waiting for an ack */
+            if (status == MessageDeliveryStatus.Success && envelope.qoS == AWSIotMqttQos.QOS1 && envelope.thingId != null) {
+                sendAckToThing(envelope);
+            }
+            envelope.release();
+        }
+    };
+    private final MqttRateLimiter mRateLimiter = new MqttRateLimiter(new MqttRateLimiter.Sink() {
+        @Override
+        public boolean onAdmitted(CustomizedMqttEnvelope envelope) {
+            if (mMqttConnectionState != MqttConnectionState.MQTT_Connected) {
+                return false;
+            }
+            switch (envelope.envelopeType) {
+                case Publish:
+                    sendPublishToIoT(envelope);
+                    break;
+                case Subscribe:
+                    sendSubscribeToIoT(envelope);
+                    break;
+                case Unsubscribe:
+                    sendUnsubscribeToIoT(envelope);
+                    break;
+            }
+            return true;
+        }
+    });
+    private final UplinkPipeline mUplinkPipeline = new UplinkPipeline(new UplinkStage.Next() {
+        @Override
+        public void publish(CustomizedMqttEnvelope envelope) {
+            publishToIoT(envelope);
+        }
+    }, new UplinkPipeline.AbsorbedListener() {
+        @Override
+        public void onAbsorbed(CustomizedMqttEnvelope envelope) {
+            /* Proxy took over the message, device must not wait for cloud delivery */
+            if (envelope.qoS == AWSIotMqttQos.QOS1) {
+                sendAckToThing(envelope);
+            }
+            envelope.release();
+        }
+    });
 
     public enum ThingConnectionState {
         Thing_Disconnected,
@@ -83,6 +150,230 @@ public abstract class CustomizedThing {
         mOnConnectionStateListener = listener;
     }
 
+    /**
+     * Capture every frame exchanged with things into recorder, null to stop capturing.
+     *
+     * @param recorder Traffic recorder.
+     */
+    public static void setTrafficRecorder(@Nullable TrafficRecorder recorder) {
+        TrafficRecorder previous = sTrafficRecorder;
+        sTrafficRecorder = recorder;
+        if (previous != null && previous != recorder) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Set how envelopes of every thing are classified into priority lanes.
+     *
+     * @param lanes Classification rules, also collecting per lane latency.
+     */
+    public static void setPriorityLanes(@NonNull PriorityLanes lanes) {
+        sPriorityLanes = lanes;
+    }
+
+    public static PriorityLanes getPriorityLanes() {
+        return sPriorityLanes;
+    }
+
+    /**
+     * Keep the latest cloud message per topic and thing, and replay matching ones to the same
+     * thing as soon as it subscribes again, null to disable.
+     *
+     * @param cache Retained message cache.
+     */
+    public static void setRetainedCache(@Nullable RetainedMessageCache cache) {
+        sRetainedCache = cache;
+    }
+
+    public static RetainedMessageCache getRetainedCache() {
+        return sRetainedCache;
+    }
+
+    /**
+     * Greet every thing with a HELLO frame once connected and use the faster modes it
+     * advertises in its CAPS answer. Things which do not answer stay on legacy settings.
+     *
+     * @param cache Negotiated capabilities by thing id, null to skip the handshake.
+     */
+    public static void setCapabilityCache(@Nullable CapabilityCache cache) {
+        sCapabilityCache = cache;
+    }
+
+    public static CapabilityCache getCapabilityCache() {
+        return sCapabilityCache;
+    }
+
+    /**
+     * @return Configuration negotiated with thing, LEGACY until it answered HELLO.
+     */
+    public ThingCapabilities getCapabilities() {
+        return mCapabilities;
+    }
+
+    /**
+     * Append a processing stage to envelopes published by thing.
+     *
+     * @param stage Uplink stage.
+     */
+    public void addUplinkStage(@NonNull UplinkStage stage) {
+        mUplinkPipeline.addStage(stage);
+    }
+
+    public void removeUplinkStage(@NonNull UplinkStage stage) {
+        mUplinkPipeline.removeStage(stage);
+    }
+
+    /**
+     * Replace the cloud connection used by following connectToIoT() calls, e.g. with an in-memory
+     * broker when AWS IoT core is not reachable.
+     *
+     * @param factory Creates the MQTT client on connect.
+     */
+    public void setMqttClientFactory(@NonNull ProxyMqttClient.Factory factory) {
+        mMqttClientFactory = factory;
+    }
+
+    /**
+     * Merge PUBACKs of id tagged publishes delivered within the given window into cumulative
+     * ACK frames. Window of 0 sends every ACK immediately. Only set it for things which parse
+     * PUBACK_RANGE, capabilities negotiated with thing replace it.
+     *
+     * @param windowMs Coalescing window in milliseconds.
+     */
+    public void setAckCoalescingWindow(long windowMs) {
+        if (mAckCoalescer != null) {
+            mAckCoalescer.flush();
+        }
+        if (windowMs <= 0) {
+            mAckCoalescer = null;
+            return;
+        }
+        mAckCoalescer = new AckCoalescer(windowMs, new AckCoalescer.AckSink() {
+            @Override
+            public void onAck(MyTLV ack) {
+                sendDataToThing(ack.encodedBytesStream);
+            }
+        });
+    }
+
+    /**
+     * Compress payloads published to thing. Only set it for things which can inflate
+     * PayloadCodec payloads, others would receive bytes they cannot parse.
+     *
+     * @param compressor Downlink compressor, null to send payloads as received.
+     */
+    public void setDownlinkCompressor(@Nullable PayloadCompressor compressor) {
+        mDownlinkCompressor = compressor;
+    }
+
+    /**
+     * Replace the queue holding messages from AWS IoT core until thing is ready for them.
+     * Messages still queued are moved over.
+     *
+     * @param queue New downlink queue.
+     */
+    public void setDownlinkQueue(@NonNull DownlinkQueue queue) {
+        DownlinkQueue previous = mDownlinkQueue;
+        mDownlinkQueue = queue;
+        CustomizedMqttEnvelope envelope;
+        while ((envelope = previous.poll()) != null) {
+            queue.offer(envelope);
+        }
+        drainDownlink();
+    }
+
+    public DownlinkQueue getDownlinkQueue() {
+        return mDownlinkQueue;
+    }
+
+    /**
+     * Accept large objects for thing from AWS IoT core, published in chunks on
+     * "topicPrefix/objectId/chunkIndex/chunkCount". Progress is published on
+     * "topicPrefix/progress". Only for things which implement the BULK_* frames.
+     *
+     * @param topicPrefix Topic prefix of the chunks.
+     * @return Channel streaming the objects to thing.
+     */
+    public BulkTransferChannel enableBulkTransfer(@NonNull final String topicPrefix) {
+        BulkTransferChannel channel = new BulkTransferChannel(topicPrefix, BulkTransferChannel.DEFAULT_WINDOW,
+                BulkTransferChannel.DEFAULT_RETRANSMIT_TIMEOUT_MS, new BulkTransferChannel.Listener() {
+            @Override
+            public void onReady() {
+                drainDownlink();
+            }
+
+            @Override
+            public void onProgress(BulkTransferChannel.Progress progress) {
+                if (mMqttConnectionState == MqttConnectionState.MQTT_Connected) {
+                    publishToIoT(CustomizedMqttEnvelope.newPublishEnvelope(topicPrefix + BULK_PROGRESS_SUFFIX,
+                            AWSIotMqttQos.QOS0, progress.toJson().getBytes()));
+                }
+            }
+        });
+        channel.setLinkUp(mThingConnectionState == ThingConnectionState.Thing_Connected);
+        mBulkChannel = channel;
+        if (mMqttConnectionState == MqttConnectionState.MQTT_Connected) {
+            subscribeBulkTransfer(channel);
+        }
+        return channel;
+    }
+
+    public BulkTransferChannel getBulkTransferChannel() {
+        return mBulkChannel;
+    }
+
+    /**
+     * Keep thing's device shadow in sync with the full state it publishes, appended as an
+     * uplink stage, and publish desired state changes to thing on the shadow's delta topic.
+     *
+     * @param shadow Shadow documents, may be shared by things.
+     */
+    public void enableDeviceShadow(@NonNull DeviceShadow shadow) {
+        mDeviceShadow = shadow;
+        addUplinkStage(shadow);
+        if (mMqttConnectionState == MqttConnectionState.MQTT_Connected) {
+            subscribeDeviceShadow(shadow);
+        }
+    }
+
+    public DeviceShadow getDeviceShadow() {
+        return mDeviceShadow;
+    }
+
+    /**
+     * Answer requests thing publishes on the channel's request topics, appended as an uplink
+     * stage. Responses are published to thing like any other downlink message.
+     *
+     * @param channel Request/response channel, may be shared by things to share its cache.
+     */
+    public void enableRpc(@NonNull RpcChannel channel) {
+        mRpcChannel = channel;
+        channel.register(mThingId, new RpcChannel.Responder() {
+            @Override
+            public void respond(String topic, byte[] payload) {
+                queueDownlink(topic, AWSIotMqttQos.QOS1, payload);
+                drainDownlink();
+            }
+        });
+        addUplinkStage(channel);
+        if (mMqttConnectionState == MqttConnectionState.MQTT_Connected) {
+            subscribeRpc(channel);
+        }
+    }
+
+    public RpcChannel getRpcChannel() {
+        return mRpcChannel;
+    }
+
+    /**
+     * @return Limiter shaping publishes and subscribes of this thing's MQTT connection, set
+     * to AWS IoT core per connection limits by default.
+     */
+    public MqttRateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
     /**
      * Connect to AWS IoT core.
      */
@@ -95,7 +386,7 @@ public abstract class CustomizedThing {
             Log.w(TAG, "Previous connection is active, please retry or disconnect MQTT first.");
             return;
         }
-        mIotMqttManager = new AWSIotMqttManager(mThingId, mBrokerEndpoint);
+        mMqttClient = mMqttClientFactory.create(mThingId, mBrokerEndpoint, mAWSCredential);
 
         AWSIotMqttClientStatusCallback mqttClientStatusCallback = new AWSIotMqttClientStatusCallback() {
             @Override
@@ -104,6 +395,16 @@ public abstract class CustomizedThing {
                 switch (status) {
                     case Connected:
                         setMqttConnectionState(MqttConnectionState.MQTT_Connected);
+                        mRateLimiter.drain();
+                        if (mBulkChannel != null) {
+                            subscribeBulkTransfer(mBulkChannel);
+                        }
+                        if (mDeviceShadow != null) {
+                            subscribeDeviceShadow(mDeviceShadow);
+                        }
+                        if (mRpcChannel != null) {
+                            subscribeRpc(mRpcChannel);
+                        }
                         break;
                     case Connecting:
                     case Reconnecting:
@@ -118,7 +419,7 @@ public abstract class CustomizedThing {
                 }
             }
         };
-        mIotMqttManager.connect(mAWSCredential, mqttClientStatusCallback);
+        mMqttClient.connect(mqttClientStatusCallback);
 
     }
 
@@ -126,9 +427,9 @@ public abstract class CustomizedThing {
      * Disconnect from AWS IoT core.
      */
     public void disconnectFromIoT() {
-        if (mIotMqttManager != null) {
+        if (mMqttClient != null) {
             try {
-                mIotMqttManager.disconnect();
+                mMqttClient.disconnect();
                 mMqttConnectionState = MqttConnectionState.MQTT_Disconnected;
             } catch (Exception e) {
                 Log.e(TAG, "MQTT disconnect error: ", e);
@@ -144,26 +445,92 @@ public abstract class CustomizedThing {
      * @param payload Payload to publish.
      */
     public void publishToIoT(final String topic, final AWSIotMqttQos qoS, @NonNull final byte[] payload) {
+        publishToIoT(CustomizedMqttEnvelope.newPublishEnvelope(topic, qoS, payload));
+    }
+
+    /**
+     * Publish a message received from thing, the ACK carries the envelope's message id if any.
+     *
+     * @param envelope Publish envelope.
+     */
+    public void publishToIoT(@NonNull final CustomizedMqttEnvelope envelope) {
         if (mMqttConnectionState != MqttConnectionState.MQTT_Connected) {
             Log.e(TAG, "Cannot publish message to IoT because MQTT connection state" +
                     " is not connected.");
+            envelope.release();
             return;
         }
-        AWSIotMqttMessageDeliveryCallback deliveryCallback = new AWSIotMqttMessageDeliveryCallback() {
+        if (mRateLimiter.admit(envelope)) {
+            sendPublishToIoT(envelope);
+        }
+    }
+
+    private void sendPublishToIoT(final CustomizedMqttEnvelope envelope) {
+        final String topic = envelope.topic;
+        final byte[] payload = envelope.payload;
+        /* The delivery callback owns the envelope's reference, it may report Fail and then
+         * publishData throws, so this call holds its own until publishData returned */
+        envelope.retain();
+        try {
+            Log.i(TAG, "Sending MQTT message to IoT on topic: " + topic
+                    + " message: " + new String(payload));
+            sPriorityLanes.recordDelivered(envelope, true);
+            mMqttClient.publishData(payload, topic, envelope.qoS, mDeliveryCallback, envelope);
+        } catch (Exception e) {
+            Log.e(TAG, "Publish error.", e);
+        } finally {
+            envelope.release();
+        }
+    }
+
+    private void subscribeBulkTransfer(final BulkTransferChannel channel) {
+        try {
+            mMqttClient.subscribeToTopic(channel.getTopicFilter(), AWSIotMqttQos.QOS1, new AWSIotMqttNewMessageCallback() {
+                @Override
+                public void onMessageArrived(String topic, byte[] data) {
+                    channel.onCloudMessage(topic, data);
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Bulk transfer subscription error.", e);
+        }
+    }
+
+    private void subscribeDeviceShadow(final DeviceShadow shadow) {
+        /* Updates may have been lost while disconnected, report in full again */
+        shadow.resync(mThingId);
+        AWSIotMqttNewMessageCallback callback = new AWSIotMqttNewMessageCallback() {
             @Override
-            public void statusChanged(MessageDeliveryStatus status, Object userData) {
-                Log.d(TAG, "Publish msg delivery status: " + status.toString());
-                if (status == MessageDeliveryStatus.Success && qoS == AWSIotMqttQos.QOS1) {
-                    sendAckToThing(CustomizedMqttEnvelope.newPublishEnvelope(topic, qoS, payload));
+            public void onMessageArrived(String topic, byte[] data) {
+                byte[] delta = shadow.onCloudMessage(mThingId, topic, data);
+                if (delta != null) {
+                    queueDownlink(shadow.getDeltaTopic(), AWSIotMqttQos.QOS1, delta);
+                    drainDownlink();
                 }
             }
         };
         try {
-            Log.i(TAG, "Sending MQTT message to IoT on topic: " + topic
-                    + " message: " + new String(payload));
-            mIotMqttManager.publishData(payload, topic, qoS, deliveryCallback, null);
+            for (String topic : DeviceShadow.getCloudTopics(mThingId)) {
+                mMqttClient.subscribeToTopic(topic, AWSIotMqttQos.QOS1, callback);
+            }
         } catch (Exception e) {
-            Log.e(TAG, "Publish error.", e);
+            Log.e(TAG, "Device shadow subscription error.", e);
+            return;
+        }
+        /* Desired changes made while thing was away are only in the document */
+        publishToIoT(DeviceShadow.getGetTopic(mThingId), AWSIotMqttQos.QOS0, new byte[0]);
+    }
+
+    private void subscribeRpc(final RpcChannel channel) {
+        try {
+            mMqttClient.subscribeToTopic(channel.getResponseFilter(mThingId), AWSIotMqttQos.QOS1, new AWSIotMqttNewMessageCallback() {
+                @Override
+                public void onMessageArrived(String topic, byte[] data) {
+                    channel.onCloudMessage(topic, data);
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "RPC subscription error.", e);
         }
     }
 
@@ -174,32 +541,86 @@ public abstract class CustomizedThing {
      * @param qoS   QoS.
      */
     public void subscribeToIoT(final String topic, final AWSIotMqttQos qoS) {
+        subscribeToIoT(CustomizedMqttEnvelope.newSubscribeEnvelope(topic, qoS));
+    }
+
+    /**
+     * Subscribe to a topic on behalf of thing, the ACK carries the envelope's message id if any.
+     *
+     * @param envelope Subscribe envelope.
+     */
+    public void subscribeToIoT(@NonNull final CustomizedMqttEnvelope envelope) {
         if (mMqttConnectionState != MqttConnectionState.MQTT_Connected) {
             Log.e(TAG, "Cannot subscribe because MQTT state is not connected.");
+            envelope.release();
             return;
         }
+        if (mRateLimiter.admit(envelope)) {
+            sendSubscribeToIoT(envelope);
+        }
+    }
 
+    private void sendSubscribeToIoT(final CustomizedMqttEnvelope envelope) {
+        final String topic = envelope.topic;
+        final AWSIotMqttQos qoS = envelope.qoS;
         try {
             Log.i(TAG, "Subscribing to IoT on topic : " + topic);
-            mIotMqttManager.subscribeToTopic(topic, qoS, new AWSIotMqttNewMessageCallback() {
+            mMqttClient.subscribeToTopic(topic, qoS, new AWSIotMqttNewMessageCallback() {
                 @Override
                 public void onMessageArrived(final String topic, final byte[] data) {
                     try {
                         Log.i(TAG, " Message arrived on topic: " + topic);
                         Log.v(TAG, "   Message: " + new String(data, "UTF-8"));
-                        CustomizedMqttEnvelope envelope = CustomizedMqttEnvelope.newPublishEnvelope(
-                                topic, qoS, data
-                        );
-                        publishToThing(envelope);
+                        RetainedMessageCache cache = sRetainedCache;
+                        if (cache != null) {
+                            cache.put(mThingId, topic, data);
+                        }
+                        queueDownlink(topic, qoS, data);
+                        drainDownlink();
                     } catch (UnsupportedEncodingException e) {
                         Log.e(TAG, "Message encoding error.", e);
                     }
                 }
             });
-            sendAckToThing(CustomizedMqttEnvelope.newSubscribeEnvelope(topic, qoS));
+            sendAckToThing(envelope);
+            replayRetained(topic, qoS);
         } catch (Exception e) {
             Log.e(TAG, "Subscription error.", e);
+        } finally {
+            envelope.release();
+        }
+    }
+
+    private void queueDownlink(String topic, AWSIotMqttQos qoS, byte[] data) {
+        CustomizedMqttEnvelope envelope = CustomizedMqttEnvelope.newPublishEnvelope(topic, qoS, data);
+        /* Payload markers only match before compression */
+        sPriorityLanes.classify(envelope);
+        PayloadCompressor compressor = mDownlinkCompressor;
+        if (compressor != null) {
+            envelope.payload = compressor.compress(topic, data);
+        }
+        if (!mDownlinkQueue.offer(envelope)) {
+            Log.w(TAG, "Downlink queue full, dropped message on topic: " + topic);
+        }
+    }
+
+    /**
+     * Hand cached messages matching a new subscription to thing without waiting for the cloud.
+     */
+    private void replayRetained(String topicFilter, AWSIotMqttQos qoS) {
+        RetainedMessageCache cache = sRetainedCache;
+        if (cache == null) {
+            return;
+        }
+        List<RetainedMessageCache.Message> messages = cache.match(mThingId, topicFilter);
+        if (messages.isEmpty()) {
+            return;
+        }
+        Log.i(TAG, "Replaying " + messages.size() + " retained messages for: " + topicFilter);
+        for (RetainedMessageCache.Message message : messages) {
+            queueDownlink(message.topic, qoS, message.payload);
         }
+        drainDownlink();
     }
 
     /**
@@ -208,17 +629,35 @@ public abstract class CustomizedThing {
      * @param topic Topic to unsubscribe.
      */
     public void unsubscribeToIoT(final String topic) {
+        unsubscribeToIoT(CustomizedMqttEnvelope.newUnsubscribeEnvelope(topic));
+    }
+
+    /**
+     * Unsubscribe from a topic on behalf of thing, the ACK carries the envelope's message id if any.
+     *
+     * @param envelope Unsubscribe envelope.
+     */
+    public void unsubscribeToIoT(@NonNull final CustomizedMqttEnvelope envelope) {
         if (mMqttConnectionState != MqttConnectionState.MQTT_Connected) {
             Log.e(TAG, "Cannot unsubscribe because MQTT state is not connected.");
+            envelope.release();
             return;
         }
+        if (mRateLimiter.admit(envelope)) {
+            sendUnsubscribeToIoT(envelope);
+        }
+    }
 
+    private void sendUnsubscribeToIoT(final CustomizedMqttEnvelope envelope) {
+        final String topic = envelope.topic;
         try {
             Log.i(TAG, "UnSubscribing to IoT on topic : " + topic);
-            mIotMqttManager.unsubscribeTopic(topic);
-            sendAckToThing(CustomizedMqttEnvelope.newUnsubscribeEnvelope(topic));
+            mMqttClient.unsubscribeTopic(topic);
+            sendAckToThing(envelope);
         } catch (Exception e) {
             Log.e(TAG, "Subscription error.", e);
+        } finally {
+            envelope.release();
         }
     }
 
@@ -268,6 +707,156 @@ public abstract class CustomizedThing {
         if (mOnConnectionStateListener != null) {
             mOnConnectionStateListener.onThingConnectionStateChanged(this, mThingConnectionState);
         }
+        BulkTransferChannel bulkChannel = mBulkChannel;
+        if (bulkChannel != null) {
+            bulkChannel.setLinkUp(state == ThingConnectionState.Thing_Connected);
+        }
+        CapabilityCache cache = sCapabilityCache;
+        if (state == ThingConnectionState.Thing_Connected && cache != null) {
+            /* Reconnecting things run on their last configuration until they answer again */
+            ThingCapabilities cached = cache.get(mThingId);
+            if (cached != null) {
+                applyCapabilities(cached);
+            }
+            mHelloPending = true;
+        }
+        drainDownlink();
+    }
+
+    /**
+     * Switch to the configuration negotiated with thing. Transports override it to pick up
+     * framing features and call through.
+     *
+     * @param capabilities Negotiated capabilities.
+     */
+    protected void applyCapabilities(ThingCapabilities capabilities) {
+        ThingCapabilities previous = mCapabilities;
+        mCapabilities = capabilities;
+        /* Only things which parse PUBACK_RANGE get them, whatever was set before */
+        boolean ackRange = capabilities.has(ThingCapabilities.FEATURE_ACK_RANGE);
+        if (ackRange == (mAckCoalescer == null)) {
+            setAckCoalescingWindow(ackRange ? NEGOTIATED_ACK_WINDOW_MS : 0);
+        }
+        if (capabilities.equals(previous)) {
+            return;
+        }
+        Log.i(TAG, "Capabilities of " + mThingId + ": " + capabilities);
+        boolean compression = capabilities.has(ThingCapabilities.FEATURE_COMPRESSION);
+        if (compression != previous.has(ThingCapabilities.FEATURE_COMPRESSION) && compression == (mDownlinkCompressor == null)) {
+            setDownlinkCompressor(compression ? new PayloadCompressor().addRule(
+                    new PayloadCompressor.Rule("#", NEGOTIATED_COMPRESSION_MIN_SIZE)) : null);
+        }
+    }
+
+    /**
+     * @return True if thing can take the next downlink message right now. Transports which
+     * allow one write at a time override it to pace the queue.
+     */
+    protected boolean isReadyForDownlink() {
+        return mThingConnectionState == ThingConnectionState.Thing_Connected;
+    }
+
+    /**
+     * Publish queued downlink messages in order for as long as thing is ready for them, then
+     * bulk transfer frames. A HELLO due after connecting goes first. Transports call it again
+     * once the link recovers or a write completed.
+     */
+    protected void drainDownlink() {
+        synchronized (mDownlinkLock) {
+            while (isReadyForDownlink()) {
+                if (mHelloPending) {
+                    mHelloPending = false;
+                    sendDataToThing(new MyTLV(MyTLV.TLVType.HELLO, ThingCapabilities.PROXY.encode()).encodedBytesStream);
+                    continue;
+                }
+                CustomizedMqttEnvelope envelope = mDownlinkQueue.poll();
+                if (envelope != null) {
+                    sPriorityLanes.recordDelivered(envelope, false);
+                    publishToThing(envelope);
+                    continue;
+                }
+                BulkTransferChannel bulkChannel = mBulkChannel;
+                byte[] frame = bulkChannel == null ? null : bulkChannel.nextFrame();
+                if (frame == null) {
+                    return;
+                }
+                sendDataToThing(frame);
+            }
+        }
+    }
+
+    /**
+     * Record a raw frame exchanged with thing when capturing is on.
+     *
+     * @param direction Direction of the frame.
+     * @param data      Raw frame bytes.
+     */
+    protected void recordFrame(TrafficRecorder.Direction direction, byte[] data) {
+        TrafficRecorder recorder = sTrafficRecorder;
+        if (recorder != null && data != null) {
+            recorder.record(mThingId, direction, data);
+        }
+    }
+
+    /**
+     * Decode a raw frame received from thing and dispatch it to AWS IoT core.
+     *
+     * @param data Encoded bytes stream.
+     */
+    protected void handleFrameFromThing(byte[] data) {
+        if (handleControlFrame(data)) {
+            return;
+        }
+        handleEnvelopeFromThing(new MyTLV(data).toCustomizedMqttEnvelope());
+    }
+
+    /**
+     * Consume a frame from thing which is not an MQTT request, e.g. CAPS or a bulk transfer ack.
+     *
+     * @param data Encoded bytes stream.
+     * @return True if the frame was consumed.
+     */
+    protected boolean handleControlFrame(byte[] data) {
+        if (data.length > 0 && data[0] == MyTLV.TLVType.CAPS.ordinal()) {
+            ThingCapabilities capabilities = ThingCapabilities.decode(data);
+            CapabilityCache cache = sCapabilityCache;
+            if (capabilities != null && cache != null) {
+                capabilities = ThingCapabilities.PROXY.negotiate(capabilities);
+                cache.put(mThingId, capabilities);
+                applyCapabilities(capabilities);
+            }
+            return true;
+        }
+        BulkTransferChannel bulkChannel = mBulkChannel;
+        return bulkChannel != null && bulkChannel.onFrame(data);
+    }
+
+    /**
+     * Dispatch a request decoded from thing to AWS IoT core.
+     *
+     * @param envelope Request received from thing.
+     */
+    protected void handleEnvelopeFromThing(final CustomizedMqttEnvelope envelope) {
+        if (envelope == null) {
+            return;
+        }
+        envelope.thingId = mThingId;
+        envelope.thingPayload = envelope.payload;
+        sPriorityLanes.classify(envelope);
+        switch (envelope.envelopeType) {
+            case Publish:
+                mUplinkPipeline.process(envelope);
+                break;
+            case Subscribe:
+                subscribeToIoT(envelope);
+                break;
+            case Unsubscribe:
+                unsubscribeToIoT(envelope);
+                break;
+            default:
+                Log.e(TAG, "Unexpected message type");
+                envelope.release();
+        }
     }
 
     /**
@@ -275,7 +864,50 @@ public abstract class CustomizedThing {
      *
      * @param envelope Message passed when publish/subscribe/unsubscribe.
      */
-    protected abstract void sendAckToThing(final CustomizedMqttEnvelope envelope);
+    protected void sendAckToThing(final CustomizedMqttEnvelope envelope) {
+        if (mAckCoalescer != null && envelope.hasMessageId()
+                && envelope.envelopeType == CustomizedMqttEnvelope.CustomizedMqttEnvelopeType.Publish) {
+            mAckCoalescer.add(envelope.messageId);
+            return;
+        }
+        MyTLV tlv = MyTLV.newAck(envelope);
+        if (tlv == null) {
+            Log.e(TAG, "Unexpected message type");
+            return;
+        }
+        sendDataToThing(tlv.encodedBytesStream);
+    }
+
+    /**
+     * Encode a message for thing, transports call it from publishToThing.
+     *
+     * @param envelope Publish envelope.
+     * @return Frame, or null if the message is not a publish or is longer than the max frame
+     * size negotiated with thing.
+     */
+    protected byte[] encodeForThing(final CustomizedMqttEnvelope envelope) {
+        if (envelope.envelopeType != CustomizedMqttEnvelope.CustomizedMqttEnvelopeType.Publish) {
+            Log.e(TAG, "Unexpected message type");
+            return null;
+        }
+        /* Only things set up for compressed payloads parse PUB_BINARY, a legacy thing gets any
+         * payload in the text frame even if it happens to start like a compressed one */
+        boolean binary = mDownlinkCompressor != null && PayloadCodec.isCompressed(envelope.payload);
+        byte[] frame = new MyTLV(envelope, binary).encodedBytesStream;
+        if (frame.length > mCapabilities.maxFrameSize) {
+            /* Length would not fit its byte or thing's buffer, and thing would lose the framing */
+            Log.e(TAG, "Message too long for a " + mCapabilities.maxFrameSize + " byte frame on topic: " + envelope.topic);
+            return null;
+        }
+        return frame;
+    }
+
+    /**
+     * Send encoded bytes stream to thing.
+     *
+     * @param data Encoded bytes stream.
+     */
+    protected abstract void sendDataToThing(final byte[] data);
 
     /**
      * Request to publish message received from cloud to thing.
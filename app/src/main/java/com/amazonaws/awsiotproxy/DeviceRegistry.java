@@ -0,0 +1,145 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Things connected before, by Bluetooth address, kept across app restarts. Known things are
+ * connected to directly at start up instead of waiting for a scan, and reconnected in the
+ * background when their link drops.
+ */
+public class DeviceRegistry {
+    private static final String TAG = "DeviceRegistry";
+    private final Map<String, Device> mDevices = new ConcurrentHashMap<>();
+    private final SharedPreferences mPreferences;
+
+    /**
+     * What was learned about a thing on its last connection.
+     */
+    public static class Device {
+        public final String address;
+        public final String name;
+        /* ATT MTU agreed on the last connection */
+        public final int mtu;
+        /* Thing has the uplink/downlink/control characteristics */
+        public final boolean splitProfile;
+        public final long lastConnectedMs;
+
+        public Device(@NonNull String address, @NonNull String name, int mtu, boolean splitProfile, long lastConnectedMs) {
+            this.address = address;
+            this.name = name;
+            this.mtu = mtu;
+            this.splitProfile = splitProfile;
+            this.lastConnectedMs = lastConnectedMs;
+        }
+
+        String toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("name", name);
+            json.addProperty("mtu", mtu);
+            json.addProperty("split", splitProfile);
+            json.addProperty("last", lastConnectedMs);
+            return json.toString();
+        }
+
+        static Device fromJson(String address, String value) {
+            JsonObject json = new JsonParser().parse(value).getAsJsonObject();
+            return new Device(address, json.get("name").getAsString(), json.get("mtu").getAsInt(),
+                    json.get("split").getAsBoolean(), json.get("last").getAsLong());
+        }
+    }
+
+    /**
+     * Instantiates a new DeviceRegistry.
+     *
+     * @param preferences Keeps the registry across app restarts, null to keep it in memory only.
+     */
+    public DeviceRegistry(@Nullable SharedPreferences preferences) {
+        mPreferences = preferences;
+        if (preferences == null) {
+            return;
+        }
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            try {
+                mDevices.put(entry.getKey(), Device.fromJson(entry.getKey(), String.valueOf(entry.getValue())));
+            } catch (Exception e) {
+                Log.w(TAG, "Dropped unreadable entry of " + entry.getKey());
+                preferences.edit().remove(entry.getKey()).apply();
+            }
+        }
+    }
+
+    /**
+     * @param address Bluetooth address.
+     * @return Known thing, or null.
+     */
+    public Device get(String address) {
+        return mDevices.get(address);
+    }
+
+    /**
+     * @return Known things, most recently connected first.
+     */
+    public List<Device> getAll() {
+        List<Device> devices = new ArrayList<>(mDevices.values());
+        Collections.sort(devices, new Comparator<Device>() {
+            @Override
+            public int compare(Device a, Device b) {
+                return Long.compare(b.lastConnectedMs, a.lastConnectedMs);
+            }
+        });
+        return devices;
+    }
+
+    public void put(@NonNull Device device) {
+        mDevices.put(device.address, device);
+        if (mPreferences != null) {
+            mPreferences.edit().putString(device.address, device.toJson()).apply();
+        }
+    }
+
+    /**
+     * Forget a thing, it has to be found by a scan again.
+     *
+     * @param address Bluetooth address.
+     */
+    public void remove(String address) {
+        mDevices.remove(address);
+        if (mPreferences != null) {
+            mPreferences.edit().remove(address).apply();
+        }
+    }
+}
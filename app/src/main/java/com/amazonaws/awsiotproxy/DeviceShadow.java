@@ -0,0 +1,283 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local copy of the AWS IoT Device Shadow of every thing. Things keep publishing their full
+ * state, this uplink stage turns it into shadow updates carrying only the keys which changed
+ * since the last report, and absorbs reports which changed nothing. Desired state changes from
+ * the cloud are handed to thing as a plain JSON object of the keys to change, without version,
+ * timestamp and metadata, and without keys thing already reports.
+ */
+public class DeviceShadow implements UplinkStage {
+    private static final String TAG = "DeviceShadow";
+    public static final String DEFAULT_DELTA_TOPIC = "shadow/delta";
+    private static final String TOPIC_PREFIX = "$aws/things/";
+    private static final String UPDATE = "/shadow/update";
+    private static final String UPDATE_DELTA = "/shadow/update/delta";
+    private static final String UPDATE_REJECTED = "/shadow/update/rejected";
+    private static final String GET = "/shadow/get";
+    private static final String GET_ACCEPTED = "/shadow/get/accepted";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private final String mStateTopicFilter;
+    private final String mDeltaTopic;
+    private final Map<String, Document> mDocuments = new HashMap<>();
+    private long mUpdateCount;
+    private long mSuppressedCount;
+    private long mSavedBytes;
+
+    private static class Document {
+        JsonObject reported = new JsonObject();
+        JsonObject desired = new JsonObject();
+        /* Set once thing reported since the last resync, cloud reported state is stale then */
+        boolean reportedLocally;
+    }
+
+    /**
+     * Instantiates a new DeviceShadow.
+     *
+     * @param stateTopicFilter Topics things publish their full state on, may contain wildcards.
+     * @param deltaTopic       Topic desired state changes are published to thing on.
+     */
+    public DeviceShadow(@NonNull String stateTopicFilter, @NonNull String deltaTopic) {
+        mStateTopicFilter = stateTopicFilter;
+        mDeltaTopic = deltaTopic;
+    }
+
+    public String getDeltaTopic() {
+        return mDeltaTopic;
+    }
+
+    /**
+     * @param thingId Thing name.
+     * @return Shadow topics CustomizedThing subscribes to for thing.
+     */
+    public static String[] getCloudTopics(String thingId) {
+        return new String[]{
+                TOPIC_PREFIX + thingId + UPDATE_DELTA,
+                TOPIC_PREFIX + thingId + UPDATE_REJECTED,
+                TOPIC_PREFIX + thingId + GET_ACCEPTED,
+        };
+    }
+
+    /**
+     * @param thingId Thing name.
+     * @return Topic to publish an empty message on to request the whole shadow document.
+     */
+    public static String getGetTopic(String thingId) {
+        return TOPIC_PREFIX + thingId + GET;
+    }
+
+    /**
+     * @return Number of shadow updates published so far.
+     */
+    public synchronized long getUpdateCount() {
+        return mUpdateCount;
+    }
+
+    /**
+     * @return Number of state reports which changed nothing and were not published.
+     */
+    public synchronized long getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    /**
+     * @return Payload bytes saved by publishing changed keys instead of full state.
+     */
+    public synchronized long getSavedBytes() {
+        return mSavedBytes;
+    }
+
+    /**
+     * @param thingId Thing name.
+     * @return Last reported state of thing as JSON, "{}" if unknown.
+     */
+    public synchronized String getReported(String thingId) {
+        Document document = mDocuments.get(thingId);
+        return document == null ? "{}" : document.reported.toString();
+    }
+
+    /**
+     * @param thingId Thing name.
+     * @return Desired state of thing as JSON, "{}" if unknown.
+     */
+    public synchronized String getDesired(String thingId) {
+        Document document = mDocuments.get(thingId);
+        return document == null ? "{}" : document.desired.toString();
+    }
+
+    /**
+     * Forget what was reported for thing, e.g. after the MQTT connection was lost, so the next
+     * report is published in full.
+     *
+     * @param thingId Thing name.
+     */
+    public synchronized void resync(String thingId) {
+        mDocuments.remove(thingId);
+    }
+
+    @Override
+    public boolean process(CustomizedMqttEnvelope envelope, Next next) {
+        JsonObject state = envelope.thingId == null || !MqttTopics.matches(mStateTopicFilter, envelope.topic)
+                ? null : parseObject(envelope.payload);
+        if (state == null) {
+            next.publish(envelope);
+            return true;
+        }
+        byte[] update;
+        synchronized (this) {
+            Document document = getDocument(envelope.thingId);
+            JsonObject changed = diff(document.reported, state);
+            merge(document.reported, state);
+            document.reportedLocally = true;
+            if (changed.size() == 0) {
+                mSuppressedCount++;
+                return false;
+            }
+            JsonObject reported = new JsonObject();
+            reported.add("reported", changed);
+            JsonObject root = new JsonObject();
+            root.add("state", reported);
+            update = root.toString().getBytes(UTF_8);
+            mUpdateCount++;
+            mSavedBytes += envelope.payload.length - update.length;
+        }
+        envelope.topic = TOPIC_PREFIX + envelope.thingId + UPDATE;
+        envelope.payload = update;
+        next.publish(envelope);
+        return true;
+    }
+
+    /**
+     * Handle a message received on one of the topics of getCloudTopics().
+     *
+     * @param thingId Thing name.
+     * @param topic   Topic the message arrived on.
+     * @param payload Shadow service response.
+     * @return Desired state changes to publish to thing on the delta topic, or null if none.
+     */
+    public byte[] onCloudMessage(String thingId, String topic, byte[] payload) {
+        if (topic.endsWith(UPDATE_REJECTED)) {
+            Log.w(TAG, "Shadow update rejected for " + thingId + ": " + new String(payload, UTF_8));
+            resync(thingId);
+            return null;
+        }
+        JsonObject root = parseObject(payload);
+        JsonObject state = root == null ? null : getObject(root, "state");
+        if (state == null) {
+            return null;
+        }
+        JsonObject pending;
+        synchronized (this) {
+            Document document = getDocument(thingId);
+            if (topic.endsWith(GET_ACCEPTED)) {
+                JsonObject desired = getObject(state, "desired");
+                JsonObject reported = getObject(state, "reported");
+                document.desired = desired == null ? new JsonObject() : desired;
+                if (!document.reportedLocally && reported != null) {
+                    document.reported = reported;
+                }
+                pending = getObject(state, "delta");
+            } else if (topic.endsWith(UPDATE_DELTA)) {
+                merge(document.desired, state);
+                pending = state;
+            } else {
+                return null;
+            }
+            /* The cloud may not have seen the latest reports of thing yet */
+            pending = pending == null ? null : diff(document.reported, pending);
+        }
+        return pending == null || pending.size() == 0 ? null : pending.toString().getBytes(UTF_8);
+    }
+
+    private Document getDocument(String thingId) {
+        Document document = mDocuments.get(thingId);
+        if (document == null) {
+            document = new Document();
+            mDocuments.put(thingId, document);
+        }
+        return document;
+    }
+
+    /**
+     * @return Keys of update whose value differs from base, nested objects are compared per key.
+     */
+    static JsonObject diff(JsonObject base, JsonObject update) {
+        JsonObject changed = new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : update.entrySet()) {
+            JsonElement value = entry.getValue();
+            JsonElement old = base.get(entry.getKey());
+            if (value.isJsonObject() && old != null && old.isJsonObject()) {
+                JsonObject nested = diff(old.getAsJsonObject(), value.getAsJsonObject());
+                if (nested.size() > 0) {
+                    changed.add(entry.getKey(), nested);
+                }
+            } else if (value.isJsonNull() ? old != null : !value.equals(old)) {
+                changed.add(entry.getKey(), value.deepCopy());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Apply update to base like the shadow service does, null deletes a key.
+     */
+    static void merge(JsonObject base, JsonObject update) {
+        for (Map.Entry<String, JsonElement> entry : update.entrySet()) {
+            JsonElement value = entry.getValue();
+            JsonElement old = base.get(entry.getKey());
+            if (value.isJsonNull()) {
+                base.remove(entry.getKey());
+            } else if (value.isJsonObject() && old != null && old.isJsonObject()) {
+                merge(old.getAsJsonObject(), value.getAsJsonObject());
+            } else {
+                base.add(entry.getKey(), value.deepCopy());
+            }
+        }
+    }
+
+    private static JsonObject getObject(JsonObject parent, String key) {
+        JsonElement element = parent.get(key);
+        return element != null && element.isJsonObject() ? element.getAsJsonObject() : null;
+    }
+
+    private static JsonObject parseObject(byte[] payload) {
+        try {
+            JsonElement element = new JsonParser().parse(new String(payload, UTF_8));
+            return element.isJsonObject() ? element.getAsJsonObject() : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
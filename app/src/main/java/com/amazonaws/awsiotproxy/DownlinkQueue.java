@@ -0,0 +1,224 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bounded queue of envelopes waiting to be published to a thing, so a chatty topic or a slow
+ * or disconnected link cannot pile up messages without limit. Envelopes are handed out by
+ * priority lane, then in arrival order. When the queue is full an envelope always pushes out
+ * one of a lower lane, otherwise the policy decides.
+ */
+public class DownlinkQueue {
+    private final int mCapacity;
+    private final Policy mPolicy;
+    private final long mBlockTimeoutMs;
+    private final ArrayDeque<CustomizedMqttEnvelope>[] mLanes;
+    private int mDepth;
+    private final Map<String, CustomizedMqttEnvelope> mQueuedByTopic = new HashMap<>();
+    private long mDroppedCount;
+    private long mConflatedCount;
+    private int mMaxDepth;
+
+    public enum Policy {
+        /* Discard the oldest queued envelope to make room */
+        DROP_OLDEST,
+        /* Discard the arriving envelope */
+        DROP_NEWEST,
+        /* Replace the payload of a queued envelope of the same topic, keeping its position. When
+         * no envelope of that topic is queued and the queue is full, the oldest one is dropped */
+        CONFLATE_LATEST,
+        /* Make the caller wait for room up to a timeout, then discard the arriving envelope */
+        BLOCK
+    }
+
+    /**
+     * Instantiates a new DownlinkQueue.
+     *
+     * @param capacity Maximum number of queued envelopes.
+     * @param policy   What to do when the queue is full.
+     */
+    public DownlinkQueue(int capacity, @NonNull Policy policy) {
+        this(capacity, policy, 0);
+    }
+
+    /**
+     * Instantiates a new DownlinkQueue.
+     *
+     * @param capacity       Maximum number of queued envelopes.
+     * @param policy         What to do when the queue is full.
+     * @param blockTimeoutMs How long offer() may wait for room with Policy.BLOCK.
+     */
+    public DownlinkQueue(int capacity, @NonNull Policy policy, long blockTimeoutMs) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        mCapacity = capacity;
+        mPolicy = policy;
+        mBlockTimeoutMs = blockTimeoutMs;
+        mLanes = newLanes();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<CustomizedMqttEnvelope>[] newLanes() {
+        ArrayDeque<CustomizedMqttEnvelope>[] lanes = new ArrayDeque[CustomizedMqttEnvelope.Priority.values().length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+        return lanes;
+    }
+
+    /**
+     * Queue an envelope.
+     *
+     * @param envelope Publish envelope from AWS IoT core.
+     * @return False if the envelope was dropped.
+     */
+    public synchronized boolean offer(@NonNull CustomizedMqttEnvelope envelope) {
+        if (mPolicy == Policy.CONFLATE_LATEST) {
+            CustomizedMqttEnvelope queued = mQueuedByTopic.get(envelope.topic);
+            if (queued != null) {
+                queued.payload = envelope.payload;
+                queued.qoS = envelope.qoS;
+                mConflatedCount++;
+                return true;
+            }
+        }
+        if (mDepth >= mCapacity && !evictBelow(envelope.priority)) {
+            switch (mPolicy) {
+                case DROP_NEWEST:
+                    mDroppedCount++;
+                    return false;
+                case BLOCK:
+                    if (!awaitRoom()) {
+                        mDroppedCount++;
+                        return false;
+                    }
+                    break;
+                case DROP_OLDEST:
+                case CONFLATE_LATEST:
+                default:
+                    /* Everything queued is in this lane or above, only the own lane can give way */
+                    if (mLanes[envelope.priority.ordinal()].isEmpty()) {
+                        mDroppedCount++;
+                        return false;
+                    }
+                    remove(mLanes[envelope.priority.ordinal()]);
+                    mDroppedCount++;
+            }
+        }
+        mLanes[envelope.priority.ordinal()].add(envelope);
+        mDepth++;
+        if (mPolicy == Policy.CONFLATE_LATEST) {
+            mQueuedByTopic.put(envelope.topic, envelope);
+        }
+        mMaxDepth = Math.max(mMaxDepth, mDepth);
+        return true;
+    }
+
+    /**
+     * @return Oldest envelope of the highest non empty lane, or null if the queue is empty.
+     */
+    public synchronized CustomizedMqttEnvelope poll() {
+        for (ArrayDeque<CustomizedMqttEnvelope> lane : mLanes) {
+            if (!lane.isEmpty()) {
+                CustomizedMqttEnvelope envelope = remove(lane);
+                notifyAll();
+                return envelope;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drop every queued envelope, e.g. when the thing goes away for good.
+     */
+    public synchronized void clear() {
+        mDroppedCount += mDepth;
+        for (ArrayDeque<CustomizedMqttEnvelope> lane : mLanes) {
+            lane.clear();
+        }
+        mDepth = 0;
+        mQueuedByTopic.clear();
+        notifyAll();
+    }
+
+    public synchronized int getDepth() {
+        return mDepth;
+    }
+
+    public synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized long getConflatedCount() {
+        return mConflatedCount;
+    }
+
+    private boolean awaitRoom() {
+        long deadline = System.currentTimeMillis() + mBlockTimeoutMs;
+        while (mDepth >= mCapacity) {
+            long remainingMs = deadline - System.currentTimeMillis();
+            if (remainingMs <= 0) {
+                return false;
+            }
+            try {
+                wait(remainingMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop the oldest envelope of the lowest lane below priority, if any.
+     */
+    private boolean evictBelow(CustomizedMqttEnvelope.Priority priority) {
+        for (int i = mLanes.length - 1; i > priority.ordinal(); i--) {
+            if (!mLanes[i].isEmpty()) {
+                remove(mLanes[i]);
+                mDroppedCount++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private CustomizedMqttEnvelope remove(ArrayDeque<CustomizedMqttEnvelope> lane) {
+        CustomizedMqttEnvelope envelope = lane.poll();
+        mDepth--;
+        if (mQueuedByTopic.get(envelope.topic) == envelope) {
+            mQueuedByTopic.remove(envelope.topic);
+        }
+        return envelope;
+    }
+}
@@ -24,15 +24,22 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.util.Log;
 import android.widget.Toast;
 
+import androidx.annotation.RequiresApi;
+
 import com.amazonaws.auth.AWSCredentialsProvider;
 
-import java.util.List;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.UUID;
 
 import static com.amazonaws.mobile.auth.core.internal.util.ThreadUtils.runOnUiThread;
@@ -41,13 +48,59 @@ public class ESP32CustomizedThing extends CustomizedThing {
     private static final String TAG = "ESP32CustomizedThing";
     public static final String SERVICE_UUID = "000000ee-0000-1000-8000-00805f9b34fb";
     private static final String CHAR_UUID = "0000ee01-0000-1000-8000-00805f9b34fb";
+    /* Split profile, things without these characteristics use CHAR_UUID for everything */
+    private static final String UPLINK_CHAR_UUID = "0000ee02-0000-1000-8000-00805f9b34fb";
+    private static final String DOWNLINK_CHAR_UUID = "0000ee03-0000-1000-8000-00805f9b34fb";
+    private static final String CONTROL_CHAR_UUID = "0000ee04-0000-1000-8000-00805f9b34fb";
+    private static final String CCCD_UUID = "00002902-0000-1000-8000-00805f9b34fb";
     private static final int ATT_MTU = 64;
+    private static final int DEFAULT_ATT_MTU = 23;
+    private static final int ATT_HEADER_SIZE = 3;
+    /* Time a partly filled write waits for more frames once batching was negotiated */
+    private static final long BATCH_DELAY_MS = 5;
     private static final int READ_PERIOD_MS = 5000;
+    /* Frames queued on the L2CAP channel before downlink waits in the DownlinkQueue */
+    private static final int L2CAP_MAX_PENDING_WRITES = 16;
     private static final UUID mServiceUuid = UUID.fromString(SERVICE_UUID);
     private static final UUID mCharUuid = UUID.fromString(CHAR_UUID);
+    private static final UUID mUplinkCharUuid = UUID.fromString(UPLINK_CHAR_UUID);
+    private static final UUID mDownlinkCharUuid = UUID.fromString(DOWNLINK_CHAR_UUID);
+    private static final UUID mControlCharUuid = UUID.fromString(CONTROL_CHAR_UUID);
+    private static final UUID mCccdUuid = UUID.fromString(CCCD_UUID);
     private Context mContext;
     private BluetoothDevice mDevice;
-    private BluetoothGatt mDeviceGatt;
+    private volatile BluetoothGatt mDeviceGatt;
+    private volatile boolean mServiceReady;
+    private volatile int mMtu = DEFAULT_ATT_MTU;
+    /* Bound once per connection, uplink and downlink are null for legacy things */
+    private volatile BluetoothGattCharacteristic mLegacyChar;
+    private volatile BluetoothGattCharacteristic mUplinkChar;
+    private volatile BluetoothGattCharacteristic mDownlinkChar;
+    private volatile BluetoothGattCharacteristic mControlChar;
+    private final ArrayDeque<BluetoothGattCharacteristic> mPendingNotifications = new ArrayDeque<>();
+    private final FrameAggregator mGattWriter = new FrameAggregator(DEFAULT_ATT_MTU - ATT_HEADER_SIZE, BATCH_DELAY_MS,
+            new FrameAggregator.Sink() {
+        @Override
+        public boolean write(byte[] data, boolean control) {
+            BluetoothGattCharacteristic characteristic = control && mControlChar != null ? mControlChar
+                    : mDownlinkChar != null ? mDownlinkChar : mLegacyChar;
+            BluetoothGatt gatt = mDeviceGatt;
+            if (characteristic == null || gatt == null) {
+                return false;
+            }
+            characteristic.setValue(data);
+            if (!gatt.writeCharacteristic(characteristic)) {
+                Log.w(TAG, "Write characteristic error, retrying " + data.length + " bytes");
+                return false;
+            }
+            return true;
+        }
+    });
+    private int mL2capPsm;
+    private volatile TlvStreamLink mStreamLink;
+    private DeviceRegistry mDeviceRegistry;
+    /* Set by disconnectFromThing(), other disconnects of known things are reconnected */
+    private volatile boolean mDisconnectRequested;
 
     /**
      * Instantiates a new Customized thing.
@@ -64,9 +117,104 @@ public class ESP32CustomizedThing extends CustomizedThing {
         mDevice = bluetoothDevice;
     }
 
+    /**
+     * Stream frames over an L2CAP connection-oriented channel instead of GATT reads and
+     * writes, GATT is still used if the channel cannot be opened. Needs Android 10.
+     *
+     * @param psm PSM the device listens on, 0 to use GATT only.
+     */
+    public void setL2capPsm(int psm) {
+        mL2capPsm = psm;
+    }
+
+    /**
+     * Remember thing once it connected, so it is connected to without a scan after a restart
+     * and reconnected in the background when its link drops.
+     *
+     * @param registry Known things, null to forget nothing and remember nothing.
+     */
+    public void setDeviceRegistry(DeviceRegistry registry) {
+        mDeviceRegistry = registry;
+    }
+
+    private DeviceRegistry.Device getKnownDevice() {
+        DeviceRegistry registry = mDeviceRegistry;
+        return registry == null ? null : registry.get(mDevice.getAddress());
+    }
+
     @Override
     public void connectToThing() {
-        mDeviceGatt = mDevice.connectGatt(mContext, false, new BluetoothGattCallback() {
+        mDisconnectRequested = false;
+        BluetoothGatt pending = mDeviceGatt;
+        if (pending != null && getThingConnectionState() != ThingConnectionState.Thing_Connected) {
+            /* Background reconnect of a dropped link, it would connect as a second client */
+            mDeviceGatt = null;
+            pending.close();
+        }
+        if (mL2capPsm > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            connectL2cap();
+        } else {
+            connectGatt(false);
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private void connectL2cap() {
+        setThingConnectionState(ThingConnectionState.Thing_Connecting);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BluetoothSocket socket = null;
+                try {
+                    socket = mDevice.createInsecureL2capChannel(mL2capPsm);
+                    socket.connect();
+                    openStreamLink(socket);
+                } catch (IOException e) {
+                    Log.w(TAG, "L2CAP channel failed, falling back to GATT.", e);
+                    if (socket != null) {
+                        try {
+                            socket.close();
+                        } catch (IOException closeError) {
+                            Log.w(TAG, "Close failed.", closeError);
+                        }
+                    }
+                    connectGatt(false);
+                }
+            }
+        }, "L2capConnect").start();
+    }
+
+    private void openStreamLink(BluetoothSocket socket) throws IOException {
+        TlvStreamLink link = new TlvStreamLink(socket.getInputStream(), socket.getOutputStream(), socket,
+                socket.getMaxTransmitPacketSize(), new TlvStreamLink.Listener() {
+            @Override
+            public void onFrame(byte[] frame) {
+                recordFrame(TrafficRecorder.Direction.FROM_THING, frame);
+                handleFrameFromThing(frame);
+            }
+
+            @Override
+            public void onSent() {
+                drainDownlink();
+            }
+
+            @Override
+            public void onClosed() {
+                mStreamLink = null;
+                setThingConnectionState(ThingConnectionState.Thing_Disconnected);
+            }
+        });
+        mStreamLink = link;
+        link.start("L2cap-" + mThingId);
+        setThingConnectionState(ThingConnectionState.Thing_Connected);
+    }
+
+    /**
+     * @param autoConnect False to connect right away, true to connect whenever thing shows up.
+     */
+    private void connectGatt(boolean autoConnect) {
+        /* Over LE only, dual mode things may otherwise be tried over BR/EDR first */
+        mDeviceGatt = mDevice.connectGatt(mContext, autoConnect, new BluetoothGattCallback() {
             @Override
             public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
                 switch (newState) {
@@ -79,97 +227,287 @@ public class ESP32CustomizedThing extends CustomizedThing {
                         break;
                     case BluetoothProfile.STATE_DISCONNECTED:
                     default:
+                        mServiceReady = false;
+                        mMtu = DEFAULT_ATT_MTU;
+                        mGattWriter.clear();
+                        updateMaxWriteSize();
+                        unbindCharacteristics();
                         gatt.close();
+                        if (mDeviceGatt == gatt) {
+                            mDeviceGatt = null;
+                        }
                         setThingConnectionState(ThingConnectionState.Thing_Disconnected);
+                        if (!mDisconnectRequested && getKnownDevice() != null) {
+                            Log.i(TAG, "Lost " + mThingId + ", reconnecting when it is back");
+                            connectGatt(true);
+                        }
                 }
             }
 
             @Override
             public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-                if (gatt.getService(mServiceUuid) != null) {
-                    gatt.requestMtu(ATT_MTU);
-                    new BleReadTask(ESP32CustomizedThing.this).execute();
+                if (!bindCharacteristics(gatt)) {
+                    Log.e(TAG, "Service not found on " + mThingId);
+                    return;
+                }
+                /* Skip the exchange for known things which never took a larger MTU */
+                DeviceRegistry.Device known = getKnownDevice();
+                if (known != null && known.mtu <= DEFAULT_ATT_MTU && known.splitProfile == (mUplinkChar != null)) {
+                    startChannels(gatt);
+                    return;
+                }
+                /* GATT runs one operation at a time, channels are set up once the MTU is known */
+                if (!gatt.requestMtu(ATT_MTU)) {
+                    startChannels(gatt);
                 }
             }
 
             @Override
             public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
                 if (status == BluetoothGatt.GATT_SUCCESS) {
-                    MyTLV tlv = new MyTLV(characteristic.getValue());
-                    final CustomizedMqttEnvelope envelope = tlv.toCustomizedMqttEnvelope();
-                    if (envelope.envelopeType == CustomizedMqttEnvelope.CustomizedMqttEnvelopeType.Publish) {
-                        new Thread(new Runnable() {
-                            @Override
-                            public void run() {
-                                runOnUiThread(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        Toast.makeText(mContext, "Received from ESP32: " + new String(envelope.payload), Toast.LENGTH_SHORT).show();
-                                    }
-                                });
-                            }
-                        }).start();
-                        publishToIoT(envelope.topic, envelope.qoS, envelope.payload);
-                    }
+                    handleGattValue(characteristic.getValue());
                 }
             }
 
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+                handleGattValue(characteristic.getValue());
+            }
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.w(TAG, "Enabling notifications failed with status " + status);
+                }
+                enableNextNotification(gatt);
+            }
+
             @Override
             public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
                 if (status == BluetoothGatt.GATT_SUCCESS) {
                     Log.d(TAG, "Sent back to thing: " + new String(characteristic.getValue()));
                 }
+                mGattWriter.onWriteComplete();
+                drainDownlink();
             }
 
             @Override
             public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
                 super.onMtuChanged(gatt, mtu, status);
                 Log.d(TAG, "MTU changed to " + mtu);
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    mMtu = mtu;
+                    updateMaxWriteSize();
+                }
+                startChannels(gatt);
             }
-        });
+        }, BluetoothDevice.TRANSPORT_LE);
     }
 
-    @Override
-    public void disconnectFromThing() {
-        mDeviceGatt.disconnect();
+    /**
+     * Look the characteristics of the service up once for the connection.
+     *
+     * @return False if the service is missing.
+     */
+    private boolean bindCharacteristics(BluetoothGatt gatt) {
+        BluetoothGattService service = gatt.getService(mServiceUuid);
+        if (service == null) {
+            return false;
+        }
+        mLegacyChar = service.getCharacteristic(mCharUuid);
+        BluetoothGattCharacteristic uplink = service.getCharacteristic(mUplinkCharUuid);
+        BluetoothGattCharacteristic downlink = service.getCharacteristic(mDownlinkCharUuid);
+        if (uplink == null || downlink == null) {
+            Log.i(TAG, mThingId + " has a single characteristic profile");
+            return mLegacyChar != null;
+        }
+        BluetoothGattCharacteristic control = service.getCharacteristic(mControlCharUuid);
+        if (control != null && (control.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+            /* Acks need no confirmation of their own */
+            control.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        }
+        mUplinkChar = uplink;
+        mDownlinkChar = downlink;
+        mControlChar = control;
+        return true;
     }
 
-    @Override
-    protected void sendAckToThing(CustomizedMqttEnvelope envelope) {
-        MyTLV tlv;
-
-        switch (envelope.envelopeType) {
-            case Publish:
-                tlv = new MyTLV(MyTLV.TLVType.PUBACK, envelope.payload);
-                break;
-            case Subscribe:
-                tlv = new MyTLV(MyTLV.TLVType.SUBACK, envelope.topic.getBytes());
-                break;
-            case Unsubscribe:
-                tlv = new MyTLV(MyTLV.TLVType.UNSUBACK, envelope.topic.getBytes());
-                break;
-            default:
+    private void unbindCharacteristics() {
+        mLegacyChar = null;
+        mUplinkChar = null;
+        mDownlinkChar = null;
+        mControlChar = null;
+        synchronized (mPendingNotifications) {
+            mPendingNotifications.clear();
+        }
+    }
+
+    private void startChannels(BluetoothGatt gatt) {
+        if (mServiceReady) {
+            return;
+        }
+        if (mUplinkChar == null) {
+            /* Legacy things are polled for uplink frames */
+            new BleReadTask(ESP32CustomizedThing.this).execute();
+            onChannelsReady();
+            return;
+        }
+        synchronized (mPendingNotifications) {
+            mPendingNotifications.clear();
+            mPendingNotifications.add(mUplinkChar);
+            BluetoothGattCharacteristic control = mControlChar;
+            if (control != null && (control.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+                mPendingNotifications.add(control);
+            }
+        }
+        enableNextNotification(gatt);
+    }
+
+    /**
+     * Enable notifications of one characteristic after the other, each needs a descriptor write.
+     */
+    private void enableNextNotification(BluetoothGatt gatt) {
+        while (true) {
+            BluetoothGattCharacteristic characteristic;
+            synchronized (mPendingNotifications) {
+                characteristic = mPendingNotifications.poll();
+            }
+            if (characteristic == null) {
+                onChannelsReady();
+                return;
+            }
+            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(mCccdUuid);
+            if (gatt.setCharacteristicNotification(characteristic, true) && descriptor != null
+                    && descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)
+                    && gatt.writeDescriptor(descriptor)) {
                 return;
+            }
+            Log.w(TAG, "Cannot enable notifications of " + characteristic.getUuid());
         }
+    }
 
-        BluetoothGattCharacteristic characteristic = ESP32CustomizedThing.this.mDeviceGatt.getService(mServiceUuid).getCharacteristic(mCharUuid);
+    private void onChannelsReady() {
+        if (mServiceReady) {
+            return;
+        }
+        mServiceReady = true;
+        DeviceRegistry registry = mDeviceRegistry;
+        if (registry != null) {
+            registry.put(new DeviceRegistry.Device(mDevice.getAddress(), mThingId, mMtu, mUplinkChar != null,
+                    System.currentTimeMillis()));
+        }
+        drainDownlink();
+    }
 
-        characteristic.setValue(tlv.encodedBytesStream);
-        mDeviceGatt.writeCharacteristic(characteristic);
+    private void handleGattValue(byte[] value) {
+        /* Things which negotiated batching may pack several frames into one value */
+        if (!getCapabilities().has(ThingCapabilities.FEATURE_BATCHING)) {
+            handleGattFrame(value);
+            return;
+        }
+        for (byte[] frame : FrameAggregator.split(value)) {
+            handleGattFrame(frame);
+        }
+    }
+
+    private void handleGattFrame(byte[] frame) {
+        recordFrame(TrafficRecorder.Direction.FROM_THING, frame);
+        /* Same path as L2CAP and replayed captures */
+        handleFrameFromThing(frame);
+    }
+
+    @Override
+    protected void handleEnvelopeFromThing(CustomizedMqttEnvelope envelope) {
+        if (envelope != null && envelope.envelopeType == CustomizedMqttEnvelope.CustomizedMqttEnvelopeType.Publish) {
+            /* Envelope may be recycled before the toast shows, keep the text only */
+            final String text = new String(envelope.payload);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(mContext, "Received from ESP32: " + text, Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                }
+            }).start();
+        }
+        super.handleEnvelopeFromThing(envelope);
+    }
+
+    private void updateMaxWriteSize() {
+        mGattWriter.setMaxWriteSize(Math.min(mMtu - ATT_HEADER_SIZE, getCapabilities().maxFrameSize));
+    }
+
+    @Override
+    protected void applyCapabilities(ThingCapabilities capabilities) {
+        super.applyCapabilities(capabilities);
+        mGattWriter.setBatching(capabilities.has(ThingCapabilities.FEATURE_BATCHING));
+        updateMaxWriteSize();
+    }
+
+    @Override
+    public void disconnectFromThing() {
+        mDisconnectRequested = true;
+        TlvStreamLink link = mStreamLink;
+        if (link != null) {
+            link.close();
+            return;
+        }
+        BluetoothGatt gatt = mDeviceGatt;
+        if (gatt != null) {
+            gatt.disconnect();
+            if (getThingConnectionState() == ThingConnectionState.Thing_Disconnected) {
+                /* Cancels a background reconnect, no callback follows */
+                mDeviceGatt = null;
+                gatt.close();
+            }
+        }
     }
 
     @Override
     protected void publishToThing(CustomizedMqttEnvelope envelope) {
-        if (envelope.envelopeType != CustomizedMqttEnvelope.CustomizedMqttEnvelopeType.Publish) {
-            Log.e(TAG, "Unexpected message type");
+        byte[] frame = encodeForThing(envelope);
+        if (frame != null) {
+            sendDataToThing(frame);
+        }
+    }
+
+    @Override
+    protected void sendDataToThing(byte[] data) {
+        TlvStreamLink link = mStreamLink;
+        if (link != null) {
+            recordFrame(TrafficRecorder.Direction.TO_THING, data);
+            link.send(data);
             return;
         }
+        recordFrame(TrafficRecorder.Direction.TO_THING, data);
+        if (isControlFrame(data)) {
+            mGattWriter.addControl(data);
+        } else {
+            mGattWriter.add(data);
+        }
+    }
 
-        MyTLV tlv = new MyTLV(envelope);
-        BluetoothGattCharacteristic characteristic = ESP32CustomizedThing.this.mDeviceGatt.getService(mServiceUuid).getCharacteristic(mCharUuid);
+    private static boolean isControlFrame(byte[] data) {
+        if (data.length == 0) {
+            return false;
+        }
+        int type = data[0];
+        return type == MyTLV.TLVType.PUBACK.ordinal() || type == MyTLV.TLVType.SUBACK.ordinal()
+                || type == MyTLV.TLVType.UNSUBACK.ordinal() || type == MyTLV.TLVType.PUBACK_RANGE.ordinal()
+                || type == MyTLV.TLVType.HELLO.ordinal();
+    }
 
-        characteristic.setValue(tlv.encodedBytesStream);
-        mDeviceGatt.writeCharacteristic(characteristic);
+    @Override
+    protected boolean isReadyForDownlink() {
+        TlvStreamLink link = mStreamLink;
+        if (link != null) {
+            return super.isReadyForDownlink() && link.getPendingCount() < L2CAP_MAX_PENDING_WRITES;
+        }
+        /* GATT allows one outstanding write, queued messages wait until the writer has room */
+        return super.isReadyForDownlink() && mServiceReady && !mGattWriter.isBacklogged();
     }
 
     private static class BleReadTask extends AsyncTask<String, String, String> {
@@ -189,12 +527,13 @@ public class ESP32CustomizedThing extends CustomizedThing {
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
-                List<BluetoothGattCharacteristic> characteristics = mThing.mDeviceGatt.getService(mServiceUuid).getCharacteristics();
-                if (characteristics.size() == 0) {
+                BluetoothGattCharacteristic characteristic = mThing.mLegacyChar;
+                BluetoothGatt gatt = mThing.mDeviceGatt;
+                if (characteristic == null || gatt == null) {
                     Log.e("TAG", "Can't find characteristic");
                     continue;
                 }
-                if (!mThing.mDeviceGatt.readCharacteristic(characteristics.get(0))) {
+                if (!gatt.readCharacteristic(characteristic)) {
                     Log.e("TAG", "Read characteristic error");
                 }
             }
@@ -0,0 +1,297 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uplink stage shared by every thing which divides a common uplink byte rate between things
+ * with deficit round robin, so a thing flooding publishes only delays its own messages. Add
+ * the same instance as last stage of every thing. Each thing gets a bounded queue and a share
+ * proportional to its weight, the weight of its class or 1. ALARM envelopes skip the round
+ * robin and go out first, inside a thing NORMAL envelopes go out before BULK ones.
+ */
+public class FairUplinkScheduler implements UplinkStage {
+    public static final int DEFAULT_WEIGHT = 1;
+    private static final int QUANTUM_BYTES = 512;
+    private static final int MAX_QUEUED_PER_THING = 128;
+    private final TokenBucket mCapacity;
+    private final long mStarvationThresholdMs;
+    private final Map<String, Flow> mFlows = new HashMap<>();
+    private final ArrayDeque<Flow> mActiveFlows = new ArrayDeque<>();
+    private final ArrayDeque<Entry> mAlarms = new ArrayDeque<>();
+    private final Map<String, Integer> mThingWeights = new HashMap<>();
+    private final Map<String, String> mThingClasses = new HashMap<>();
+    private final Map<String, Integer> mClassWeights = new HashMap<>();
+    private boolean mDispatchScheduled;
+
+    /**
+     * Snapshot of the queueing a thing experienced.
+     */
+    public static class Stats {
+        public final int queued;
+        public final long served;
+        public final long dropped;
+        /* Envelopes which waited longer than the starvation threshold */
+        public final long starved;
+        public final long maxWaitMs;
+        public final double meanWaitMs;
+
+        Stats(Flow flow) {
+            queued = flow.size();
+            served = flow.mServed;
+            dropped = flow.mDropped;
+            starved = flow.mStarved;
+            maxWaitMs = flow.mMaxWaitMs;
+            meanWaitMs = flow.mServed == 0 ? 0 : (double) flow.mTotalWaitMs / flow.mServed;
+        }
+    }
+
+    /**
+     * Instantiates a new FairUplinkScheduler.
+     *
+     * @param bytesPerSecond        Uplink rate shared by all things, payload and topic bytes.
+     * @param starvationThresholdMs Queueing delay counted as starvation in Stats.
+     */
+    public FairUplinkScheduler(long bytesPerSecond, long starvationThresholdMs) {
+        mCapacity = new TokenBucket(bytesPerSecond, (int) Math.max(QUANTUM_BYTES, bytesPerSecond / 10));
+        mStarvationThresholdMs = starvationThresholdMs;
+    }
+
+    /**
+     * @param thingId Thing id.
+     * @param weight  Share of the uplink relative to other things.
+     * @return This scheduler.
+     */
+    public synchronized FairUplinkScheduler setWeight(@NonNull String thingId, int weight) {
+        mThingWeights.put(thingId, Math.max(1, weight));
+        return this;
+    }
+
+    /**
+     * Put a thing into a class, e.g. "critical" or "bulk", which shares one weight.
+     *
+     * @param thingId   Thing id.
+     * @param className Class name.
+     * @return This scheduler.
+     */
+    public synchronized FairUplinkScheduler setClass(@NonNull String thingId, @NonNull String className) {
+        mThingClasses.put(thingId, className);
+        return this;
+    }
+
+    /**
+     * @param className Class name.
+     * @param weight    Share of the uplink of every thing in the class.
+     * @return This scheduler.
+     */
+    public synchronized FairUplinkScheduler setClassWeight(@NonNull String className, int weight) {
+        mClassWeights.put(className, Math.max(1, weight));
+        return this;
+    }
+
+    /**
+     * @param thingId Thing id.
+     * @return Queueing stats of the thing, null if it never published through this scheduler.
+     */
+    public synchronized Stats getStats(@NonNull String thingId) {
+        Flow flow = mFlows.get(thingId);
+        return flow == null ? null : new Stats(flow);
+    }
+
+    @Override
+    public boolean process(CustomizedMqttEnvelope envelope, Next next) {
+        synchronized (this) {
+            Flow flow = mFlows.get(envelope.thingId);
+            if (flow == null) {
+                flow = new Flow();
+                mFlows.put(envelope.thingId, flow);
+            }
+            Entry entry = new Entry(envelope, next, flow);
+            if (envelope.priority == CustomizedMqttEnvelope.Priority.ALARM) {
+                mAlarms.add(entry);
+            } else {
+                if (flow.size() >= MAX_QUEUED_PER_THING) {
+                    /* Only the flooding thing loses messages, oldest of its lowest lane first */
+                    flow.dropOldest();
+                    flow.mDropped++;
+                }
+                flow.add(entry);
+            }
+            if (!flow.mActive && flow.size() > 0) {
+                flow.mActive = true;
+                flow.mDeficit = 0;
+                mActiveFlows.add(flow);
+            }
+        }
+        scheduleDispatch(0);
+        return true;
+    }
+
+    private synchronized void scheduleDispatch(long delayMs) {
+        if (mDispatchScheduled) {
+            return;
+        }
+        mDispatchScheduled = true;
+        ProxyScheduler.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatch() {
+        while (true) {
+            Entry entry;
+            synchronized (this) {
+                entry = nextEntry();
+                if (entry == null) {
+                    mDispatchScheduled = false;
+                    Entry waiting = !mAlarms.isEmpty() ? mAlarms.peek()
+                            : mActiveFlows.isEmpty() ? null : mActiveFlows.peek().peek();
+                    if (waiting != null) {
+                        /* Uplink budget spent, come back once the next entry fits */
+                        scheduleDispatch(Math.max(1, mCapacity.getWaitMs(sizeOf(waiting.mEnvelope))));
+                    }
+                    return;
+                }
+            }
+            entry.mNext.publish(entry.mEnvelope);
+        }
+    }
+
+    /**
+     * One step of deficit round robin.
+     *
+     * @return Next entry to publish, or null if nothing is queued or the uplink budget is spent.
+     */
+    private Entry nextEntry() {
+        if (!mAlarms.isEmpty()) {
+            Entry alarm = mAlarms.peek();
+            if (!mCapacity.tryTake(sizeOf(alarm.mEnvelope))) {
+                return null;
+            }
+            mAlarms.poll();
+            alarm.mFlow.onServed(System.currentTimeMillis() - alarm.mEnqueuedMs, mStarvationThresholdMs);
+            return alarm;
+        }
+        while (!mActiveFlows.isEmpty()) {
+            Flow flow = mActiveFlows.peek();
+            Entry head = flow.peek();
+            int size = sizeOf(head.mEnvelope);
+            if (size > flow.mDeficit) {
+                /* Flow used up its quantum, the next round gives it a new one */
+                mActiveFlows.poll();
+                mActiveFlows.add(flow);
+                flow.mDeficit += QUANTUM_BYTES * getWeight(head.mEnvelope.thingId);
+                continue;
+            }
+            if (!mCapacity.tryTake(size)) {
+                return null;
+            }
+            flow.poll();
+            flow.mDeficit -= size;
+            if (flow.size() == 0) {
+                mActiveFlows.poll();
+                flow.mActive = false;
+                flow.mDeficit = 0;
+            }
+            flow.onServed(System.currentTimeMillis() - head.mEnqueuedMs, mStarvationThresholdMs);
+            return head;
+        }
+        return null;
+    }
+
+    private int getWeight(String thingId) {
+        Integer weight = mThingWeights.get(thingId);
+        if (weight == null) {
+            String className = mThingClasses.get(thingId);
+            weight = className == null ? null : mClassWeights.get(className);
+        }
+        return weight == null ? DEFAULT_WEIGHT : weight;
+    }
+
+    private static int sizeOf(CustomizedMqttEnvelope envelope) {
+        return envelope.topic.length() + (envelope.payload == null ? 0 : envelope.payload.length);
+    }
+
+    private static class Entry {
+        private final CustomizedMqttEnvelope mEnvelope;
+        private final Next mNext;
+        private final Flow mFlow;
+        private final long mEnqueuedMs = System.currentTimeMillis();
+
+        Entry(CustomizedMqttEnvelope envelope, Next next, Flow flow) {
+            mEnvelope = envelope;
+            mNext = next;
+            mFlow = flow;
+        }
+    }
+
+    private static class Flow {
+        /* NORMAL and BULK lanes, ALARM entries are kept in mAlarms */
+        private final ArrayDeque<Entry> mNormal = new ArrayDeque<>();
+        private final ArrayDeque<Entry> mBulk = new ArrayDeque<>();
+        private boolean mActive;
+        private int mDeficit;
+        private long mServed;
+        private long mDropped;
+        private long mStarved;
+        private long mMaxWaitMs;
+        private long mTotalWaitMs;
+
+        void add(Entry entry) {
+            (entry.mEnvelope.priority == CustomizedMqttEnvelope.Priority.BULK ? mBulk : mNormal).add(entry);
+        }
+
+        Entry peek() {
+            return mNormal.isEmpty() ? mBulk.peek() : mNormal.peek();
+        }
+
+        Entry poll() {
+            return mNormal.isEmpty() ? mBulk.poll() : mNormal.poll();
+        }
+
+        void dropOldest() {
+            Entry dropped = mBulk.isEmpty() ? mNormal.poll() : mBulk.poll();
+            dropped.mEnvelope.release();
+        }
+
+        int size() {
+            return mNormal.size() + mBulk.size();
+        }
+
+        void onServed(long waitMs, long starvationThresholdMs) {
+            mServed++;
+            mTotalWaitMs += waitMs;
+            mMaxWaitMs = Math.max(mMaxWaitMs, waitMs);
+            if (waitMs > starvationThresholdMs) {
+                mStarved++;
+            }
+        }
+    }
+}
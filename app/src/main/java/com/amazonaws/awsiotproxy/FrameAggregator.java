@@ -0,0 +1,287 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write queue of a link which allows one outstanding write, e.g. a GATT characteristic. With
+ * batching on, small TLV frames queued meanwhile are packed back to back into one write of
+ * up to max write size. A partly filled write goes out once the previous one completed or
+ * after max delay. With batching off every frame is written on its own, as legacy things
+ * expect. Frames never span writes, a frame larger than max write size is written alone.
+ * Control frames, e.g. acks, have their own queue which is written first, so they never wait
+ * behind downlink data. A write which could not be started is kept and retried with backoff.
+ */
+public class FrameAggregator {
+    private static final long RETRY_MIN_DELAY_MS = 10;
+    private static final long RETRY_MAX_DELAY_MS = 1000;
+    private final Sink mSink;
+    private final long mMaxDelayMs;
+    private final ArrayDeque<byte[]> mFrames = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> mControlFrames = new ArrayDeque<>();
+    private int mPendingBytes;
+    private int mControlBytes;
+    private int mMaxWriteSize;
+    private boolean mBatching;
+    private boolean mWriteInFlight;
+    private long mRetryDelayMs = RETRY_MIN_DELAY_MS;
+    private ScheduledFuture<?> mFlushTimer;
+    private long mWriteCount;
+    private long mFrameCount;
+
+    public interface Sink {
+        /**
+         * Start a write, onWriteComplete() has to follow once it finished.
+         *
+         * @param data    Frames to write.
+         * @param control True if data holds control frames.
+         * @return False if the write could not be started.
+         */
+        boolean write(byte[] data, boolean control);
+    }
+
+    /**
+     * Instantiates a new FrameAggregator.
+     *
+     * @param maxWriteSize Bytes per write, e.g. ATT MTU - 3.
+     * @param maxDelayMs   Time a partly filled write may wait for more frames.
+     * @param sink         Writes to the link.
+     */
+    public FrameAggregator(int maxWriteSize, long maxDelayMs, @NonNull Sink sink) {
+        mMaxWriteSize = maxWriteSize;
+        mMaxDelayMs = maxDelayMs;
+        mSink = sink;
+    }
+
+    /**
+     * @param batching True once thing parses several frames from one write.
+     */
+    public synchronized void setBatching(boolean batching) {
+        mBatching = batching;
+    }
+
+    public synchronized void setMaxWriteSize(int maxWriteSize) {
+        mMaxWriteSize = maxWriteSize;
+    }
+
+    public synchronized int getMaxWriteSize() {
+        return mMaxWriteSize;
+    }
+
+    /**
+     * @return True if enough is queued to fill the next write, callers hold further frames back.
+     */
+    public synchronized boolean isBacklogged() {
+        return mBatching ? mPendingBytes >= mMaxWriteSize : !mFrames.isEmpty();
+    }
+
+    /**
+     * @return Frames written per write so far, 1 without batching.
+     */
+    public synchronized double getFramesPerWrite() {
+        return mWriteCount == 0 ? 0 : (double) mFrameCount / mWriteCount;
+    }
+
+    /**
+     * Queue a downlink frame.
+     *
+     * @param frame Encoded TLV frame.
+     */
+    public void add(@NonNull byte[] frame) {
+        add(frame, false);
+    }
+
+    /**
+     * Queue a control frame, written ahead of downlink frames.
+     *
+     * @param frame Encoded TLV frame.
+     */
+    public void addControl(@NonNull byte[] frame) {
+        add(frame, true);
+    }
+
+    private void add(byte[] frame, boolean control) {
+        synchronized (this) {
+            if (control) {
+                mControlFrames.add(frame);
+                mControlBytes += frame.length;
+            } else {
+                mFrames.add(frame);
+                mPendingBytes += frame.length;
+            }
+            if (mWriteInFlight) {
+                return;
+            }
+            if (mBatching && mPendingBytes + mControlBytes < mMaxWriteSize) {
+                if (mFlushTimer == null) {
+                    mFlushTimer = ProxyScheduler.get().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    }, mMaxDelayMs, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        writeNext();
+    }
+
+    /**
+     * Write what is queued now unless a write is in flight.
+     */
+    public void flush() {
+        synchronized (this) {
+            if (mWriteInFlight) {
+                return;
+            }
+        }
+        writeNext();
+    }
+
+    /**
+     * Called when the last write finished, successfully or not.
+     */
+    public void onWriteComplete() {
+        synchronized (this) {
+            mWriteInFlight = false;
+        }
+        writeNext();
+    }
+
+    /**
+     * Drop every queued frame, e.g. when the link is gone.
+     */
+    public synchronized void clear() {
+        mFrames.clear();
+        mControlFrames.clear();
+        mPendingBytes = 0;
+        mControlBytes = 0;
+        mWriteInFlight = false;
+        mRetryDelayMs = RETRY_MIN_DELAY_MS;
+        cancelTimer();
+    }
+
+    private void writeNext() {
+        byte[] data;
+        boolean control;
+        int frames = 1;
+        synchronized (this) {
+            cancelTimer();
+            control = !mControlFrames.isEmpty();
+            ArrayDeque<byte[]> queue = control ? mControlFrames : mFrames;
+            if (mWriteInFlight || queue.isEmpty()) {
+                return;
+            }
+            data = queue.poll();
+            if (mBatching && data.length < mMaxWriteSize) {
+                int size = data.length;
+                for (byte[] next : queue) {
+                    if (size + next.length > mMaxWriteSize) {
+                        break;
+                    }
+                    size += next.length;
+                    frames++;
+                }
+                if (frames > 1) {
+                    byte[] packed = Arrays.copyOf(data, size);
+                    int offset = data.length;
+                    for (int i = 1; i < frames; i++) {
+                        byte[] frame = queue.poll();
+                        System.arraycopy(frame, 0, packed, offset, frame.length);
+                        offset += frame.length;
+                    }
+                    data = packed;
+                }
+            }
+            if (control) {
+                mControlBytes -= data.length;
+            } else {
+                mPendingBytes -= data.length;
+            }
+            mWriteCount++;
+            mFrameCount += frames;
+            mWriteInFlight = true;
+        }
+        if (mSink.write(data, control)) {
+            synchronized (this) {
+                mRetryDelayMs = RETRY_MIN_DELAY_MS;
+            }
+            return;
+        }
+        synchronized (this) {
+            mWriteInFlight = false;
+            mWriteCount--;
+            mFrameCount -= frames;
+            /* Packed frames go back as one, they still fit a write */
+            if (control) {
+                mControlFrames.addFirst(data);
+                mControlBytes += data.length;
+            } else {
+                mFrames.addFirst(data);
+                mPendingBytes += data.length;
+            }
+            cancelTimer();
+            mFlushTimer = ProxyScheduler.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, mRetryDelayMs, TimeUnit.MILLISECONDS);
+            mRetryDelayMs = Math.min(mRetryDelayMs * 2, RETRY_MAX_DELAY_MS);
+        }
+    }
+
+    private void cancelTimer() {
+        if (mFlushTimer != null) {
+            mFlushTimer.cancel(false);
+            mFlushTimer = null;
+        }
+    }
+
+    /**
+     * Split a write received from thing into its TLV frames, using the length byte of each.
+     *
+     * @param data Bytes of one read or notification.
+     * @return Frames in order, a malformed tail is dropped.
+     */
+    public static List<byte[]> split(byte[] data) {
+        List<byte[]> frames = new ArrayList<>();
+        int offset = 0;
+        while (offset + 2 <= data.length) {
+            int length = data[offset + 1] & 0xFF;
+            if (length < 2 || offset + length > data.length) {
+                break;
+            }
+            frames.add(offset == 0 && length == data.length ? data : Arrays.copyOfRange(data, offset, offset + length));
+            offset += length;
+        }
+        return frames;
+    }
+}
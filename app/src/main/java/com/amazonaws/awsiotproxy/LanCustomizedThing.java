@@ -0,0 +1,332 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Thing on the local network, e.g. a Wi-Fi microcontroller, which speaks the same TLV frames
+ * as the BLE things over TCP or UDP. Over TCP frames follow each other on the stream, over UDP
+ * a datagram carries one or more whole frames. Every LAN thing is served by the one thread of
+ * LanSelector.
+ */
+public class LanCustomizedThing extends CustomizedThing implements LanSelector.Handler {
+    private static final String TAG = "LanCustomizedThing";
+    private static final int HEAD_SIZE = 2;
+    /* TLV length is a single byte */
+    private static final int MAX_FRAME_SIZE = 0xFF;
+    private static final int MAX_GATHER = 32;
+    /* Downlink waits in DownlinkQueue while this many frames are not written yet */
+    private static final int MAX_PENDING_WRITES = 64;
+    private final InetSocketAddress mDeviceAddress;
+    private final Protocol mProtocol;
+    /* Frames not written yet, guarded by itself */
+    private final ArrayDeque<ByteBuffer> mPendingWrites = new ArrayDeque<>();
+    /* Below are touched on the selector thread only */
+    private final ByteBuffer[] mGather = new ByteBuffer[MAX_GATHER];
+    private final byte[] mPartialFrame = new byte[MAX_FRAME_SIZE];
+    private int mPartialLength;
+    private SelectableChannel mChannel;
+    private SelectionKey mKey;
+    private volatile LanSelector mLanSelector;
+    private final Runnable mEnableWrite = new Runnable() {
+        @Override
+        public void run() {
+            if (mKey != null && mKey.isValid()) {
+                mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    };
+
+    public enum Protocol {
+        TCP,
+        UDP,
+    }
+
+    /**
+     * Instantiates a new LAN Customized thing.
+     *
+     * @param thingId        Unique client ID.
+     * @param brokerEndpoint Broker endpoint.
+     * @param awsCredentials AWS credentials.
+     * @param deviceAddress  Address and port the device listens on.
+     * @param protocol       TCP or UDP.
+     */
+    public LanCustomizedThing(String thingId, String brokerEndpoint, AWSCredentialsProvider awsCredentials,
+                              @NonNull InetSocketAddress deviceAddress, @NonNull Protocol protocol) {
+        super(thingId, brokerEndpoint, awsCredentials);
+        mDeviceAddress = deviceAddress;
+        mProtocol = protocol;
+    }
+
+    @Override
+    public void connectToThing() {
+        if (getThingConnectionState() != ThingConnectionState.Thing_Disconnected) {
+            return;
+        }
+        try {
+            mLanSelector = LanSelector.get();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot start LAN selector.", e);
+            return;
+        }
+        setThingConnectionState(ThingConnectionState.Thing_Connecting);
+        mLanSelector.execute(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
+    }
+
+    @Override
+    public void disconnectFromThing() {
+        if (mLanSelector == null) {
+            return;
+        }
+        mLanSelector.execute(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    @Override
+    protected void publishToThing(CustomizedMqttEnvelope envelope) {
+        byte[] frame = encodeForThing(envelope);
+        if (frame != null) {
+            sendDataToThing(frame);
+        }
+    }
+
+    @Override
+    protected void sendDataToThing(byte[] data) {
+        if (getThingConnectionState() != ThingConnectionState.Thing_Connected) {
+            Log.e(TAG, "Cannot send to thing because it is not connected.");
+            return;
+        }
+        recordFrame(TrafficRecorder.Direction.TO_THING, data);
+        boolean wasEmpty;
+        synchronized (mPendingWrites) {
+            wasEmpty = mPendingWrites.isEmpty();
+            mPendingWrites.add(ByteBuffer.wrap(data));
+        }
+        if (wasEmpty) {
+            mLanSelector.execute(mEnableWrite);
+        }
+    }
+
+    @Override
+    protected boolean isReadyForDownlink() {
+        synchronized (mPendingWrites) {
+            return super.isReadyForDownlink() && mPendingWrites.size() < MAX_PENDING_WRITES;
+        }
+    }
+
+    @Override
+    public void onReady(SelectionKey key) {
+        if (key.isConnectable()) {
+            try {
+                if (((SocketChannel) mChannel).finishConnect()) {
+                    onConnected();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot connect to " + mDeviceAddress, e);
+                close();
+            }
+            return;
+        }
+        if (key.isReadable() && !read()) {
+            close();
+            return;
+        }
+        if (key.isValid() && key.isWritable() && !write()) {
+            close();
+        }
+    }
+
+    private void open() {
+        /* Host names are looked up here rather than on the caller's thread */
+        InetSocketAddress address = mDeviceAddress.isUnresolved()
+                ? new InetSocketAddress(mDeviceAddress.getHostString(), mDeviceAddress.getPort()) : mDeviceAddress;
+        if (address.isUnresolved()) {
+            Log.e(TAG, "Cannot resolve " + mDeviceAddress);
+            close();
+            return;
+        }
+        try {
+            if (mProtocol == Protocol.TCP) {
+                SocketChannel channel = SocketChannel.open();
+                mChannel = channel;
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                if (channel.connect(address)) {
+                    onConnected();
+                } else {
+                    mKey = mLanSelector.register(channel, SelectionKey.OP_CONNECT, this);
+                }
+            } else {
+                DatagramChannel channel = DatagramChannel.open();
+                mChannel = channel;
+                channel.configureBlocking(false);
+                channel.connect(address);
+                onConnected();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot connect to " + mDeviceAddress, e);
+            close();
+        }
+    }
+
+    private void onConnected() throws ClosedChannelException {
+        if (mKey == null) {
+            mKey = mLanSelector.register(mChannel, SelectionKey.OP_READ, this);
+        } else {
+            mKey.interestOps(SelectionKey.OP_READ);
+        }
+        Log.i(TAG, "Connected to " + mDeviceAddress);
+        setThingConnectionState(ThingConnectionState.Thing_Connected);
+    }
+
+    private void close() {
+        if (mKey != null) {
+            mKey.cancel();
+            mKey = null;
+        }
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Close failed.", e);
+            }
+            mChannel = null;
+        }
+        mPartialLength = 0;
+        synchronized (mPendingWrites) {
+            mPendingWrites.clear();
+        }
+        setThingConnectionState(ThingConnectionState.Thing_Disconnected);
+    }
+
+    /**
+     * Read what the device sent and dispatch every whole frame in it.
+     *
+     * @return False if the connection has to be closed.
+     */
+    private boolean read() {
+        ByteBuffer buffer = mLanSelector.getReadBuffer();
+        /* Partial frame of the previous read goes first */
+        buffer.put(mPartialFrame, 0, mPartialLength);
+        mPartialLength = 0;
+        try {
+            int count = mProtocol == Protocol.TCP ? ((SocketChannel) mChannel).read(buffer)
+                    : ((DatagramChannel) mChannel).read(buffer);
+            if (count < 0) {
+                Log.i(TAG, "Device closed the connection.");
+                return false;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Read failed.", e);
+            return false;
+        }
+        buffer.flip();
+        while (buffer.remaining() >= HEAD_SIZE) {
+            int length = buffer.get(buffer.position() + 1) & 0xFF;
+            if (length < HEAD_SIZE) {
+                Log.e(TAG, "Malformed frame length: " + length);
+                /* A stream cannot be resynchronized, a datagram is just dropped */
+                return mProtocol == Protocol.UDP;
+            }
+            if (buffer.remaining() < length) {
+                break;
+            }
+            byte[] frame = new byte[length];
+            buffer.get(frame);
+            recordFrame(TrafficRecorder.Direction.FROM_THING, frame);
+            handleFrameFromThing(frame);
+        }
+        if (mProtocol == Protocol.TCP) {
+            mPartialLength = buffer.remaining();
+            buffer.get(mPartialFrame, 0, mPartialLength);
+        } else if (buffer.hasRemaining()) {
+            Log.e(TAG, "Datagram ends with a truncated frame.");
+        }
+        return true;
+    }
+
+    /**
+     * Write pending frames, over TCP as many as fit with one gathering write.
+     *
+     * @return False if the connection has to be closed.
+     */
+    private boolean write() {
+        synchronized (mPendingWrites) {
+            try {
+                if (mProtocol == Protocol.TCP) {
+                    int count = 0;
+                    for (ByteBuffer pending : mPendingWrites) {
+                        if (count == MAX_GATHER) {
+                            break;
+                        }
+                        mGather[count++] = pending;
+                    }
+                    ((SocketChannel) mChannel).write(mGather, 0, count);
+                    Arrays.fill(mGather, 0, count, null);
+                    while (!mPendingWrites.isEmpty() && !mPendingWrites.peek().hasRemaining()) {
+                        mPendingWrites.poll();
+                    }
+                } else {
+                    /* One datagram per frame, devices need not split datagrams */
+                    while (!mPendingWrites.isEmpty()
+                            && ((DatagramChannel) mChannel).write(mPendingWrites.peek()) > 0) {
+                        mPendingWrites.poll();
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Write failed.", e);
+                return false;
+            }
+            if (!mPendingWrites.isEmpty()) {
+                return true;
+            }
+            mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+        /* Room for more, queued downlink messages may go on */
+        drainDownlink();
+        return true;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single thread which serves the sockets of every LAN thing with one selector, so hundreds of
+ * devices cost one thread. Channels are registered and touched only on this thread, other
+ * threads hand work over with execute().
+ */
+public final class LanSelector implements Runnable {
+    private static final String TAG = "LanSelector";
+    /* Large enough for everything a socket buffered between two selects */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static LanSelector sInstance;
+    private final Selector mSelector;
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    /* Shared by every channel, reads never overlap on the selector thread */
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private Thread mThread;
+
+    public interface Handler {
+        /**
+         * Called on the selector thread when the channel is ready for the operations of its key.
+         *
+         * @param key Selected key of the channel.
+         */
+        void onReady(SelectionKey key);
+    }
+
+    private LanSelector() throws IOException {
+        mSelector = Selector.open();
+    }
+
+    /**
+     * @return Selector shared by every LAN thing, its thread is started on first use.
+     * @throws IOException If no selector can be opened.
+     */
+    public static synchronized LanSelector get() throws IOException {
+        if (sInstance == null) {
+            LanSelector selector = new LanSelector();
+            selector.mThread = new Thread(selector, TAG);
+            selector.mThread.setDaemon(true);
+            selector.mThread.start();
+            sInstance = selector;
+        }
+        return sInstance;
+    }
+
+    /**
+     * Run a task on the selector thread.
+     *
+     * @param task Task, e.g. registering a channel or changing interest ops.
+     */
+    public void execute(@NonNull Runnable task) {
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    /**
+     * @return True if called on the selector thread.
+     */
+    public boolean isSelectorThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Register a non-blocking channel, on the selector thread only.
+     *
+     * @param channel Channel in non-blocking mode.
+     * @param ops     Interest ops.
+     * @param handler Called whenever the channel is ready.
+     * @return Key of the channel.
+     * @throws ClosedChannelException If channel is closed.
+     */
+    public SelectionKey register(@NonNull SelectableChannel channel, int ops, @NonNull Handler handler)
+            throws ClosedChannelException {
+        return channel.register(mSelector, ops, handler);
+    }
+
+    /**
+     * Buffer to read into, on the selector thread only. Whatever a handler leaves in it is
+     * overwritten by the next read, so handlers copy out partial frames they keep.
+     *
+     * @return Cleared read buffer.
+     */
+    public ByteBuffer getReadBuffer() {
+        mReadBuffer.clear();
+        return mReadBuffer;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                mSelector.select();
+            } catch (IOException e) {
+                Log.e(TAG, "Select failed.", e);
+                continue;
+            }
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Task failed.", e);
+                }
+            }
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    ((Handler) key.attachment()).onReady(key);
+                } catch (CancelledKeyException e) {
+                    /* Channel was closed by an earlier handler of this round */
+                }
+            }
+        }
+    }
+}
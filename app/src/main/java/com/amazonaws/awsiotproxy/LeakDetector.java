@@ -0,0 +1,103 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Debug helper which reports pooled objects that were garbage collected without having been
+ * released, together with where they were obtained. Tracking costs a stack trace per object,
+ * so it is meant for debug builds only.
+ */
+public final class LeakDetector {
+    private static final String TAG = "LeakDetector";
+    private static volatile boolean sEnabled;
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<>();
+    /* Keeps trackers reachable until their object is released or collected */
+    private static final Set<Tracker> TRACKERS = Collections.synchronizedSet(new HashSet<Tracker>());
+    private static final AtomicLong LEAK_COUNT = new AtomicLong();
+
+    public static final class Tracker extends WeakReference<Object> {
+        private final Throwable mObtainedAt;
+
+        private Tracker(Object object, String description) {
+            super(object, QUEUE);
+            mObtainedAt = new Throwable(description + " obtained here was never released");
+        }
+
+        /**
+         * Mark the tracked object as released.
+         */
+        public void close() {
+            TRACKERS.remove(this);
+            clear();
+        }
+    }
+
+    private LeakDetector() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Start tracking an object just taken from a pool.
+     *
+     * @param object      Pooled object.
+     * @param description Kind of object for the report.
+     * @return Tracker to close on release, null if detection is disabled.
+     */
+    public static Tracker track(@NonNull Object object, @NonNull String description) {
+        if (!sEnabled) {
+            return null;
+        }
+        report();
+        Tracker tracker = new Tracker(object, description);
+        TRACKERS.add(tracker);
+        return tracker;
+    }
+
+    /**
+     * Log objects found leaked since the last call.
+     *
+     * @return Number of leaks found so far.
+     */
+    public static long report() {
+        Tracker tracker;
+        while ((tracker = (Tracker) QUEUE.poll()) != null) {
+            if (TRACKERS.remove(tracker)) {
+                LEAK_COUNT.incrementAndGet();
+                Log.w(TAG, "Leak detected", tracker.mObtainedAt);
+            }
+        }
+        return LEAK_COUNT.get();
+    }
+}
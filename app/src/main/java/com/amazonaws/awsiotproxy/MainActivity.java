@@ -21,6 +21,8 @@
 package com.amazonaws.awsiotproxy;
 
 import android.Manifest;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -37,97 +39,155 @@ import com.amazonaws.regions.Region;
 import com.amazonaws.services.iot.AWSIotClient;
 import com.amazonaws.services.iot.model.AttachPolicyRequest;
 
-import java.util.concurrent.CountDownLatch;
+import java.net.InetAddress;
 
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
+    private static final String PREFS_NAME = "proxy_startup";
+    private static final String KEY_POLICY_ATTACHED = "policy_attached/";
     private HandlerThread mAuthHandlerThread;
     private Handler mAuthHandler;
+    private StartupTrace mStartupTrace;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mStartupTrace = new StartupTrace(this);
+        LeakDetector.setEnabled(BuildConfig.DEBUG);
         setContentView(R.layout.main_activity);
         if (savedInstanceState == null) {
             getSupportFragmentManager().beginTransaction()
                     .replace(R.id.container, MainFragment.newInstance())
                     .commitNow();
         }
+        mStartupTrace.mark("ui");
         if (mAuthHandlerThread == null) {
             mAuthHandlerThread = new HandlerThread("SignInThread");
             mAuthHandlerThread.start();
             mAuthHandler = new Handler(mAuthHandlerThread.getLooper());
         }
-        final CountDownLatch latch = new CountDownLatch(1);
+        prewarmBrokerConnection();
+        /* AWSMobileClient restores cached credentials in background, UI is not blocked meanwhile */
         AWSMobileClient.getInstance().initialize(getApplicationContext(), new Callback<UserStateDetails>() {
 
                     @Override
                     public void onResult(UserStateDetails userStateDetails) {
                         Log.i(TAG, "AWSMobileClient initialization onResult: " + userStateDetails.getUserState());
-                        latch.countDown();
+                        mStartupTrace.mark("init");
+                        mAuthHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                signInAndAttachPolicy();
+                            }
+                        });
                     }
 
                     @Override
                     public void onError(Exception e) {
                         Log.e(TAG, "Initialization error.", e);
+                        mStartupTrace.mark("init_failed");
+                        mStartupTrace.finish();
                     }
                 }
         );
-        Log.d(TAG, "waiting for AWSMobileClient Initialization");
-        try {
-            latch.await();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        requestPermissions(new String[]{Manifest.
+                permission.ACCESS_FINE_LOCATION}, 1);
+    }
+
+    private void signInAndAttachPolicy() {
+        if (AWSMobileClient.getInstance().isSignedIn()) {
+            attachPolicy();
+        } else {
+            AWSMobileClient.getInstance().showSignIn(
+                    MainActivity.this,
+                    SignInUIOptions.builder()
+                            .nextActivity(null)
+                            .build(),
+                    new Callback<UserStateDetails>() {
+                        @Override
+                        public void onResult(UserStateDetails result) {
+                            Log.d(TAG, "onResult: " + result.getUserState());
+                            switch (result.getUserState()) {
+                                case SIGNED_IN:
+                                    Log.i(TAG, "logged in!");
+                                    attachPolicy();
+                                    break;
+                                case SIGNED_OUT:
+                                    Log.i(TAG, "onResult: User did not choose to sign-in");
+                                    mStartupTrace.mark("signed_out");
+                                    mStartupTrace.finish();
+                                    break;
+                                default:
+                                    AWSMobileClient.getInstance().signOut();
+                                    CloudReadiness.reset();
+                                    mStartupTrace.mark("signed_out");
+                                    mStartupTrace.finish();
+                                    break;
+                            }
+                        }
+
+                        @Override
+                        public void onError(Exception e) {
+                            Log.e(TAG, "onError: ", e);
+                            mStartupTrace.mark("sign_in_failed");
+                            mStartupTrace.finish();
+                        }
+                    }
+            );
         }
-        mAuthHandler.post(new Runnable() {
+    }
+
+    /**
+     * Resolve broker endpoint ahead of the first MQTT connect, so the system resolver has it
+     * cached when a thing connects. Credentials are fetched in attachPolicy().
+     */
+    private void prewarmBrokerConnection() {
+        new Thread(new Runnable() {
             @Override
             public void run() {
-                if (AWSMobileClient.getInstance().isSignedIn()) {
-                    attachPolicy();
-                } else {
-                    AWSMobileClient.getInstance().showSignIn(
-                            MainActivity.this,
-                            SignInUIOptions.builder()
-                                    .nextActivity(null)
-                                    .build(),
-                            new Callback<UserStateDetails>() {
-                                @Override
-                                public void onResult(UserStateDetails result) {
-                                    Log.d(TAG, "onResult: " + result.getUserState());
-                                    switch (result.getUserState()) {
-                                        case SIGNED_IN:
-                                            Log.i(TAG, "logged in!");
-                                            attachPolicy();
-                                            break;
-                                        case SIGNED_OUT:
-                                            Log.i(TAG, "onResult: User did not choose to sign-in");
-                                            break;
-                                        default:
-                                            AWSMobileClient.getInstance().signOut();
-                                            break;
-                                    }
-                                }
-
-                                @Override
-                                public void onError(Exception e) {
-                                    Log.e(TAG, "onError: ", e);
-                                }
-                            }
-                    );
+                try {
+                    InetAddress.getAllByName(ProxyConfig.brokerEndpoint);
+                    mStartupTrace.mark("dns");
+                } catch (Exception e) {
+                    Log.w(TAG, "Cannot resolve broker endpoint: " + e.getMessage());
                 }
             }
-        });
-        requestPermissions(new String[]{Manifest.
-                permission.ACCESS_FINE_LOCATION}, 1);
+        }, "BrokerPrewarmThread").start();
     }
 
     private void attachPolicy() {
-        AWSIotClient awsIotClient = new AWSIotClient(AWSMobileClient.getInstance());
-        awsIotClient.setRegion(Region.getRegion(ProxyConfig.region));
+        String identityId = AWSMobileClient.getInstance().getIdentityId();
+        SharedPreferences preferences = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String attachedKey = KEY_POLICY_ATTACHED + ProxyConfig.policy + "/" + identityId;
+        try {
+            AWSMobileClient.getInstance().getCredentials();
+            mStartupTrace.mark("credentials");
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot get credentials: " + e.getMessage());
+        }
+        String phase = "policy";
+        if (preferences.getBoolean(attachedKey, false)) {
+            Log.i(TAG, "Policy already attached to " + identityId);
+        } else {
+            AWSIotClient awsIotClient = new AWSIotClient(AWSMobileClient.getInstance());
+            awsIotClient.setRegion(Region.getRegion(ProxyConfig.region));
 
-        AttachPolicyRequest attachPolicyRequest = new AttachPolicyRequest()
-                .withPolicyName(ProxyConfig.policy)
-                .withTarget(AWSMobileClient.getInstance().getIdentityId());
-        awsIotClient.attachPolicy(attachPolicyRequest);
+            AttachPolicyRequest attachPolicyRequest = new AttachPolicyRequest()
+                    .withPolicyName(ProxyConfig.policy)
+                    .withTarget(identityId);
+            try {
+                awsIotClient.attachPolicy(attachPolicyRequest);
+                preferences.edit().putBoolean(attachedKey, true).apply();
+            } catch (Exception e) {
+                Log.e(TAG, "Attach policy error.", e);
+                phase = "policy_failed";
+            }
+        }
+        mStartupTrace.mark(phase);
+        mStartupTrace.finish();
+        if ("policy".equals(phase)) {
+            /* Things connected meanwhile get their AWS IoT connection now */
+            CloudReadiness.setReady();
+        }
     }
 }
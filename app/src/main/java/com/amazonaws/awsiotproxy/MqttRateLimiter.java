@@ -0,0 +1,298 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shapes publish and subscribe requests of one MQTT connection with token buckets, so bursts
+ * from devices do not exceed AWS IoT core limits and get the connection throttled or closed.
+ * Requests over the limit are deferred in order and handed to the sink once tokens are back,
+ * only when the deferred queue overflows is the oldest request of the lowest lane dropped.
+ * Deferred requests are drained by priority lane, a request is never held back by deferred
+ * requests of lower lanes.
+ */
+public class MqttRateLimiter {
+    private static final String TAG = "MqttRateLimiter";
+    /* AWS IoT core default limit of publish requests per second per connection */
+    public static final int IOT_PUBLISH_PER_SECOND = 100;
+    /* Kept well below AWS IoT core subscribe limits, devices subscribe rarely */
+    public static final int IOT_SUBSCRIBE_PER_SECOND = 10;
+    private static final int MAX_DEFERRED = 256;
+    private static final int MAX_TOPIC_BUCKETS = 256;
+    private final Sink mSink;
+    private final List<TopicLimit> mTopicLimits = new CopyOnWriteArrayList<>();
+    private final ArrayDeque<CustomizedMqttEnvelope>[] mDeferred = newLanes();
+    private int mDeferredDepth;
+    private final Map<String, TokenBucket> mTopicBuckets = new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+            return size() > MAX_TOPIC_BUCKETS;
+        }
+    };
+    private TokenBucket mPublishBucket = new TokenBucket(IOT_PUBLISH_PER_SECOND, IOT_PUBLISH_PER_SECOND);
+    private TokenBucket mSubscribeBucket = new TokenBucket(IOT_SUBSCRIBE_PER_SECOND, IOT_SUBSCRIBE_PER_SECOND);
+    private boolean mDrainScheduled;
+    private long mDeferredCount;
+    private long mDroppedCount;
+
+    public interface Sink {
+        /**
+         * Called with a deferred request once it fits the limits.
+         *
+         * @param envelope Publish, subscribe or unsubscribe envelope.
+         * @return False if the request cannot be sent now, it is kept and retried on drain().
+         */
+        boolean onAdmitted(CustomizedMqttEnvelope envelope);
+    }
+
+    private static class TopicLimit {
+        private final String mTopicFilter;
+        private final double mRatePerSecond;
+        private final int mBurst;
+
+        TopicLimit(String topicFilter, double ratePerSecond, int burst) {
+            mTopicFilter = topicFilter;
+            mRatePerSecond = ratePerSecond;
+            mBurst = burst;
+        }
+    }
+
+    /**
+     * Instantiates a new MqttRateLimiter with AWS IoT core default per connection limits.
+     *
+     * @param sink Receives deferred requests once admitted.
+     */
+    public MqttRateLimiter(@NonNull Sink sink) {
+        mSink = sink;
+    }
+
+    /**
+     * @param ratePerSecond Publishes per second over all topics.
+     * @param burst         Publishes which may be sent at once.
+     */
+    public synchronized void setPublishRate(double ratePerSecond, int burst) {
+        mPublishBucket = new TokenBucket(ratePerSecond, burst);
+    }
+
+    /**
+     * @param ratePerSecond Subscribes and unsubscribes per second.
+     * @param burst         Subscribes and unsubscribes which may be sent at once.
+     */
+    public synchronized void setSubscribeRate(double ratePerSecond, int burst) {
+        mSubscribeBucket = new TokenBucket(ratePerSecond, burst);
+    }
+
+    /**
+     * Limit publishes to every topic matching filter, each topic gets its own bucket.
+     *
+     * @param topicFilter   Topic filter, may contain wildcards.
+     * @param ratePerSecond Publishes per second per topic.
+     * @param burst         Publishes per topic which may be sent at once.
+     */
+    public void addTopicLimit(@NonNull String topicFilter, double ratePerSecond, int burst) {
+        mTopicLimits.add(new TopicLimit(topicFilter, ratePerSecond, burst));
+    }
+
+    /**
+     * Ask to send a request now.
+     *
+     * @param envelope Publish, subscribe or unsubscribe envelope.
+     * @return True if it may be sent right away, false if it was deferred.
+     */
+    public boolean admit(@NonNull CustomizedMqttEnvelope envelope) {
+        synchronized (this) {
+            if (!hasDeferredAtOrAbove(envelope.priority) && tryTake(envelope)) {
+                return true;
+            }
+            if (mDeferredDepth >= MAX_DEFERRED) {
+                CustomizedMqttEnvelope dropped = pollLowest();
+                mDroppedCount++;
+                Log.w(TAG, "Too many deferred requests, dropped one on topic: " + dropped.topic);
+                dropped.release();
+            }
+            mDeferred[envelope.priority.ordinal()].add(envelope);
+            mDeferredDepth++;
+            mDeferredCount++;
+        }
+        scheduleDrain(0);
+        return false;
+    }
+
+    /**
+     * Hand deferred requests which fit the limits to the sink, e.g. once the connection is back.
+     */
+    public void drain() {
+        List<CustomizedMqttEnvelope> admitted = new ArrayList<>();
+        long waitMs = Long.MAX_VALUE;
+        synchronized (this) {
+            mDrainScheduled = false;
+            /* Once a topic is over its limit, later requests on it wait as well to keep order */
+            Set<String> blockedTopics = new HashSet<>();
+            for (ArrayDeque<CustomizedMqttEnvelope> lane : mDeferred) {
+                Iterator<CustomizedMqttEnvelope> iterator = lane.iterator();
+                while (iterator.hasNext()) {
+                    CustomizedMqttEnvelope envelope = iterator.next();
+                    if (blockedTopics.contains(envelope.topic)) {
+                        continue;
+                    }
+                    if (tryTake(envelope)) {
+                        iterator.remove();
+                        mDeferredDepth--;
+                        admitted.add(envelope);
+                    } else {
+                        blockedTopics.add(envelope.topic);
+                        waitMs = Math.min(waitMs, getWaitMs(envelope));
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < admitted.size(); i++) {
+            if (!mSink.onAdmitted(admitted.get(i))) {
+                synchronized (this) {
+                    for (int j = admitted.size() - 1; j >= i; j--) {
+                        mDeferred[admitted.get(j).priority.ordinal()].addFirst(admitted.get(j));
+                        mDeferredDepth++;
+                    }
+                }
+                return;
+            }
+        }
+        if (waitMs != Long.MAX_VALUE) {
+            scheduleDrain(waitMs);
+        }
+    }
+
+    /**
+     * @return Requests currently waiting for tokens.
+     */
+    public synchronized int getDeferredDepth() {
+        return mDeferredDepth;
+    }
+
+    /**
+     * @return Requests deferred so far.
+     */
+    public synchronized long getDeferredCount() {
+        return mDeferredCount;
+    }
+
+    /**
+     * @return Deferred requests dropped because the deferred queue was full.
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<CustomizedMqttEnvelope>[] newLanes() {
+        ArrayDeque<CustomizedMqttEnvelope>[] lanes = new ArrayDeque[CustomizedMqttEnvelope.Priority.values().length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+        return lanes;
+    }
+
+    private boolean hasDeferredAtOrAbove(CustomizedMqttEnvelope.Priority priority) {
+        for (int i = 0; i <= priority.ordinal(); i++) {
+            if (!mDeferred[i].isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private CustomizedMqttEnvelope pollLowest() {
+        for (int i = mDeferred.length - 1; i >= 0; i--) {
+            if (!mDeferred[i].isEmpty()) {
+                mDeferredDepth--;
+                return mDeferred[i].poll();
+            }
+        }
+        return null;
+    }
+
+    private void scheduleDrain(long delayMs) {
+        synchronized (this) {
+            if (mDrainScheduled) {
+                return;
+            }
+            mDrainScheduled = true;
+        }
+        ProxyScheduler.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, Math.max(1, delayMs), TimeUnit.MILLISECONDS);
+    }
+
+    private boolean tryTake(CustomizedMqttEnvelope envelope) {
+        if (envelope.envelopeType != CustomizedMqttEnvelope.CustomizedMqttEnvelopeType.Publish) {
+            return mSubscribeBucket.tryTake();
+        }
+        TokenBucket topicBucket = getTopicBucket(envelope.topic);
+        if (!mPublishBucket.hasToken() || (topicBucket != null && !topicBucket.hasToken())) {
+            return false;
+        }
+        mPublishBucket.tryTake();
+        if (topicBucket != null) {
+            topicBucket.tryTake();
+        }
+        return true;
+    }
+
+    private long getWaitMs(CustomizedMqttEnvelope envelope) {
+        if (envelope.envelopeType != CustomizedMqttEnvelope.CustomizedMqttEnvelopeType.Publish) {
+            return mSubscribeBucket.getWaitMs();
+        }
+        TokenBucket topicBucket = getTopicBucket(envelope.topic);
+        return Math.max(mPublishBucket.getWaitMs(), topicBucket == null ? 0 : topicBucket.getWaitMs());
+    }
+
+    private TokenBucket getTopicBucket(String topic) {
+        TokenBucket bucket = mTopicBuckets.get(topic);
+        if (bucket != null) {
+            return bucket;
+        }
+        for (TopicLimit limit : mTopicLimits) {
+            if (MqttTopics.matches(limit.mTopicFilter, topic)) {
+                bucket = new TokenBucket(limit.mRatePerSecond, limit.mBurst);
+                mTopicBuckets.put(topic, bucket);
+                return bucket;
+            }
+        }
+        return null;
+    }
+}
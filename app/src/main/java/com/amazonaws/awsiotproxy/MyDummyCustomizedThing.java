@@ -58,6 +58,8 @@ public class MyDummyCustomizedThing extends CustomizedThing {
                 @Override
                 public boolean handleMessage(@NonNull Message msg) {
                     byte[] encodedBytes = (byte[]) msg.obj;
+                    recordFrame(msg.what == TO_APP ? TrafficRecorder.Direction.FROM_THING
+                            : TrafficRecorder.Direction.TO_THING, encodedBytes);
                     MyTLV tlvMsg = new MyTLV(encodedBytes);
                     if (msg.what == TO_APP && getMqttConnectionState() == AmazonFreeRTOSConstants.MqttConnectionState.MQTT_Connected) {
                         CustomizedMqttEnvelope envelope = tlvMsg.toCustomizedMqttEnvelope();
@@ -67,13 +69,7 @@ public class MyDummyCustomizedThing extends CustomizedThing {
                         if (envelope == null) {
                             return false;
                         }
-                        switch (envelope.envelopeType) {
-                            case Publish:
-                                publishToIoT(envelope.topic, envelope.qoS, envelope.payload);
-                                break;
-                            default:
-                                break;
-                        }
+                        handleEnvelopeFromThing(envelope);
                     } else if (msg.what == TO_DEVICE) {
                         /**
                          * App tp Dummy device
@@ -134,42 +130,17 @@ public class MyDummyCustomizedThing extends CustomizedThing {
         Log.i(TAG, "Disconnected from dummy device");
     }
 
-    @Override
-    protected void sendAckToThing(final CustomizedMqttEnvelope message) {
-        /**
-         * Here we implement the adapter which transfer ACK message into dummy local
-         * protocol(Customized TLV)
-         */
-        MyTLV tlv;
-        switch (message.envelopeType) {
-            case Publish:
-                tlv = new MyTLV(MyTLV.TLVType.PUBACK, message.payload);
-                break;
-            case Subscribe:
-                tlv = new MyTLV(MyTLV.TLVType.SUBACK, message.topic.getBytes());
-                break;
-            case Unsubscribe:
-                tlv = new MyTLV(MyTLV.TLVType.UNSUBACK, message.topic.getBytes());
-                break;
-            default:
-                Log.e(TAG, "Unexpected message type");
-                return;
-        }
-        sendDataToThing(tlv.encodedBytesStream);
-    }
-
     @Override
     protected void publishToThing(final CustomizedMqttEnvelope message) {
         /**
          * Here we implement the adapter which transfer CustomizedMqttEnvelope into
          * dummy local protocol(Customized TLV)
          */
-        if (message.envelopeType != CustomizedMqttEnvelope.CustomizedMqttEnvelopeType.Publish) {
-            Log.e(TAG, "Unexpected message type");
+        byte[] frame = encodeForThing(message);
+        if (frame == null) {
             return;
         }
-        MyTLV tlv = new MyTLV(message);
-        sendDataToThing(tlv.encodedBytesStream);
+        sendDataToThing(frame);
         new Thread(new Runnable() {
             @Override
             public void run() {
@@ -185,7 +156,8 @@ public class MyDummyCustomizedThing extends CustomizedThing {
         }).start();
     }
 
-    private void sendDataToThing(final byte[] data) {
+    @Override
+    protected void sendDataToThing(final byte[] data) {
         /**
          * Here we implement the logic to send encoded bytes stream back to thing.
          */
@@ -25,9 +25,8 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
-import com.google.gson.JsonObject;
 
-import java.util.Locale;
+import java.nio.charset.Charset;
 
 /**
  * This is an example to implement private local protocol.
@@ -35,9 +34,14 @@ import java.util.Locale;
 public class MyTLV {
     private static final String TAG = "MyTLV";
     private static final int HEAD_SIZE = 2;
+    private static final int MESSAGE_ID_SIZE = 2;
+    private static final int MAX_MESSAGE_ID = 0xFFFF;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final TopicCache TOPIC_CACHE = new TopicCache();
     private TLVType mType;
     private int mLength;
     private byte[] mValue;
+    private int mValueOffset;
     public byte[] encodedBytesStream;
 
     public enum TLVType {
@@ -48,6 +52,14 @@ public class MyTLV {
         PUB,
         SUB,
         UNSUB,
+        PUBACK_RANGE,
+        BULK_BEGIN,
+        BULK_DATA,
+        BULK_ACK,
+        HELLO,
+        CAPS,
+        /* Publish to thing with a binary payload, e.g. compressed */
+        PUB_BINARY,
     }
 
     public MyTLV(TLVType type, byte[] value) {
@@ -73,54 +85,181 @@ public class MyTLV {
      * @param envelope Mqtt message.
      */
     public MyTLV(CustomizedMqttEnvelope envelope) {
+        this(envelope, false);
+    }
+
+    /**
+     * Base on the received publish message generates the TLV package send to device.
+     *
+     * @param envelope Mqtt message.
+     * @param binary   True to send a PUB_BINARY frame, only for things which negotiated it.
+     */
+    public MyTLV(CustomizedMqttEnvelope envelope, boolean binary) {
         if (envelope.envelopeType != CustomizedMqttEnvelope.CustomizedMqttEnvelopeType.Publish) {
             mType = TLVType.INVALID;
             return;
         }
-        String raw;
-        raw = String.format(Locale.US, "[%s]%d{%s}", envelope.topic, envelope.qoS.ordinal(), new String(envelope.payload));
+        byte[] topic = envelope.topic.getBytes(UTF_8);
+        if (binary) {
+            /* qos(1) topic length(1) topic payload, binary payloads may contain '}' */
+            byte[] raw = new byte[2 + topic.length + envelope.payload.length];
+            raw[0] = (byte) envelope.qoS.ordinal();
+            raw[1] = (byte) topic.length;
+            System.arraycopy(topic, 0, raw, 2, topic.length);
+            System.arraycopy(envelope.payload, 0, raw, 2 + topic.length, envelope.payload.length);
+            mType = TLVType.PUB_BINARY;
+            mValue = raw;
+            mLength = HEAD_SIZE + mValue.length;
+            this.encode();
+            return;
+        }
+        /* "[topic]qos{payload}" */
+        byte[] raw = new byte[topic.length + envelope.payload.length + 5];
+        raw[0] = '[';
+        System.arraycopy(topic, 0, raw, 1, topic.length);
+        raw[topic.length + 1] = ']';
+        raw[topic.length + 2] = (byte) ('0' + envelope.qoS.ordinal());
+        raw[topic.length + 3] = '{';
+        System.arraycopy(envelope.payload, 0, raw, topic.length + 4, envelope.payload.length);
+        raw[raw.length - 1] = '}';
 
         mType = TLVType.PUB;
-        mValue = raw.getBytes();
+        mValue = raw;
         mLength = HEAD_SIZE + mValue.length;
         this.encode();
     }
 
+    /**
+     * Decode a request received from thing.
+     *
+     * @return Pooled envelope the caller has to release, or null if the frame is malformed.
+     */
     public CustomizedMqttEnvelope toCustomizedMqttEnvelope() {
 
         if (mType != TLVType.PUB && mType != TLVType.SUB && mType != TLVType.UNSUB) {
             return null;
         }
 
-        String raw = new String(mValue);
-        String topic = raw.substring(raw.indexOf("[") + 1, raw.indexOf("]"));
-        JsonObject jsonObject = new JsonObject();
-        CustomizedMqttEnvelope.CustomizedMqttEnvelopeType msgType;
-        AWSIotMqttQos qos;
+        /* "[topic]qos#id{key:value;key:value}", message id and payload are optional */
+        int end = mValueOffset + mLength - HEAD_SIZE;
+        int topicStart = TlvJsonWriter.indexOf(mValue, '[', mValueOffset, end) + 1;
+        int topicEnd = TlvJsonWriter.indexOf(mValue, ']', topicStart, end);
+        if (topicStart > end || topicEnd == end) {
+            Log.e(TAG, "Malformed TLV value, no topic");
+            return null;
+        }
+        String topic = TOPIC_CACHE.intern(mValue, topicStart, topicEnd);
+        int payloadStart = TlvJsonWriter.indexOf(mValue, '{', topicEnd, end);
+        int payloadEnd = TlvJsonWriter.indexOf(mValue, '}', payloadStart, end);
 
-        try {
-            int qosInt = Integer.parseInt(raw.substring(raw.indexOf("]") + 1, raw.indexOf("]") + 2));
-            /* Here we made json string base on raw payload */
-            String[] pairs = (raw.substring(raw.indexOf("{") + 1, raw.indexOf("}"))).split(";");
-            for (String pair : pairs) {
-                String[] keyValue = pair.split(":");
-                jsonObject.addProperty(keyValue[0], keyValue[1]);
-            }
-            qos = AWSIotMqttQos.values()[qosInt];
-        } catch (Exception e) {
-            qos = AWSIotMqttQos.QOS0;
+        AWSIotMqttQos qos = AWSIotMqttQos.QOS0;
+        if (topicEnd + 1 < end && mValue[topicEnd + 1] == '1') {
+            qos = AWSIotMqttQos.QOS1;
         }
 
+        CustomizedMqttEnvelope envelope;
         switch (mType) {
             case PUB:
-                return CustomizedMqttEnvelope.newPublishEnvelope(topic, qos, jsonObject.toString().getBytes());
+                /* Here we made json string base on raw payload */
+                envelope = CustomizedMqttEnvelope.obtain(topic, qos, CustomizedMqttEnvelope.CustomizedMqttEnvelopeType.Publish,
+                        TlvJsonWriter.pairsToJson(mValue, Math.min(payloadStart + 1, end), payloadEnd));
+                break;
             case SUB:
-                return CustomizedMqttEnvelope.newSubscribeEnvelope(topic, qos);
+                envelope = CustomizedMqttEnvelope.obtain(topic, qos, CustomizedMqttEnvelope.CustomizedMqttEnvelopeType.Subscribe, null);
+                break;
             case UNSUB:
-                return CustomizedMqttEnvelope.newUnsubscribeEnvelope(topic);
+                envelope = CustomizedMqttEnvelope.obtain(topic, AWSIotMqttQos.QOS0, CustomizedMqttEnvelope.CustomizedMqttEnvelopeType.Unsubscribe, null);
+                break;
             default:
                 return null;
         }
+        return envelope.withMessageId(parseMessageId(mValue, topicEnd, payloadStart));
+    }
+
+    /**
+     * Generates the ACK package send to device for a publish/subscribe/unsubscribe request.
+     * If the device tagged its request with a message id (e.g. "[topic]1#42{...}") the ACK
+     * only carries that 2 bytes id, otherwise the legacy ACK which echoes payload/topic is used.
+     *
+     * @param envelope Message passed when publish/subscribe/unsubscribe.
+     * @return ACK package, or null for unexpected envelope type.
+     */
+    public static MyTLV newAck(CustomizedMqttEnvelope envelope) {
+        TLVType type;
+        byte[] legacyValue;
+        switch (envelope.envelopeType) {
+            case Publish:
+                type = TLVType.PUBACK;
+                legacyValue = envelope.thingPayload != null ? envelope.thingPayload : envelope.payload;
+                break;
+            case Subscribe:
+                type = TLVType.SUBACK;
+                legacyValue = envelope.topic.getBytes();
+                break;
+            case Unsubscribe:
+                type = TLVType.UNSUBACK;
+                legacyValue = envelope.topic.getBytes();
+                break;
+            default:
+                return null;
+        }
+        if (!envelope.hasMessageId()) {
+            return new MyTLV(type, legacyValue);
+        }
+        return newIdAck(type, envelope.messageId);
+    }
+
+    /**
+     * Generates a compact PUBACK package carrying only the message id.
+     *
+     * @param messageId Acknowledged message id.
+     * @return ACK package.
+     */
+    public static MyTLV newPubAck(int messageId) {
+        return newIdAck(TLVType.PUBACK, messageId);
+    }
+
+    /**
+     * Generates a cumulative PUBACK package which confirms every message id in
+     * [firstMessageId, lastMessageId] with a single frame.
+     *
+     * @param firstMessageId First acknowledged message id.
+     * @param lastMessageId  Last acknowledged message id, inclusive.
+     * @return ACK package.
+     */
+    public static MyTLV newAckRange(int firstMessageId, int lastMessageId) {
+        byte[] value = new byte[MESSAGE_ID_SIZE * 2];
+        putMessageId(value, 0, firstMessageId);
+        putMessageId(value, MESSAGE_ID_SIZE, lastMessageId);
+        return new MyTLV(TLVType.PUBACK_RANGE, value);
+    }
+
+    private static MyTLV newIdAck(TLVType type, int messageId) {
+        byte[] value = new byte[MESSAGE_ID_SIZE];
+        putMessageId(value, 0, messageId);
+        return new MyTLV(type, value);
+    }
+
+    private static void putMessageId(byte[] dst, int offset, int messageId) {
+        dst[offset] = (byte) (messageId >> 8);
+        dst[offset + 1] = (byte) messageId;
+    }
+
+    /**
+     * Message id is optional and follows QoS as '#' + decimal digits, before the payload.
+     */
+    private static int parseMessageId(byte[] value, int topicEnd, int payloadStart) {
+        int hash = TlvJsonWriter.indexOf(value, '#', topicEnd, payloadStart);
+        int messageId = 0;
+        int pos = hash + 1;
+        while (pos < payloadStart && value[pos] >= '0' && value[pos] <= '9') {
+            messageId = messageId * 10 + (value[pos] - '0');
+            if (messageId > MAX_MESSAGE_ID) {
+                return CustomizedMqttEnvelope.NO_MESSAGE_ID;
+            }
+            pos++;
+        }
+        return pos == hash + 1 ? CustomizedMqttEnvelope.NO_MESSAGE_ID : messageId;
     }
 
     private void encode() {
@@ -139,8 +278,12 @@ public class MyTLV {
         try {
             mType = TLVType.values()[encodedBytesStream[0]];
             mLength = encodedBytesStream.length;
-            mValue = new byte[mLength - HEAD_SIZE];
-            System.arraycopy(encodedBytesStream, HEAD_SIZE, mValue, 0, mValue.length);
+            if (mLength < HEAD_SIZE) {
+                throw new IllegalArgumentException("Frame shorter than header");
+            }
+            /* Value is read in place, no copy */
+            mValue = encodedBytesStream;
+            mValueOffset = HEAD_SIZE;
         } catch (Exception e) {
             Log.e(TAG, "decode failed");
             mType = TLVType.INVALID;
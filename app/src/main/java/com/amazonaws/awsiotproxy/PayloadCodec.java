@@ -0,0 +1,163 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed payload format shared by proxy, devices and backends. This file has no Android
+ * dependency so backends can inflate payloads with the same class.
+ * <p>
+ * A compressed payload starts with MAGIC, which JSON and TLV payloads never start with, then
+ * a method byte, a dictionary id byte for METHOD_DEFLATE_DICTIONARY, then raw deflate data.
+ */
+public final class PayloadCodec {
+    public static final byte MAGIC = 0x1B;
+    public static final int METHOD_DEFLATE = 1;
+    public static final int METHOD_DEFLATE_DICTIONARY = 2;
+    public static final int DEVICE_JSON_DICTIONARY_ID = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /* Strings most likely to appear in device JSON, most frequent last as deflate prefers near matches */
+    private static final byte[] DEVICE_JSON_DICTIONARY = ("{\"state\":{\"reported\":{\"desired\":"
+            + "{\"window_ms\":\"timestamp\":{\"min\":\"max\":\"mean\":\"count\":\"last\":"
+            + "\"message\":\"status\":\"}]}\",\"rssi\":\"-6\",\"bat\":\"9%\",\"humidity\":\"4.0"
+            + "{\"name\":\"esp32\",\"temp\":\"2.").getBytes(UTF_8);
+    private static final byte[][] DICTIONARIES = new byte[256][];
+
+    static {
+        DICTIONARIES[DEVICE_JSON_DICTIONARY_ID] = DEVICE_JSON_DICTIONARY;
+    }
+
+    private PayloadCodec() {
+    }
+
+    /**
+     * Register a preset dictionary, both ends have to register the same bytes under the same id.
+     *
+     * @param id         Dictionary id in [2, 255], 1 is the built in device JSON dictionary.
+     * @param dictionary Bytes likely to appear in payloads.
+     */
+    public static synchronized void registerDictionary(int id, byte[] dictionary) {
+        if (id <= DEVICE_JSON_DICTIONARY_ID || id > 255) {
+            throw new IllegalArgumentException("Dictionary id out of range: " + id);
+        }
+        DICTIONARIES[id] = dictionary.clone();
+    }
+
+    /**
+     * @param payload Payload to check.
+     * @return True if payload carries the compression header.
+     */
+    public static boolean isCompressed(byte[] payload) {
+        return payload != null && payload.length >= 2 && payload[0] == MAGIC
+                && (payload[1] == METHOD_DEFLATE || payload[1] == METHOD_DEFLATE_DICTIONARY);
+    }
+
+    /**
+     * Deflate a payload.
+     *
+     * @param payload      Payload to compress.
+     * @param level        Deflater level, e.g. Deflater.BEST_SPEED.
+     * @param dictionaryId Registered dictionary id, or 0 for plain deflate.
+     * @return Compressed payload with header, or payload itself if compressing did not shrink it.
+     */
+    public static byte[] compress(byte[] payload, int level, int dictionaryId) {
+        byte[] dictionary = dictionaryId == 0 ? null : getDictionary(dictionaryId);
+        int headerSize = dictionary == null ? 2 : 3;
+        byte[] out = new byte[headerSize + payload.length];
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(payload);
+            deflater.finish();
+            int size = headerSize;
+            while (!deflater.finished() && size < out.length) {
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            if (!deflater.finished()) {
+                return payload;
+            }
+            out[0] = MAGIC;
+            out[1] = (byte) (dictionary == null ? METHOD_DEFLATE : METHOD_DEFLATE_DICTIONARY);
+            if (dictionary != null) {
+                out[2] = (byte) dictionaryId;
+            }
+            return Arrays.copyOf(out, size);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Inflate a payload produced by compress().
+     *
+     * @param payload Payload, returned as is if it has no compression header.
+     * @return Original payload.
+     * @throws IOException If payload is corrupted or its dictionary is unknown.
+     */
+    public static byte[] decompress(byte[] payload) throws IOException {
+        if (!isCompressed(payload)) {
+            return payload;
+        }
+        int offset = 2;
+        Inflater inflater = new Inflater(true);
+        try {
+            if (payload[1] == METHOD_DEFLATE_DICTIONARY) {
+                if (payload.length < 3) {
+                    throw new IOException("Missing dictionary id.");
+                }
+                byte[] dictionary = getDictionary(payload[2] & 0xFF);
+                if (dictionary == null) {
+                    throw new IOException("Unknown dictionary " + (payload[2] & 0xFF));
+                }
+                inflater.setDictionary(dictionary);
+                offset = 3;
+            }
+            inflater.setInput(payload, offset, payload.length - offset);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 4);
+            byte[] buffer = new byte[512];
+            while (!inflater.finished()) {
+                int size = inflater.inflate(buffer);
+                if (size == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated payload.");
+                }
+                out.write(buffer, 0, size);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted payload.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static synchronized byte[] getDictionary(int id) {
+        return DICTIONARIES[id];
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses payloads of matched topics with PayloadCodec once they exceed a size threshold.
+ * Added as last uplink stage it compresses what is published to AWS IoT core, set with
+ * CustomizedThing.setDownlinkCompressor() it compresses what is published to thing.
+ */
+public class PayloadCompressor implements UplinkStage {
+    private final List<Rule> mRules = new CopyOnWriteArrayList<>();
+
+    public static class Rule {
+        private final String mTopicFilter;
+        private final int mMinSize;
+        private int mLevel = Deflater.BEST_SPEED;
+        private int mDictionaryId;
+
+        /**
+         * Instantiates a plain deflate rule.
+         *
+         * @param topicFilter Topics to compress, may contain wildcards.
+         * @param minSize     Smaller payloads are sent as is, deflate rarely pays off for them.
+         */
+        public Rule(@NonNull String topicFilter, int minSize) {
+            mTopicFilter = topicFilter;
+            mMinSize = minSize;
+        }
+
+        /**
+         * @param level Deflater level, BEST_SPEED by default.
+         * @return This rule.
+         */
+        public Rule level(int level) {
+            mLevel = level;
+            return this;
+        }
+
+        /**
+         * Use a preset dictionary, which shrinks small JSON payloads far better than plain deflate.
+         *
+         * @param dictionaryId Dictionary id registered with PayloadCodec on both ends.
+         * @return This rule.
+         */
+        public Rule dictionary(int dictionaryId) {
+            mDictionaryId = dictionaryId;
+            return this;
+        }
+    }
+
+    public PayloadCompressor addRule(@NonNull Rule rule) {
+        mRules.add(rule);
+        return this;
+    }
+
+    /**
+     * Compress a payload according to the first rule matching topic.
+     *
+     * @param topic   Topic payload is published to.
+     * @param payload Payload.
+     * @return Compressed payload, or payload itself if no rule applies or it did not shrink.
+     */
+    public byte[] compress(String topic, byte[] payload) {
+        if (payload == null || PayloadCodec.isCompressed(payload)) {
+            return payload;
+        }
+        for (Rule rule : mRules) {
+            if (MqttTopics.matches(rule.mTopicFilter, topic)) {
+                if (payload.length < rule.mMinSize) {
+                    return payload;
+                }
+                return PayloadCodec.compress(payload, rule.mLevel, rule.mDictionaryId);
+            }
+        }
+        return payload;
+    }
+
+    @Override
+    public boolean process(CustomizedMqttEnvelope envelope, Next next) {
+        /* compress() returns a new array, the thing's payload stays intact for its ack */
+        envelope.payload = compress(envelope.topic, envelope.payload);
+        next.publish(envelope);
+        return true;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import androidx.annotation.NonNull;
+
+import com.amazonaws.awsiotproxy.CustomizedMqttEnvelope.Priority;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Classifies envelopes into priority lanes by topic or payload content, and keeps latency of
+ * every lane against its SLO from the moment proxy received an envelope until it was handed
+ * to AWS IoT core or to thing.
+ */
+public class PriorityLanes {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private final List<Rule> mRules = new CopyOnWriteArrayList<>();
+    private final long[] mSloMs = new long[]{200, 2000, 30000};
+    private final LaneStats[] mUplinkStats = newStats();
+    private final LaneStats[] mDownlinkStats = newStats();
+
+    /**
+     * Latency of one lane and direction.
+     */
+    public static class LaneStats {
+        private long mCount;
+        private long mOverSloCount;
+        private long mMaxMs;
+        private long mTotalMs;
+
+        synchronized void add(long latencyMs, long sloMs) {
+            mCount++;
+            mTotalMs += latencyMs;
+            mMaxMs = Math.max(mMaxMs, latencyMs);
+            if (latencyMs > sloMs) {
+                mOverSloCount++;
+            }
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized long getOverSloCount() {
+            return mOverSloCount;
+        }
+
+        public synchronized long getMaxMs() {
+            return mMaxMs;
+        }
+
+        public synchronized double getMeanMs() {
+            return mCount == 0 ? 0 : (double) mTotalMs / mCount;
+        }
+    }
+
+    private static class Rule {
+        private final String mTopicFilter;
+        private final byte[] mPayloadMarker;
+        private final Priority mPriority;
+
+        Rule(String topicFilter, byte[] payloadMarker, Priority priority) {
+            mTopicFilter = topicFilter;
+            mPayloadMarker = payloadMarker;
+            mPriority = priority;
+        }
+    }
+
+    /**
+     * Put envelopes on matching topics into a lane.
+     *
+     * @param topicFilter Topic filter, may contain wildcards.
+     * @param priority    Lane.
+     * @return This classifier.
+     */
+    public PriorityLanes addTopicRule(@NonNull String topicFilter, @NonNull Priority priority) {
+        mRules.add(new Rule(topicFilter, null, priority));
+        return this;
+    }
+
+    /**
+     * Put envelopes whose payload contains marker into a lane, e.g. "\"alarm\"".
+     *
+     * @param marker   Text to look for in payload.
+     * @param priority Lane.
+     * @return This classifier.
+     */
+    public PriorityLanes addPayloadRule(@NonNull String marker, @NonNull Priority priority) {
+        mRules.add(new Rule(null, marker.getBytes(UTF_8), priority));
+        return this;
+    }
+
+    /**
+     * @param priority Lane.
+     * @param sloMs    Latency the lane should stay within.
+     * @return This classifier.
+     */
+    public PriorityLanes setSlo(@NonNull Priority priority, long sloMs) {
+        mSloMs[priority.ordinal()] = sloMs;
+        return this;
+    }
+
+    /**
+     * Set envelope's priority from the first matching rule, NORMAL if none matches.
+     *
+     * @param envelope Envelope to classify.
+     */
+    public void classify(@NonNull CustomizedMqttEnvelope envelope) {
+        for (Rule rule : mRules) {
+            if (rule.mTopicFilter != null ? MqttTopics.matches(rule.mTopicFilter, envelope.topic)
+                    : contains(envelope.payload, rule.mPayloadMarker)) {
+                envelope.priority = rule.mPriority;
+                return;
+            }
+        }
+        envelope.priority = Priority.NORMAL;
+    }
+
+    /**
+     * Record that envelope left the proxy.
+     *
+     * @param envelope Envelope handed to AWS IoT core or to thing.
+     * @param uplink   True if it was published to AWS IoT core.
+     */
+    public void recordDelivered(@NonNull CustomizedMqttEnvelope envelope, boolean uplink) {
+        int lane = envelope.priority.ordinal();
+        (uplink ? mUplinkStats : mDownlinkStats)[lane].add(
+                System.currentTimeMillis() - envelope.receivedAtMs, mSloMs[lane]);
+    }
+
+    public LaneStats getUplinkStats(@NonNull Priority priority) {
+        return mUplinkStats[priority.ordinal()];
+    }
+
+    public LaneStats getDownlinkStats(@NonNull Priority priority) {
+        return mDownlinkStats[priority.ordinal()];
+    }
+
+    private static LaneStats[] newStats() {
+        LaneStats[] stats = new LaneStats[Priority.values().length];
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new LaneStats();
+        }
+        return stats;
+    }
+
+    private static boolean contains(byte[] payload, byte[] marker) {
+        if (payload == null) {
+            return false;
+        }
+        for (int i = 0; i <= payload.length - marker.length; i++) {
+            int j = 0;
+            while (j < marker.length && payload[i + j] == marker[j]) {
+                j++;
+            }
+            if (j == marker.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
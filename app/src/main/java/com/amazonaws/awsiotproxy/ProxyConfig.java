@@ -25,4 +25,27 @@ public final class ProxyConfig {
     public static final String brokerEndpoint = "Broker Endpoint";
     public static final String policy = "Policy Name";
     public static final String region = "AWS Region";
+    /* Capture frames exchanged with things into files/traffic.cap for TrafficReplayer */
+    public static final boolean captureTraffic = false;
+    /* Uplink rate shared fairly between things by FairUplinkScheduler, 0 to publish without it */
+    public static final long uplinkBytesPerSecond = 0;
+    /* Readings kept per thing and field by TimeSeriesStore in files/history, 0 to keep none */
+    public static final int historyCapacity = 4096;
+    public static final int historyMaxSeries = 64;
+    /* Latest cloud messages replayed to things when they subscribe, 0 to disable */
+    public static final int retainedCacheSize = 256;
+    public static final long retainedCacheTtlMs = 10 * 60 * 1000;
+    /* Topic things publish their full state on, synced to their device shadow, empty to disable */
+    public static final String shadowStateTopic = "";
+    /* Responses to thing requests on rpc/request/<method> cached for other things, 0 to disable */
+    public static final int rpcCacheSize = 128;
+    public static final long rpcCacheTtlMs = 60 * 1000;
+    /* Greet things with HELLO and use the faster modes they advertise in CAPS */
+    public static final boolean negotiateCapabilities = true;
+    /* Remember connected ESP32 things, connect to them without a scan and reconnect them when lost */
+    public static final boolean reconnectKnownDevices = true;
+    /* L2CAP channel PSM of ESP32 things for bulk data, 0 to use GATT only */
+    public static final int l2capPsm = 0;
+    /* Wi-Fi devices speaking TLV over TCP, as "host:port", e.g. "192.168.1.20:7000" */
+    public static final String[] lanDevices = {};
 }
\ No newline at end of file
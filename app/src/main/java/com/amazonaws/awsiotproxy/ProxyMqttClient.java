@@ -0,0 +1,86 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttClientStatusCallback;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttMessageDeliveryCallback;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttNewMessageCallback;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+/**
+ * MQTT operations CustomizedThing needs from its cloud connection. The default implementation
+ * talks to AWS IoT core, other implementations can stand in for it when there is no endpoint.
+ */
+public interface ProxyMqttClient {
+
+    interface Factory {
+        /**
+         * Create a MQTT client for a thing.
+         *
+         * @param clientId       Unique client ID.
+         * @param brokerEndpoint Broker endpoint.
+         * @param awsCredentials AWS credentials.
+         * @return New MQTT client, not connected yet.
+         */
+        ProxyMqttClient create(String clientId, String brokerEndpoint, AWSCredentialsProvider awsCredentials);
+    }
+
+    /**
+     * Connect to broker.
+     *
+     * @param statusCallback Called on every connection status change.
+     */
+    void connect(AWSIotMqttClientStatusCallback statusCallback);
+
+    /**
+     * Disconnect from broker.
+     */
+    void disconnect();
+
+    /**
+     * Publish a message to a specific topic.
+     *
+     * @param data             Payload to publish.
+     * @param topic            Topic to publish.
+     * @param qos              QoS.
+     * @param deliveryCallback Called when message is delivered or failed.
+     * @param userData         Passed back to delivery callback.
+     */
+    void publishData(byte[] data, String topic, AWSIotMqttQos qos,
+                     AWSIotMqttMessageDeliveryCallback deliveryCallback, Object userData);
+
+    /**
+     * Subscribe to a specific topic.
+     *
+     * @param topicFilter Topic filter, may contain '+' and '#' wildcards.
+     * @param qos         QoS.
+     * @param callback    Called on every message arrived on matched topics.
+     */
+    void subscribeToTopic(String topicFilter, AWSIotMqttQos qos, AWSIotMqttNewMessageCallback callback);
+
+    /**
+     * Unsubscribe from a specific topic.
+     *
+     * @param topicFilter Topic filter passed when subscribe.
+     */
+    void unsubscribeTopic(String topicFilter);
+}
@@ -0,0 +1,181 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Uplink stage which only forwards a reading when it differs meaningfully from the last
+ * forwarded one of the same thing and topic. Numeric fields can have an absolute and a percent
+ * dead-band; with both set a change has to exceed both. Any other change of a field is
+ * meaningful. A reading is forwarded anyway once the topic has been silent for max silence, as
+ * a heartbeat. The last report is kept for the most recently used 256 thing and topic pairs.
+ */
+public class ReportByExceptionFilter implements UplinkStage {
+    private static final int MAX_CACHED_TOPICS = 256;
+    private final List<Rule> mRules = new CopyOnWriteArrayList<>();
+    private final Map<String, LastReport> mLastReports = new LinkedHashMap<String, LastReport>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LastReport> eldest) {
+            return size() > MAX_CACHED_TOPICS;
+        }
+    };
+    private long mSuppressedCount;
+
+    public static class Rule {
+        private final String mTopicFilter;
+        private final long mMaxSilenceMs;
+        private final Map<String, Double> mAbsoluteDeadBands = new HashMap<>();
+        private final Map<String, Double> mPercentDeadBands = new HashMap<>();
+
+        /**
+         * Instantiates a new Rule.
+         *
+         * @param topicFilter  Topics to filter, may contain wildcards.
+         * @param maxSilenceMs Forward a reading at least this often, 0 for never.
+         */
+        public Rule(@NonNull String topicFilter, long maxSilenceMs) {
+            mTopicFilter = topicFilter;
+            mMaxSilenceMs = maxSilenceMs;
+        }
+
+        /**
+         * Ignore changes of field smaller than deadBand. Combined with percent(), a change
+         * has to exceed both dead-bands.
+         *
+         * @param field    Numeric field.
+         * @param deadBand Absolute dead-band.
+         * @return This rule.
+         */
+        public Rule absolute(String field, double deadBand) {
+            mAbsoluteDeadBands.put(field, deadBand);
+            return this;
+        }
+
+        /**
+         * Ignore changes of field smaller than percent of the last forwarded value. Combined
+         * with absolute(), a change has to exceed both dead-bands.
+         *
+         * @param field   Numeric field.
+         * @param percent Dead-band in percent.
+         * @return This rule.
+         */
+        public Rule percent(String field, double percent) {
+            mPercentDeadBands.put(field, percent);
+            return this;
+        }
+
+        private boolean isSignificant(String field, String lastValue, String value) {
+            if (value.equals(lastValue)) {
+                return false;
+            }
+            Double absolute = mAbsoluteDeadBands.get(field);
+            Double percent = mPercentDeadBands.get(field);
+            if (lastValue == null || (absolute == null && percent == null)) {
+                return true;
+            }
+            double last = TelemetryFields.parseNumber(lastValue);
+            double current = TelemetryFields.parseNumber(value);
+            if (Double.isNaN(last) || Double.isNaN(current)) {
+                return true;
+            }
+            double change = Math.abs(current - last);
+            if (absolute != null && change < absolute) {
+                return false;
+            }
+            return percent == null || change >= Math.abs(last) * percent / 100;
+        }
+    }
+
+    private static class LastReport {
+        Map<String, String> fields;
+        long timestampMs;
+    }
+
+    public ReportByExceptionFilter addRule(@NonNull Rule rule) {
+        mRules.add(rule);
+        return this;
+    }
+
+    /**
+     * @return Number of readings not forwarded so far.
+     */
+    public synchronized long getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    @Override
+    public boolean process(CustomizedMqttEnvelope envelope, Next next) {
+        Rule rule = findRule(envelope.topic);
+        Map<String, String> fields = rule == null ? null : TelemetryFields.parse(envelope.payload);
+        if (fields == null) {
+            next.publish(envelope);
+            return true;
+        }
+        long nowMs = System.currentTimeMillis();
+        synchronized (this) {
+            String key = envelope.thingId + "/" + envelope.topic;
+            LastReport last = mLastReports.get(key);
+            if (last != null && !isSignificant(rule, last, fields, nowMs)) {
+                mSuppressedCount++;
+                return false;
+            }
+            if (last == null) {
+                last = new LastReport();
+                mLastReports.put(key, last);
+            }
+            last.fields = fields;
+            last.timestampMs = nowMs;
+        }
+        next.publish(envelope);
+        return true;
+    }
+
+    private static boolean isSignificant(Rule rule, LastReport last, Map<String, String> fields, long nowMs) {
+        if (rule.mMaxSilenceMs > 0 && nowMs - last.timestampMs >= rule.mMaxSilenceMs) {
+            return true;
+        }
+        if (!fields.keySet().equals(last.fields.keySet())) {
+            return true;
+        }
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            if (rule.isSignificant(field.getKey(), last.fields.get(field.getKey()), field.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Rule findRule(String topic) {
+        for (Rule rule : mRules) {
+            if (MqttTopics.matches(rule.mTopicFilter, topic)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Latest message per topic received from AWS IoT core, kept per thing. A thing which
+ * subscribes again gets the cached messages matching its subscription right away instead of
+ * waiting for the next cloud publish. Things only get messages their own subscriptions
+ * received, so topics do not leak between things. Bounded by count over all things with
+ * least recently used eviction, entries older than the time to live are never replayed.
+ */
+public class RetainedMessageCache {
+    private final int mCapacity;
+    private final long mTtlMs;
+    private final LinkedHashMap<String, Message> mEntries;
+    private long mHitCount;
+    private long mExpiredCount;
+
+    /**
+     * Cached message.
+     */
+    public static class Message {
+        public final String thingId;
+        public final String topic;
+        public final byte[] payload;
+        public final long receivedAtMs;
+
+        Message(String thingId, String topic, byte[] payload, long receivedAtMs) {
+            this.thingId = thingId;
+            this.topic = topic;
+            this.payload = payload;
+            this.receivedAtMs = receivedAtMs;
+        }
+    }
+
+    /**
+     * Instantiates a new RetainedMessageCache.
+     *
+     * @param capacity Topics kept at most.
+     * @param ttlMs    Age after which a message is dropped.
+     */
+    public RetainedMessageCache(final int capacity, long ttlMs) {
+        mCapacity = capacity;
+        mTtlMs = ttlMs;
+        mEntries = new LinkedHashMap<String, Message>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Message> eldest) {
+                return size() > mCapacity;
+            }
+        };
+    }
+
+    /* MQTT topics cannot contain U+0000 */
+    private static String key(String thingId, String topic) {
+        return thingId + '\u0000' + topic;
+    }
+
+    /**
+     * Keep the latest message of a topic received by a thing's subscription, an empty payload
+     * clears the topic as with MQTT retained messages.
+     *
+     * @param thingId Thing whose subscription received the message.
+     * @param topic   Topic.
+     * @param payload Payload as received.
+     */
+    public synchronized void put(@NonNull String thingId, @NonNull String topic, @NonNull byte[] payload) {
+        if (payload.length == 0) {
+            mEntries.remove(key(thingId, topic));
+            return;
+        }
+        mEntries.put(key(thingId, topic), new Message(thingId, topic, payload, System.currentTimeMillis()));
+    }
+
+    /**
+     * @param thingId     Subscribing thing.
+     * @param topicFilter Topic filter of a subscription, may contain wildcards.
+     * @return Latest message of every topic matching filter which thing received and is still
+     * fresh.
+     */
+    public synchronized List<Message> match(@NonNull String thingId, @NonNull String topicFilter) {
+        List<Message> matches = new ArrayList<>();
+        long oldestMs = System.currentTimeMillis() - mTtlMs;
+        Iterator<Message> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Message message = iterator.next();
+            if (message.receivedAtMs < oldestMs) {
+                iterator.remove();
+                mExpiredCount++;
+            } else if (message.thingId.equals(thingId) && MqttTopics.matches(topicFilter, message.topic)) {
+                matches.add(message);
+            }
+        }
+        for (Message message : matches) {
+            /* Touch for LRU order */
+            mEntries.get(key(thingId, message.topic));
+        }
+        mHitCount += matches.size();
+        return matches;
+    }
+
+    public synchronized int getSize() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return Messages replayed so far.
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return Messages dropped because they outlived the time to live.
+     */
+    public synchronized long getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+}
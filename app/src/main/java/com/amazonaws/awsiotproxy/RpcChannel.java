@@ -0,0 +1,329 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request/response calls from things to a cloud responder, e.g. for config or time. Thing
+ * publishes its request on "prefix/request/method" and gets the answer on
+ * "prefix/response/method". The proxy forwards the request to
+ * "prefix/request/method/thingId/seq" and expects the responder to answer on
+ * "prefix/response/method/thingId/seq". Answers are cached per method and request payload for
+ * the method's time to live, so other things asking the same are answered locally, and equal
+ * requests made while one is in flight wait for that one.
+ */
+public class RpcChannel implements UplinkStage {
+    private static final String TAG = "RpcChannel";
+    public static final String DEFAULT_TOPIC_PREFIX = "rpc";
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+    private static final String REQUEST = "/request/";
+    private static final String RESPONSE = "/response/";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] TIMEOUT_RESPONSE = "{\"error\":\"timeout\"}".getBytes(UTF_8);
+    private final String mTopicPrefix;
+    private final int mCacheCapacity;
+    private final long mDefaultTimeoutMs;
+    private final long mDefaultCacheTtlMs;
+    private final Map<String, Method> mMethods = new ConcurrentHashMap<>();
+    private final Map<String, Responder> mResponders = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, CachedResponse> mCache;
+    private final Map<String, Call> mCallsByKey = new HashMap<>();
+    private final Map<String, Call> mCallsById = new HashMap<>();
+    private int mSequence;
+    private long mCacheHitCount;
+    private long mCoalescedCount;
+    private long mTimeoutCount;
+
+    public interface Responder {
+        /**
+         * Publish a response to thing.
+         *
+         * @param topic   Response topic, "prefix/response/method".
+         * @param payload Response payload.
+         */
+        void respond(String topic, byte[] payload);
+    }
+
+    private static class Method {
+        final long timeoutMs;
+        final long cacheTtlMs;
+
+        Method(long timeoutMs, long cacheTtlMs) {
+            this.timeoutMs = timeoutMs;
+            this.cacheTtlMs = cacheTtlMs;
+        }
+    }
+
+    private static class CachedResponse {
+        final byte[] payload;
+        final long expiresAtMs;
+
+        CachedResponse(byte[] payload, long expiresAtMs) {
+            this.payload = payload;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    private static class Call {
+        final String key;
+        final String method;
+        final String id;
+        final List<String> waitingThingIds = new ArrayList<>();
+        ScheduledFuture<?> timeout;
+
+        Call(String key, String method, String id) {
+            this.key = key;
+            this.method = method;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Instantiates a new RpcChannel.
+     *
+     * @param topicPrefix       Topic prefix of requests and responses.
+     * @param cacheCapacity     Responses cached at most.
+     * @param defaultTimeoutMs  Time to wait for a response of methods not added.
+     * @param defaultCacheTtlMs Time to cache responses of methods not added, 0 for never.
+     */
+    public RpcChannel(@NonNull String topicPrefix, final int cacheCapacity, long defaultTimeoutMs, long defaultCacheTtlMs) {
+        mTopicPrefix = topicPrefix;
+        mCacheCapacity = cacheCapacity;
+        mDefaultTimeoutMs = defaultTimeoutMs;
+        mDefaultCacheTtlMs = defaultCacheTtlMs;
+        mCache = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+                return size() > mCacheCapacity;
+            }
+        };
+    }
+
+    /**
+     * Set timeout and cache time to live of a method. Methods with side effects need a time
+     * to live of 0, their requests are neither answered from cache nor coalesced.
+     *
+     * @param method     Method name, a single topic level.
+     * @param timeoutMs  Time to wait for a response before answering with a timeout error.
+     * @param cacheTtlMs Time to cache responses, 0 for never.
+     * @return This channel.
+     */
+    public RpcChannel addMethod(@NonNull String method, long timeoutMs, long cacheTtlMs) {
+        mMethods.put(method, new Method(timeoutMs, cacheTtlMs));
+        return this;
+    }
+
+    /**
+     * Route responses for thing to responder.
+     *
+     * @param thingId   Thing name.
+     * @param responder Publishes responses to thing.
+     */
+    public void register(@NonNull String thingId, @NonNull Responder responder) {
+        mResponders.put(thingId, responder);
+    }
+
+    public void unregister(@NonNull String thingId) {
+        mResponders.remove(thingId);
+    }
+
+    /**
+     * @param thingId Thing name.
+     * @return Topic filter of cloud responses to requests forwarded for thing.
+     */
+    public String getResponseFilter(String thingId) {
+        return mTopicPrefix + RESPONSE + "+/" + thingId + "/+";
+    }
+
+    /**
+     * @return Requests answered from cache.
+     */
+    public synchronized long getCacheHitCount() {
+        return mCacheHitCount;
+    }
+
+    /**
+     * @return Requests which waited for an equal request in flight.
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * @return Requests answered with a timeout error.
+     */
+    public synchronized long getTimeoutCount() {
+        return mTimeoutCount;
+    }
+
+    @Override
+    public boolean process(CustomizedMqttEnvelope envelope, Next next) {
+        String method = getMethod(envelope.topic);
+        if (method == null || envelope.thingId == null) {
+            next.publish(envelope);
+            return true;
+        }
+        Method settings = getSettings(method);
+        boolean cacheable = settings.cacheTtlMs > 0;
+        String key = method + "\n" + new String(envelope.payload, UTF_8);
+        byte[] cached = null;
+        Call call;
+        synchronized (this) {
+            if (cacheable) {
+                CachedResponse response = mCache.get(key);
+                if (response != null && response.expiresAtMs > System.currentTimeMillis()) {
+                    mCacheHitCount++;
+                    cached = response.payload;
+                }
+                call = mCallsByKey.get(key);
+                if (cached == null && call != null) {
+                    call.waitingThingIds.add(envelope.thingId);
+                    mCoalescedCount++;
+                    return false;
+                }
+            }
+            if (cached == null) {
+                call = new Call(key, method, envelope.thingId + "/" + (mSequence++ & 0xFFFF));
+                call.waitingThingIds.add(envelope.thingId);
+                if (cacheable) {
+                    mCallsByKey.put(key, call);
+                }
+                mCallsById.put(call.id, call);
+                call.timeout = ProxyScheduler.get().schedule(newTimeout(call), settings.timeoutMs, TimeUnit.MILLISECONDS);
+            } else {
+                call = null;
+            }
+        }
+        if (cached != null) {
+            respond(envelope.thingId, method, cached);
+            return false;
+        }
+        envelope.topic = mTopicPrefix + REQUEST + method + "/" + call.id;
+        next.publish(envelope);
+        return true;
+    }
+
+    /**
+     * Handle a cloud response received on getResponseFilter().
+     *
+     * @param topic   Response topic.
+     * @param payload Response payload.
+     */
+    public void onCloudMessage(String topic, byte[] payload) {
+        String prefix = mTopicPrefix + RESPONSE;
+        if (!topic.startsWith(prefix)) {
+            return;
+        }
+        String path = topic.substring(prefix.length());
+        int slash = path.indexOf('/');
+        if (slash < 0) {
+            return;
+        }
+        Call call;
+        synchronized (this) {
+            call = mCallsById.remove(path.substring(slash + 1));
+            if (call == null) {
+                Log.w(TAG, "Response without pending request on: " + topic);
+                return;
+            }
+            finish(call);
+            long cacheTtlMs = getSettings(call.method).cacheTtlMs;
+            if (cacheTtlMs > 0) {
+                mCache.put(call.key, new CachedResponse(payload, System.currentTimeMillis() + cacheTtlMs));
+            }
+        }
+        for (String thingId : call.waitingThingIds) {
+            respond(thingId, call.method, payload);
+        }
+    }
+
+    /**
+     * Drop every cached response.
+     */
+    public synchronized void clearCache() {
+        mCache.clear();
+    }
+
+    private Runnable newTimeout(final Call call) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                synchronized (RpcChannel.this) {
+                    if (mCallsById.remove(call.id) == null) {
+                        return;
+                    }
+                    finish(call);
+                    mTimeoutCount += call.waitingThingIds.size();
+                }
+                Log.w(TAG, "Request timed out: " + call.method + "/" + call.id);
+                for (String thingId : call.waitingThingIds) {
+                    respond(thingId, call.method, TIMEOUT_RESPONSE);
+                }
+            }
+        };
+    }
+
+    /* Caller holds the lock */
+    private void finish(Call call) {
+        if (mCallsByKey.get(call.key) == call) {
+            mCallsByKey.remove(call.key);
+        }
+        if (call.timeout != null) {
+            call.timeout.cancel(false);
+        }
+    }
+
+    private void respond(String thingId, String method, byte[] payload) {
+        Responder responder = mResponders.get(thingId);
+        if (responder == null) {
+            Log.w(TAG, "No responder for thing: " + thingId);
+            return;
+        }
+        responder.respond(mTopicPrefix + RESPONSE + method, payload);
+    }
+
+    private Method getSettings(String method) {
+        Method settings = mMethods.get(method);
+        return settings == null ? new Method(mDefaultTimeoutMs, mDefaultCacheTtlMs) : settings;
+    }
+
+    private String getMethod(String topic) {
+        String prefix = mTopicPrefix + REQUEST;
+        if (!topic.startsWith(prefix)) {
+            return null;
+        }
+        String method = topic.substring(prefix.length());
+        return method.isEmpty() || method.indexOf('/') >= 0 ? null : method;
+    }
+}
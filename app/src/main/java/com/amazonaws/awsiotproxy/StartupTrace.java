@@ -0,0 +1,77 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Records how long each cold start phase took. The summary is logged and the last run is kept
+ * per app version, so start up time can be compared between releases.
+ */
+public class StartupTrace {
+    private static final String TAG = "StartupTrace";
+    private static final String PREFS_NAME = "startup_trace";
+    private final SharedPreferences mPreferences;
+    private final long mStartMs;
+    private final Map<String, Long> mPhases = new LinkedHashMap<>();
+
+    /**
+     * Instantiates a new StartupTrace, phases are measured from now on.
+     *
+     * @param context Context.
+     */
+    public StartupTrace(Context context) {
+        mPreferences = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mStartMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Mark the end of a start up phase.
+     *
+     * @param phase Phase name.
+     */
+    public synchronized void mark(String phase) {
+        long elapsedMs = SystemClock.elapsedRealtime() - mStartMs;
+        mPhases.put(phase, elapsedMs);
+        Log.d(TAG, phase + " done at " + elapsedMs + "ms");
+    }
+
+    /**
+     * Log the collected phases and keep them as the last run of current app version.
+     */
+    public synchronized void finish() {
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<String, Long> phase : mPhases.entrySet()) {
+            summary.append(String.format(Locale.US, "%s=%dms ", phase.getKey(), phase.getValue()));
+        }
+        Log.i(TAG, "Cold start [" + BuildConfig.VERSION_NAME + "]: " + summary.toString().trim());
+        mPreferences.edit()
+                .putString(BuildConfig.VERSION_NAME, summary.toString().trim())
+                .apply();
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import androidx.annotation.NonNull;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+import com.google.gson.JsonObject;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uplink stage which replaces per reading publishes with one summary per window. For every
+ * numeric field of a matched topic it keeps min/max/mean/count/last over a tumbling or sliding
+ * window, non numeric fields only keep their last value. Memory is fixed by the number of
+ * topics, fields and window buckets.
+ */
+public class TelemetryAggregator implements UplinkStage {
+    private static final int MAX_TOPICS = 64;
+    private static final int MAX_FIELDS = 16;
+    private final List<Rule> mRules = new CopyOnWriteArrayList<>();
+    private final Map<String, TopicWindow> mWindows = new HashMap<>();
+
+    public static class Rule {
+        private final String mTopicFilter;
+        private final long mWindowMs;
+        private long mSlideMs;
+        private String mSummaryTopic;
+        private final Map<String, double[]> mPassthroughRanges = new HashMap<>();
+
+        /**
+         * Instantiates a tumbling window rule.
+         *
+         * @param topicFilter Topics to aggregate, may contain wildcards.
+         * @param windowMs    Window length.
+         */
+        public Rule(@NonNull String topicFilter, long windowMs) {
+            mTopicFilter = topicFilter;
+            mWindowMs = windowMs;
+            mSlideMs = windowMs;
+        }
+
+        /**
+         * Make it a sliding window which publishes a summary of the last window every slideMs.
+         *
+         * @param slideMs Slide interval, window length is rounded to a multiple of it.
+         * @return This rule.
+         */
+        public Rule sliding(long slideMs) {
+            mSlideMs = Math.min(slideMs, mWindowMs);
+            return this;
+        }
+
+        /**
+         * Publish summaries to another topic than the aggregated one.
+         *
+         * @param summaryTopic Summary topic.
+         * @return This rule.
+         */
+        public Rule publishTo(String summaryTopic) {
+            mSummaryTopic = summaryTopic;
+            return this;
+        }
+
+        /**
+         * Publish the raw reading as well when field is outside [min, max], e.g. for alarms.
+         *
+         * @param field Numeric field.
+         * @param min   Lowest normal value.
+         * @param max   Highest normal value.
+         * @return This rule.
+         */
+        public Rule passthroughOutside(String field, double min, double max) {
+            mPassthroughRanges.put(field, new double[]{min, max});
+            return this;
+        }
+    }
+
+    public TelemetryAggregator addRule(@NonNull Rule rule) {
+        mRules.add(rule);
+        return this;
+    }
+
+    @Override
+    public boolean process(CustomizedMqttEnvelope envelope, Next next) {
+        Rule rule = findRule(envelope.topic);
+        Map<String, String> fields = rule == null ? null : TelemetryFields.parse(envelope.payload);
+        if (fields == null) {
+            next.publish(envelope);
+            return true;
+        }
+        TopicWindow window;
+        synchronized (mWindows) {
+            window = mWindows.get(envelope.topic);
+            if (window == null) {
+                if (mWindows.size() >= MAX_TOPICS) {
+                    next.publish(envelope);
+                    return true;
+                }
+                window = new TopicWindow(envelope.topic, rule, next);
+                mWindows.put(envelope.topic, window);
+            }
+            window.add(fields, envelope.qoS);
+        }
+        if (envelope.priority == CustomizedMqttEnvelope.Priority.ALARM || isOutsideNormalRange(rule, fields)) {
+            next.publish(envelope);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Publish summaries of every open window right now, e.g. before disconnecting.
+     */
+    public void flush() {
+        TopicWindow[] windows;
+        synchronized (mWindows) {
+            windows = mWindows.values().toArray(new TopicWindow[0]);
+        }
+        for (TopicWindow window : windows) {
+            window.publishSummary();
+        }
+    }
+
+    private Rule findRule(String topic) {
+        for (Rule rule : mRules) {
+            if (MqttTopics.matches(rule.mTopicFilter, topic)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isOutsideNormalRange(Rule rule, Map<String, String> fields) {
+        for (Map.Entry<String, double[]> range : rule.mPassthroughRanges.entrySet()) {
+            String value = fields.get(range.getKey());
+            if (value == null) {
+                continue;
+            }
+            double number = TelemetryFields.parseNumber(value);
+            if (number < range.getValue()[0] || number > range.getValue()[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class FieldStats {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum;
+        long count;
+        /* Latest numeric value, a later non-numeric one is not summarized */
+        double last;
+        long lastSequence;
+
+        void add(double value, long sequence) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            count++;
+            last = value;
+            lastSequence = sequence;
+        }
+
+        void add(FieldStats other) {
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sum += other.sum;
+            count += other.count;
+            if (other.count > 0 && other.lastSequence > lastSequence) {
+                last = other.last;
+                lastSequence = other.lastSequence;
+            }
+        }
+
+        void reset() {
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+            sum = 0;
+            count = 0;
+            last = 0;
+            lastSequence = 0;
+        }
+    }
+
+    /**
+     * Window state of one topic: a ring of buckets, one per slide interval, per field.
+     */
+    private class TopicWindow implements Runnable {
+        private final String mTopic;
+        private final Rule mRule;
+        private final Next mNext;
+        private final int mBucketCount;
+        private final Map<String, FieldStats[]> mNumericFields = new LinkedHashMap<>();
+        private final Map<String, String> mLastValues = new LinkedHashMap<>();
+        private final ScheduledFuture<?> mTimer;
+        private int mCurrentBucket;
+        private long mSequence;
+        private AWSIotMqttQos mQos = AWSIotMqttQos.QOS0;
+
+        TopicWindow(String topic, Rule rule, Next next) {
+            mTopic = topic;
+            mRule = rule;
+            mNext = next;
+            mBucketCount = (int) Math.max(1, rule.mWindowMs / rule.mSlideMs);
+            mTimer = ProxyScheduler.get().scheduleAtFixedRate(this, rule.mSlideMs, rule.mSlideMs, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void add(Map<String, String> fields, AWSIotMqttQos qos) {
+            mQos = qos;
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                String value = field.getValue();
+                if (!mLastValues.containsKey(field.getKey()) && mLastValues.size() >= MAX_FIELDS) {
+                    continue;
+                }
+                mLastValues.put(field.getKey(), value);
+                double number = TelemetryFields.parseNumber(value);
+                if (Double.isNaN(number)) {
+                    continue;
+                }
+                FieldStats[] buckets = mNumericFields.get(field.getKey());
+                if (buckets == null) {
+                    buckets = new FieldStats[mBucketCount];
+                    for (int i = 0; i < mBucketCount; i++) {
+                        buckets[i] = new FieldStats();
+                    }
+                    mNumericFields.put(field.getKey(), buckets);
+                }
+                buckets[mCurrentBucket].add(number, ++mSequence);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (publishSummary()) {
+                return;
+            }
+            synchronized (mWindows) {
+                /* Nothing seen for a whole window, release the topic */
+                if (isEmpty()) {
+                    mWindows.remove(mTopic);
+                    mTimer.cancel(false);
+                }
+            }
+        }
+
+        synchronized boolean isEmpty() {
+            for (FieldStats[] buckets : mNumericFields.values()) {
+                for (FieldStats bucket : buckets) {
+                    if (bucket.count > 0) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return False if window is empty and nothing was published.
+         */
+        boolean publishSummary() {
+            JsonObject summary = new JsonObject();
+            long count = 0;
+            synchronized (this) {
+                summary.addProperty("window_ms", mRule.mWindowMs);
+                summary.addProperty("timestamp", System.currentTimeMillis());
+                for (Map.Entry<String, String> field : mLastValues.entrySet()) {
+                    FieldStats[] buckets = mNumericFields.get(field.getKey());
+                    if (buckets == null) {
+                        summary.addProperty(field.getKey(), field.getValue());
+                        continue;
+                    }
+                    FieldStats total = new FieldStats();
+                    for (FieldStats bucket : buckets) {
+                        total.add(bucket);
+                    }
+                    if (total.count == 0) {
+                        continue;
+                    }
+                    count += total.count;
+                    JsonObject stats = new JsonObject();
+                    stats.addProperty("min", total.min);
+                    stats.addProperty("max", total.max);
+                    stats.addProperty("mean", total.sum / total.count);
+                    stats.addProperty("count", total.count);
+                    stats.addProperty("last", total.last);
+                    summary.add(field.getKey(), stats);
+                }
+                mCurrentBucket = (mCurrentBucket + 1) % mBucketCount;
+                for (FieldStats[] buckets : mNumericFields.values()) {
+                    buckets[mCurrentBucket].reset();
+                }
+            }
+            if (count == 0) {
+                return false;
+            }
+            String topic = mRule.mSummaryTopic != null ? mRule.mSummaryTopic : mTopic;
+            mNext.publish(CustomizedMqttEnvelope.newPublishEnvelope(topic, mQos, summary.toString().getBytes()));
+            return true;
+        }
+    }
+}
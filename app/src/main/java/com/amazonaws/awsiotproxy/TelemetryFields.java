@@ -0,0 +1,82 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Helpers for the flat JSON telemetry payloads generated from device readings, e.g.
+ * {"name":"dummy","temp":"25.56","bat":"98%"}.
+ */
+public final class TelemetryFields {
+
+    private TelemetryFields() {
+    }
+
+    /**
+     * Parse the primitive fields of a JSON object payload.
+     *
+     * @param payload Payload bytes stream.
+     * @return Field values in payload order, or null if payload is not a JSON object.
+     */
+    public static Map<String, String> parse(byte[] payload) {
+        try {
+            JsonElement element = new JsonParser().parse(new String(payload, "UTF-8"));
+            if (!element.isJsonObject()) {
+                return null;
+            }
+            Map<String, String> fields = new LinkedHashMap<>();
+            for (Map.Entry<String, JsonElement> field : element.getAsJsonObject().entrySet()) {
+                if (field.getValue().isJsonPrimitive()) {
+                    fields.put(field.getKey(), field.getValue().getAsString());
+                }
+            }
+            return fields;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse the leading number of a value, devices send units along, e.g. "98%".
+     *
+     * @param value Field value.
+     * @return Parsed number or NaN.
+     */
+    public static double parseNumber(String value) {
+        int end = 0;
+        while (end < value.length() && "+-.0123456789eE".indexOf(value.charAt(end)) >= 0) {
+            end++;
+        }
+        while (end > 0) {
+            try {
+                return Double.parseDouble(value.substring(0, end));
+            } catch (NumberFormatException e) {
+                end--;
+            }
+        }
+        return Double.NaN;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import java.util.Locale;
+
+/**
+ * What a side of the TLV link can handle, exchanged with HELLO (proxy) and CAPS (thing)
+ * frames right after thing connects. The value of both frames is versions(1) max frame
+ * size(2, big endian) features(1). Each side only uses what the other advertised.
+ */
+public final class ThingCapabilities {
+    /* Framing versions, as bits of a mask, only VERSION_1 is implemented */
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 1 << 1;
+    /* Inflates PayloadCodec payloads */
+    public static final int FEATURE_COMPRESSION = 1;
+    /* Parses several TLV frames from one write */
+    public static final int FEATURE_BATCHING = 1 << 1;
+    /* Parses PUBACK_RANGE cumulative acks */
+    public static final int FEATURE_ACK_RANGE = 1 << 2;
+    /* Sends uplink frames as notifications instead of waiting to be read, not implemented */
+    public static final int FEATURE_NOTIFY = 1 << 3;
+    /* TLV length is one byte */
+    public static final int MAX_FRAME_SIZE = 255;
+    private static final int ENCODED_SIZE = 4;
+    /* What a thing which never answered HELLO is assumed to handle */
+    public static final ThingCapabilities LEGACY = new ThingCapabilities(VERSION_1, MAX_FRAME_SIZE, 0);
+    /* What this proxy handles */
+    public static final ThingCapabilities PROXY = new ThingCapabilities(VERSION_1, MAX_FRAME_SIZE,
+            FEATURE_COMPRESSION | FEATURE_BATCHING | FEATURE_ACK_RANGE);
+    public final int versions;
+    public final int maxFrameSize;
+    public final int features;
+
+    public ThingCapabilities(int versions, int maxFrameSize, int features) {
+        this.versions = versions;
+        this.maxFrameSize = maxFrameSize;
+        this.features = features;
+    }
+
+    /**
+     * Decode the value of a HELLO or CAPS frame.
+     *
+     * @param frame Encoded TLV frame.
+     * @return Capabilities, or null if the value is too short.
+     */
+    public static ThingCapabilities decode(byte[] frame) {
+        if (frame.length < 2 + ENCODED_SIZE) {
+            return null;
+        }
+        return new ThingCapabilities(frame[2] & 0xFF, (frame[3] & 0xFF) << 8 | (frame[4] & 0xFF), frame[5] & 0xFF);
+    }
+
+    /**
+     * @return Value of a HELLO or CAPS frame.
+     */
+    public byte[] encode() {
+        return new byte[]{(byte) versions, (byte) (maxFrameSize >> 8), (byte) maxFrameSize, (byte) features};
+    }
+
+    /**
+     * Choose the fastest configuration both sides handle.
+     *
+     * @param other Capabilities of the other side.
+     * @return Common versions and features, smaller max frame size.
+     */
+    public ThingCapabilities negotiate(ThingCapabilities other) {
+        int versions = this.versions & other.versions;
+        return new ThingCapabilities(versions == 0 ? VERSION_1 : versions,
+                Math.min(maxFrameSize, other.maxFrameSize), features & other.features);
+    }
+
+    /**
+     * @return Highest framing version.
+     */
+    public int getVersion() {
+        return 32 - Integer.numberOfLeadingZeros(versions);
+    }
+
+    public boolean has(int feature) {
+        return (features & feature) != 0;
+    }
+
+    /**
+     * @return Capabilities packed into an int, as kept by CapabilityCache.
+     */
+    public int pack() {
+        return (versions << 24) | (maxFrameSize << 8) | features;
+    }
+
+    public static ThingCapabilities unpack(int packed) {
+        return new ThingCapabilities(packed >>> 24, (packed >> 8) & 0xFFFF, packed & 0xFF);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ThingCapabilities)) {
+            return false;
+        }
+        return pack() == ((ThingCapabilities) o).pack();
+    }
+
+    @Override
+    public int hashCode() {
+        return pack();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "v%d frame=%d features=0x%02x", getVersion(), maxFrameSize, features);
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar binary format for a batch of flat readings from one device. This file has no
+ * Android dependency so backends can decode batches with the same class.
+ * <p>
+ * Layout, bit packed: version byte, reading count, field count, field names and types, the
+ * timestamp column with delta-of-delta encoding, then one column per field. Every field
+ * column starts with a presence bit per reading. Numeric columns use Gorilla style XOR
+ * encoding of the double bits, text columns only repeat a value when it changed.
+ */
+public final class TimeSeriesBatch {
+    public static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int TYPE_NUMBER = 0;
+    private static final int TYPE_TEXT = 1;
+
+    public static class Reading {
+        public final long timestampMs;
+        /* Values are Double for numeric fields and String for the others */
+        public final Map<String, Object> fields;
+
+        public Reading(long timestampMs, @NonNull Map<String, Object> fields) {
+            this.timestampMs = timestampMs;
+            this.fields = fields;
+        }
+    }
+
+    private TimeSeriesBatch() {
+    }
+
+    /**
+     * Encode readings. Field values which format() gives back unchanged, e.g. "25" or "25.56"
+     * but not "007" or "1.10", are stored as numbers, others as text, so decoding is lossless.
+     *
+     * @param timestampsMs Reading timestamps, in ascending order.
+     * @param readings     Field values of each reading.
+     * @return Encoded batch.
+     */
+    public static byte[] encode(long[] timestampsMs, List<Map<String, String>> readings) {
+        Map<String, Integer> fieldTypes = new LinkedHashMap<>();
+        for (Map<String, String> reading : readings) {
+            for (Map.Entry<String, String> field : reading.entrySet()) {
+                Integer type = fieldTypes.get(field.getKey());
+                if (type == null || type == TYPE_NUMBER) {
+                    fieldTypes.put(field.getKey(), isNumber(field.getValue()) ? TYPE_NUMBER : TYPE_TEXT);
+                }
+            }
+        }
+
+        BitWriter writer = new BitWriter();
+        writer.writeBits(VERSION, 8);
+        writer.writeVarint(readings.size());
+        writer.writeVarint(fieldTypes.size());
+        for (Map.Entry<String, Integer> fieldType : fieldTypes.entrySet()) {
+            writer.writeBytes(fieldType.getKey().getBytes(UTF_8));
+            writer.writeBits(fieldType.getValue(), 1);
+        }
+        writeTimestamps(writer, timestampsMs, readings.size());
+        for (Map.Entry<String, Integer> fieldType : fieldTypes.entrySet()) {
+            String name = fieldType.getKey();
+            for (Map<String, String> reading : readings) {
+                writer.writeBits(reading.containsKey(name) ? 1 : 0, 1);
+            }
+            if (fieldType.getValue() == TYPE_NUMBER) {
+                writeNumbers(writer, name, readings);
+            } else {
+                writeTexts(writer, name, readings);
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Decode a batch produced by encode().
+     *
+     * @param batch Encoded batch.
+     * @return Readings in original order.
+     * @throws IOException If batch is malformed or of an unknown version.
+     */
+    public static List<Reading> decode(byte[] batch) throws IOException {
+        try {
+            BitReader reader = new BitReader(batch);
+            int version = (int) reader.readBits(8);
+            if (version != VERSION) {
+                throw new IOException("Unsupported batch version " + version);
+            }
+            /* Every reading takes at least one bit, every field name and type at least nine */
+            int count = reader.readLength(reader.remainingBits());
+            int fieldCount = reader.readLength(reader.remainingBits() / 9);
+            String[] names = new String[fieldCount];
+            int[] types = new int[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                names[i] = new String(reader.readBytes(), UTF_8);
+                types[i] = (int) reader.readBits(1);
+            }
+            long[] timestamps = readTimestamps(reader, count);
+            List<Reading> readings = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                readings.add(new Reading(timestamps[i], new LinkedHashMap<String, Object>()));
+            }
+            for (int f = 0; f < fieldCount; f++) {
+                boolean[] present = new boolean[count];
+                for (int i = 0; i < count; i++) {
+                    present[i] = reader.readBits(1) == 1;
+                }
+                if (types[f] == TYPE_NUMBER) {
+                    readNumbers(reader, names[f], present, readings);
+                } else {
+                    readTexts(reader, names[f], present, readings);
+                }
+            }
+            return readings;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated batch", e);
+        }
+    }
+
+    private static boolean isNumber(String value) {
+        try {
+            double number = Double.parseDouble(value);
+            return !Double.isNaN(number) && !Double.isInfinite(number) && format(number).equals(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Text of a decoded numeric value, as the device sent it.
+     *
+     * @param number Value of a numeric field.
+     * @return Integral values without a fraction, others as Double.toString().
+     */
+    public static String format(double number) {
+        if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+            return Long.toString((long) number);
+        }
+        return Double.toString(number);
+    }
+
+    /**
+     * First timestamp as is, first delta as varint, then delta-of-delta with a variable
+     * length prefix: '0' for same delta, '10' 7 bits, '110' 9 bits, '1110' 12 bits,
+     * '1111' 64 bits.
+     */
+    private static void writeTimestamps(BitWriter writer, long[] timestampsMs, int count) {
+        long previousDelta = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0) {
+                writer.writeBits(timestampsMs[0], 64);
+                continue;
+            }
+            long delta = timestampsMs[i] - timestampsMs[i - 1];
+            if (i == 1) {
+                writer.writeVarint(zigZag(delta));
+            } else {
+                long deltaOfDelta = delta - previousDelta;
+                if (deltaOfDelta == 0) {
+                    writer.writeBits(0, 1);
+                } else if (fits(deltaOfDelta, 7)) {
+                    writer.writeBits(0b10, 2);
+                    writer.writeBits(deltaOfDelta, 7);
+                } else if (fits(deltaOfDelta, 9)) {
+                    writer.writeBits(0b110, 3);
+                    writer.writeBits(deltaOfDelta, 9);
+                } else if (fits(deltaOfDelta, 12)) {
+                    writer.writeBits(0b1110, 4);
+                    writer.writeBits(deltaOfDelta, 12);
+                } else {
+                    writer.writeBits(0b1111, 4);
+                    writer.writeBits(deltaOfDelta, 64);
+                }
+            }
+            previousDelta = delta;
+        }
+    }
+
+    private static long[] readTimestamps(BitReader reader, int count) {
+        long[] timestamps = new long[count];
+        long delta = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0) {
+                timestamps[0] = reader.readBits(64);
+                continue;
+            }
+            if (i == 1) {
+                delta = unZigZag(reader.readVarint());
+            } else if (reader.readBits(1) == 1) {
+                if (reader.readBits(1) == 0) {
+                    delta += reader.readSignedBits(7);
+                } else if (reader.readBits(1) == 0) {
+                    delta += reader.readSignedBits(9);
+                } else if (reader.readBits(1) == 0) {
+                    delta += reader.readSignedBits(12);
+                } else {
+                    delta += reader.readBits(64);
+                }
+            }
+            timestamps[i] = timestamps[i - 1] + delta;
+        }
+        return timestamps;
+    }
+
+    /**
+     * First value as raw 64 bits, then XOR with previous value: '0' if equal, '10' + meaningful
+     * bits if they fit the previous leading/trailing zeros window, otherwise '11' + 6 bits
+     * leading zeros + 6 bits meaningful length - 1 + meaningful bits.
+     */
+    private static void writeNumbers(BitWriter writer, String name, List<Map<String, String>> readings) {
+        boolean first = true;
+        long previous = 0;
+        int previousLeading = -1;
+        int previousTrailing = 0;
+        for (Map<String, String> reading : readings) {
+            String value = reading.get(name);
+            if (value == null) {
+                continue;
+            }
+            long bits = Double.doubleToLongBits(Double.parseDouble(value));
+            if (first) {
+                writer.writeBits(bits, 64);
+                first = false;
+                previous = bits;
+                continue;
+            }
+            long xor = bits ^ previous;
+            previous = bits;
+            if (xor == 0) {
+                writer.writeBits(0, 1);
+                continue;
+            }
+            int leading = Long.numberOfLeadingZeros(xor);
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                writer.writeBits(0b10, 2);
+                writer.writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+            } else {
+                int length = 64 - leading - trailing;
+                writer.writeBits(0b11, 2);
+                writer.writeBits(leading, 6);
+                writer.writeBits(length - 1, 6);
+                writer.writeBits(xor >>> trailing, length);
+                previousLeading = leading;
+                previousTrailing = trailing;
+            }
+        }
+    }
+
+    private static void readNumbers(BitReader reader, String name, boolean[] present, List<Reading> readings) {
+        boolean first = true;
+        long previous = 0;
+        int previousLeading = 0;
+        int previousTrailing = 0;
+        for (int i = 0; i < present.length; i++) {
+            if (!present[i]) {
+                continue;
+            }
+            long bits;
+            if (first) {
+                bits = reader.readBits(64);
+                first = false;
+            } else if (reader.readBits(1) == 0) {
+                bits = previous;
+            } else if (reader.readBits(1) == 0) {
+                bits = previous ^ (reader.readBits(64 - previousLeading - previousTrailing) << previousTrailing);
+            } else {
+                previousLeading = (int) reader.readBits(6);
+                int length = (int) reader.readBits(6) + 1;
+                previousTrailing = 64 - previousLeading - length;
+                bits = previous ^ (reader.readBits(length) << previousTrailing);
+            }
+            previous = bits;
+            readings.get(i).fields.put(name, Double.longBitsToDouble(bits));
+        }
+    }
+
+    private static void writeTexts(BitWriter writer, String name, List<Map<String, String>> readings) {
+        String previous = null;
+        for (Map<String, String> reading : readings) {
+            String value = reading.get(name);
+            if (value == null) {
+                continue;
+            }
+            if (value.equals(previous)) {
+                writer.writeBits(0, 1);
+            } else {
+                writer.writeBits(1, 1);
+                writer.writeBytes(value.getBytes(UTF_8));
+                previous = value;
+            }
+        }
+    }
+
+    private static void readTexts(BitReader reader, String name, boolean[] present, List<Reading> readings)
+            throws IOException {
+        String previous = null;
+        for (int i = 0; i < present.length; i++) {
+            if (!present[i]) {
+                continue;
+            }
+            if (reader.readBits(1) == 1) {
+                previous = new String(reader.readBytes(), UTF_8);
+            }
+            readings.get(i).fields.put(name, previous);
+        }
+    }
+
+    private static boolean fits(long value, int bits) {
+        long limit = 1L << (bits - 1);
+        return value >= -limit && value < limit;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static class BitWriter {
+        private byte[] mBuffer = new byte[64];
+        private long mBitCount;
+
+        void writeBits(long value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                int byteIndex = (int) (mBitCount >>> 3);
+                if (byteIndex == mBuffer.length) {
+                    mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+                }
+                if (((value >>> i) & 1) != 0) {
+                    mBuffer[byteIndex] |= (byte) (0x80 >>> (mBitCount & 7));
+                }
+                mBitCount++;
+            }
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeBits((value & 0x7F) | 0x80, 8);
+                value >>>= 7;
+            }
+            writeBits(value, 8);
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarint(bytes.length);
+            for (byte b : bytes) {
+                writeBits(b, 8);
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBuffer, (int) ((mBitCount + 7) >>> 3));
+        }
+    }
+
+    private static class BitReader {
+        private final byte[] mBuffer;
+        private long mBitPosition;
+
+        BitReader(byte[] buffer) {
+            mBuffer = buffer;
+        }
+
+        long readBits(int bits) {
+            long value = 0;
+            for (int i = 0; i < bits; i++) {
+                int bit = (mBuffer[(int) (mBitPosition >>> 3)] >>> (7 - (mBitPosition & 7))) & 1;
+                value = (value << 1) | bit;
+                mBitPosition++;
+            }
+            return value;
+        }
+
+        long readSignedBits(int bits) {
+            long value = readBits(bits);
+            return (value << (64 - bits)) >> (64 - bits);
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                long b = readBits(8);
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            return value;
+        }
+
+        long remainingBits() {
+            return mBuffer.length * 8L - mBitPosition;
+        }
+
+        /**
+         * Read a varint count or size which cannot be larger than what is left to read.
+         */
+        int readLength(long maxValue) throws IOException {
+            long value = readVarint();
+            if (value < 0 || value > Math.min(maxValue, Integer.MAX_VALUE)) {
+                throw new IOException("Malformed batch length " + value);
+            }
+            return (int) value;
+        }
+
+        byte[] readBytes() throws IOException {
+            byte[] bytes = new byte[readLength(remainingBits() / 8)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) readBits(8);
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import androidx.annotation.NonNull;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uplink stage which collects readings of matched topics and publishes them as one
+ * TimeSeriesBatch to "topic/batch" once max readings are collected or max delay is reached.
+ */
+public class TimeSeriesBatcher implements UplinkStage {
+    public static final String BATCH_TOPIC_SUFFIX = "/batch";
+    private final List<String> mTopicFilters = new CopyOnWriteArrayList<>();
+    private final Map<String, Batch> mBatches = new HashMap<>();
+    private final int mMaxReadings;
+    private final long mMaxDelayMs;
+
+    /**
+     * Instantiates a new TimeSeriesBatcher.
+     *
+     * @param maxReadings Publish a batch once it holds this many readings.
+     * @param maxDelayMs  Publish a batch at the latest this long after its first reading.
+     */
+    public TimeSeriesBatcher(int maxReadings, long maxDelayMs) {
+        mMaxReadings = maxReadings;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Batch readings published to topics matching filter.
+     *
+     * @param topicFilter Topic filter, may contain wildcards.
+     * @return This batcher.
+     */
+    public TimeSeriesBatcher addTopic(@NonNull String topicFilter) {
+        mTopicFilters.add(topicFilter);
+        return this;
+    }
+
+    @Override
+    public boolean process(CustomizedMqttEnvelope envelope, Next next) {
+        /* Alarms are never held back waiting for a batch */
+        boolean batched = envelope.priority != CustomizedMqttEnvelope.Priority.ALARM && isBatched(envelope.topic);
+        Map<String, String> fields = batched ? TelemetryFields.parse(envelope.payload) : null;
+        if (fields == null) {
+            next.publish(envelope);
+            return true;
+        }
+        String key = envelope.thingId + "/" + envelope.topic;
+        Batch full = null;
+        synchronized (mBatches) {
+            Batch batch = mBatches.get(key);
+            if (batch == null) {
+                batch = new Batch(key, envelope.topic, next);
+                mBatches.put(key, batch);
+            }
+            batch.add(System.currentTimeMillis(), fields, envelope.qoS);
+            if (batch.mReadings.size() >= mMaxReadings) {
+                mBatches.remove(key);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            full.publish();
+        }
+        return false;
+    }
+
+    /**
+     * Publish every pending batch right now.
+     */
+    public void flush() {
+        List<Batch> batches;
+        synchronized (mBatches) {
+            batches = new ArrayList<>(mBatches.values());
+            mBatches.clear();
+        }
+        for (Batch batch : batches) {
+            batch.publish();
+        }
+    }
+
+    private boolean isBatched(String topic) {
+        for (String topicFilter : mTopicFilters) {
+            if (MqttTopics.matches(topicFilter, topic)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private class Batch implements Runnable {
+        private final String mKey;
+        private final String mTopic;
+        private final Next mNext;
+        private final List<Map<String, String>> mReadings = new ArrayList<>();
+        private long[] mTimestampsMs = new long[16];
+        private AWSIotMqttQos mQos = AWSIotMqttQos.QOS0;
+        private final ScheduledFuture<?> mTimer;
+
+        Batch(String key, String topic, Next next) {
+            mKey = key;
+            mTopic = topic;
+            mNext = next;
+            mTimer = ProxyScheduler.get().schedule(this, mMaxDelayMs, TimeUnit.MILLISECONDS);
+        }
+
+        void add(long timestampMs, Map<String, String> fields, AWSIotMqttQos qos) {
+            if (mReadings.size() == mTimestampsMs.length) {
+                mTimestampsMs = Arrays.copyOf(mTimestampsMs, mTimestampsMs.length * 2);
+            }
+            mTimestampsMs[mReadings.size()] = timestampMs;
+            mReadings.add(fields);
+            /* A batch is as important as its most important reading, readings are acked when batched */
+            if (qos == AWSIotMqttQos.QOS1) {
+                mQos = qos;
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (mBatches) {
+                if (mBatches.get(mKey) != this) {
+                    return;
+                }
+                mBatches.remove(mKey);
+            }
+            publish();
+        }
+
+        void publish() {
+            mTimer.cancel(false);
+            byte[] payload = TimeSeriesBatch.encode(mTimestampsMs, mReadings);
+            mNext.publish(CustomizedMqttEnvelope.newPublishEnvelope(mTopic + BATCH_TOPIC_SUFFIX, mQos, payload));
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keeps recent numeric readings of every thing and field on the phone, so they can be charted
+ * without the cloud. Each series is a fixed size ring of (timestamp, value) records in a
+ * memory mapped file, appending never allocates and the footprint is bounded by the number of
+ * series times their capacity. Added as an uplink stage it records envelopes and passes them on.
+ * <p>
+ * File layout: MAGIC, capacity, next write index and record count as ints, then capacity
+ * records of a long timestamp in ms and a double value.
+ */
+public class TimeSeriesStore implements UplinkStage {
+    private static final String TAG = "TimeSeriesStore";
+    private static final int MAGIC = 0x54535231;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 16;
+    private static final String FILE_SUFFIX = ".ts";
+    private final File mDirectory;
+    private final int mCapacity;
+    private final int mMaxSeries;
+    private final Map<String, Series> mSeries = new HashMap<>();
+
+    public static class Sample {
+        public final long timestampMs;
+        public final double value;
+
+        Sample(long timestampMs, double value) {
+            this.timestampMs = timestampMs;
+            this.value = value;
+        }
+    }
+
+    public static class Bucket {
+        public final long startMs;
+        public double min = Double.POSITIVE_INFINITY;
+        public double max = Double.NEGATIVE_INFINITY;
+        public double mean;
+        public int count;
+
+        Bucket(long startMs) {
+            this.startMs = startMs;
+        }
+
+        void add(double value) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            mean += (value - mean) / ++count;
+        }
+    }
+
+    /**
+     * Instantiates a new TimeSeriesStore, series already in directory are reopened lazily.
+     *
+     * @param directory Directory holding one file per series.
+     * @param capacity  Records kept per series, older ones are overwritten.
+     * @param maxSeries Series kept open at most, readings of further series are not stored.
+     */
+    public TimeSeriesStore(@NonNull File directory, int capacity, int maxSeries) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create " + directory);
+        }
+        mDirectory = directory;
+        mCapacity = capacity;
+        mMaxSeries = maxSeries;
+    }
+
+    @Override
+    public boolean process(CustomizedMqttEnvelope envelope, Next next) {
+        Map<String, String> fields = TelemetryFields.parse(envelope.payload);
+        if (fields != null && envelope.thingId != null) {
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                double value = TelemetryFields.parseNumber(field.getValue());
+                if (!Double.isNaN(value)) {
+                    append(envelope.thingId, field.getKey(), envelope.receivedAtMs, value);
+                }
+            }
+        }
+        next.publish(envelope);
+        return true;
+    }
+
+    /**
+     * Store a reading.
+     *
+     * @param thingId     Thing id.
+     * @param field       Field name.
+     * @param timestampMs Reading time, one before the last stored reading is moved up to it.
+     * @param value       Reading.
+     */
+    public void append(@NonNull String thingId, @NonNull String field, long timestampMs, double value) {
+        Series series = getSeries(thingId, field, true);
+        if (series != null) {
+            series.append(timestampMs, value);
+        }
+    }
+
+    /**
+     * Read stored readings in a time range.
+     *
+     * @param thingId Thing id.
+     * @param field   Field name.
+     * @param fromMs  Range start, inclusive.
+     * @param toMs    Range end, exclusive.
+     * @return Readings in time order, empty if the series is unknown.
+     */
+    public List<Sample> query(@NonNull String thingId, @NonNull String field, long fromMs, long toMs) {
+        final List<Sample> samples = new ArrayList<>();
+        Series series = getSeries(thingId, field, false);
+        if (series != null) {
+            series.scan(fromMs, toMs, new Visitor() {
+                @Override
+                public void visit(long timestampMs, double value) {
+                    samples.add(new Sample(timestampMs, value));
+                }
+            });
+        }
+        return samples;
+    }
+
+    /**
+     * Read stored readings in a time range reduced to a fixed number of buckets, e.g. one per
+     * pixel column of a chart.
+     *
+     * @param thingId     Thing id.
+     * @param field       Field name.
+     * @param fromMs      Range start, inclusive.
+     * @param toMs        Range end, exclusive.
+     * @param bucketCount Number of equally long buckets the range is split into.
+     * @return Non empty buckets in time order, empty for an empty range.
+     */
+    public List<Bucket> downsample(@NonNull String thingId, @NonNull String field, final long fromMs, long toMs, int bucketCount) {
+        if (bucketCount <= 0) {
+            throw new IllegalArgumentException("Bucket count must be positive.");
+        }
+        if (toMs <= fromMs) {
+            return new ArrayList<>();
+        }
+        final Bucket[] buckets = new Bucket[bucketCount];
+        final double bucketMs = Math.max(1, (double) (toMs - fromMs) / bucketCount);
+        Series series = getSeries(thingId, field, false);
+        if (series != null) {
+            series.scan(fromMs, toMs, new Visitor() {
+                @Override
+                public void visit(long timestampMs, double value) {
+                    int index = Math.min(buckets.length - 1, (int) ((timestampMs - fromMs) / bucketMs));
+                    if (buckets[index] == null) {
+                        buckets[index] = new Bucket(fromMs + (long) (index * bucketMs));
+                    }
+                    buckets[index].add(value);
+                }
+            });
+        }
+        List<Bucket> result = new ArrayList<>();
+        for (Bucket bucket : buckets) {
+            if (bucket != null) {
+                result.add(bucket);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write mapped pages back to storage, e.g. when the app goes to background.
+     */
+    public void flush() {
+        synchronized (mSeries) {
+            for (Series series : mSeries.values()) {
+                series.force();
+            }
+        }
+    }
+
+    private Series getSeries(String thingId, String field, boolean create) {
+        String key = thingId + "/" + field;
+        synchronized (mSeries) {
+            Series series = mSeries.get(key);
+            if (series != null) {
+                return series;
+            }
+            File file = new File(mDirectory, fileName(thingId, field));
+            if ((!create && !file.exists()) || mSeries.size() >= mMaxSeries) {
+                return null;
+            }
+            try {
+                series = new Series(file, mCapacity);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot open series " + key, e);
+                return null;
+            }
+            mSeries.put(key, series);
+            return series;
+        }
+    }
+
+    private static String fileName(String thingId, String field) {
+        String key = thingId + "/" + field;
+        return String.format(Locale.US, "%s_%08x%s", key.replaceAll("[^A-Za-z0-9_-]", "_"), key.hashCode(), FILE_SUFFIX);
+    }
+
+    private interface Visitor {
+        void visit(long timestampMs, double value);
+    }
+
+    private static class Series {
+        private final MappedByteBuffer mBuffer;
+        private final int mCapacity;
+        private int mNext;
+        private int mCount;
+
+        Series(File file, int capacity) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            boolean existing;
+            try {
+                existing = randomAccessFile.length() >= HEADER_SIZE && randomAccessFile.readInt() == MAGIC
+                        && randomAccessFile.readInt() == capacity;
+                mBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            } finally {
+                /* The mapping stays valid after the file is closed */
+                randomAccessFile.close();
+            }
+            mCapacity = capacity;
+            mNext = mBuffer.getInt(8);
+            mCount = mBuffer.getInt(12);
+            if (!existing || mNext < 0 || mNext >= capacity || mCount < 0 || mCount > capacity) {
+                mNext = 0;
+                mCount = 0;
+                mBuffer.putInt(0, MAGIC);
+                mBuffer.putInt(4, capacity);
+                writeHeader();
+            }
+        }
+
+        synchronized void append(long timestampMs, double value) {
+            if (mCount > 0) {
+                /* Keep records in time order for range queries, e.g. when the clock was set back */
+                timestampMs = Math.max(timestampMs, timestampAt((mNext - 1 + mCapacity) % mCapacity));
+            }
+            int offset = HEADER_SIZE + mNext * RECORD_SIZE;
+            mBuffer.putLong(offset, timestampMs);
+            mBuffer.putDouble(offset + 8, value);
+            mNext = (mNext + 1) % mCapacity;
+            mCount = Math.min(mCount + 1, mCapacity);
+            writeHeader();
+        }
+
+        synchronized void scan(long fromMs, long toMs, Visitor visitor) {
+            int oldest = (mNext - mCount + mCapacity) % mCapacity;
+            /* Records are in time order from oldest, binary search the first one in range */
+            int low = 0;
+            int high = mCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (timestampAt((oldest + middle) % mCapacity) < fromMs) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            for (int i = low; i < mCount; i++) {
+                int index = (oldest + i) % mCapacity;
+                long timestampMs = timestampAt(index);
+                if (timestampMs >= toMs) {
+                    break;
+                }
+                visitor.visit(timestampMs, mBuffer.getDouble(HEADER_SIZE + index * RECORD_SIZE + 8));
+            }
+        }
+
+        synchronized void force() {
+            mBuffer.force();
+        }
+
+        private long timestampAt(int index) {
+            return mBuffer.getLong(HEADER_SIZE + index * RECORD_SIZE);
+        }
+
+        private void writeHeader() {
+            mBuffer.putInt(8, mNext);
+            mBuffer.putInt(12, mCount);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import java.util.Arrays;
+
+/**
+ * Converts "key:value;key:value" pairs of a TLV value straight into UTF-8 JSON bytes, walking
+ * the source bytes once and writing into a per thread buffer which is reused between messages.
+ */
+final class TlvJsonWriter {
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final ThreadLocal<TlvJsonWriter> WRITER = new ThreadLocal<TlvJsonWriter>() {
+        @Override
+        protected TlvJsonWriter initialValue() {
+            return new TlvJsonWriter();
+        }
+    };
+    private byte[] mBuffer = new byte[256];
+    private int mSize;
+
+    private TlvJsonWriter() {
+    }
+
+    /**
+     * Convert pairs in src[from, to) into a JSON object with string values, e.g.
+     * "temp:25.56;bat:98%" into {"temp":"25.56","bat":"98%"}. Pairs without ':' are skipped.
+     *
+     * @return JSON bytes.
+     */
+    static byte[] pairsToJson(byte[] src, int from, int to) {
+        TlvJsonWriter writer = WRITER.get();
+        writer.mSize = 0;
+        writer.write('{');
+        boolean first = true;
+        int pairStart = from;
+        while (pairStart < to) {
+            int pairEnd = indexOf(src, ';', pairStart, to);
+            int colon = indexOf(src, ':', pairStart, pairEnd);
+            if (colon < pairEnd) {
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                writer.writeString(src, pairStart, colon);
+                writer.write(':');
+                writer.writeString(src, colon + 1, indexOf(src, ':', colon + 1, pairEnd));
+            }
+            pairStart = pairEnd + 1;
+        }
+        writer.write('}');
+        return Arrays.copyOf(writer.mBuffer, writer.mSize);
+    }
+
+    /**
+     * @return Index of b in src[from, to), or to if not found.
+     */
+    static int indexOf(byte[] src, char b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (src[i] == b) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private void writeString(byte[] src, int from, int to) {
+        ensureCapacity(2 + (to - from) * 6);
+        mBuffer[mSize++] = '"';
+        for (int i = from; i < to; i++) {
+            byte b = src[i];
+            if (b == '"' || b == '\\') {
+                mBuffer[mSize++] = '\\';
+                mBuffer[mSize++] = b;
+            } else if (b >= 0 && b < 0x20) {
+                mBuffer[mSize++] = '\\';
+                mBuffer[mSize++] = 'u';
+                mBuffer[mSize++] = '0';
+                mBuffer[mSize++] = '0';
+                mBuffer[mSize++] = HEX[b >> 4];
+                mBuffer[mSize++] = HEX[b & 0xF];
+            } else {
+                /* ASCII and UTF-8 multi-byte sequences are copied as is */
+                mBuffer[mSize++] = b;
+            }
+        }
+        mBuffer[mSize++] = '"';
+    }
+
+    private void write(char c) {
+        ensureCapacity(1);
+        mBuffer[mSize++] = (byte) c;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mSize + extra > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mSize + extra));
+        }
+    }
+}
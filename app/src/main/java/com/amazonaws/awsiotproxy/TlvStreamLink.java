@@ -0,0 +1,218 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Exchanges TLV frames with a thing over a pair of byte streams, e.g. of an L2CAP channel.
+ * Frames are delimited by their length byte. A reader thread hands every frame to the
+ * listener, a writer thread sends queued frames and packs as many as fit into one write, so
+ * a transport with credit based flow control simply blocks the writer while out of credits.
+ */
+public class TlvStreamLink {
+    private static final String TAG = "TlvStreamLink";
+    private static final int HEAD_SIZE = 2;
+    private final InputStream mInputStream;
+    private final OutputStream mOutputStream;
+    private final Closeable mConnection;
+    private final int mMaxWriteSize;
+    private final Listener mListener;
+    private final LinkedBlockingQueue<byte[]> mWrites = new LinkedBlockingQueue<>();
+    private final AtomicBoolean mClosed = new AtomicBoolean();
+    private Thread mReader;
+    private Thread mWriter;
+
+    public interface Listener {
+        /**
+         * Called on the reader thread for every frame received.
+         *
+         * @param frame Whole TLV frame.
+         */
+        void onFrame(byte[] frame);
+
+        /**
+         * Called on the writer thread after each write, room for more frames was made.
+         */
+        void onSent();
+
+        /**
+         * Called once when the link closed, by close() or because a stream failed.
+         */
+        void onClosed();
+    }
+
+    /**
+     * Instantiates a new TlvStreamLink, start() begins reading and writing.
+     *
+     * @param inputStream  Stream from thing.
+     * @param outputStream Stream to thing.
+     * @param connection   Closed with the link, e.g. the socket of both streams.
+     * @param maxWriteSize Bytes packed into one write at most, a frame is never split.
+     * @param listener     Receives frames and link events.
+     */
+    public TlvStreamLink(@NonNull InputStream inputStream, @NonNull OutputStream outputStream,
+                         @NonNull Closeable connection, int maxWriteSize, @NonNull Listener listener) {
+        mInputStream = inputStream;
+        mOutputStream = outputStream;
+        mConnection = connection;
+        mMaxWriteSize = maxWriteSize;
+        mListener = listener;
+    }
+
+    /**
+     * Start the reader and writer threads.
+     *
+     * @param name Prefix of the thread names.
+     */
+    public void start(String name) {
+        mReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, name + "-reader");
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, name + "-writer");
+        mReader.start();
+        mWriter.start();
+    }
+
+    /**
+     * Queue a frame for the writer thread.
+     *
+     * @param frame Whole TLV frame.
+     * @return False if the link is closed.
+     */
+    public boolean send(@NonNull byte[] frame) {
+        if (mClosed.get()) {
+            return false;
+        }
+        mWrites.add(frame);
+        return true;
+    }
+
+    /**
+     * @return Frames queued but not written yet.
+     */
+    public int getPendingCount() {
+        return mWrites.size();
+    }
+
+    /**
+     * @return True once the link closed.
+     */
+    public boolean isClosed() {
+        return mClosed.get();
+    }
+
+    /**
+     * Close the connection and stop both threads.
+     */
+    public void close() {
+        if (!mClosed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mConnection.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Close failed.", e);
+        }
+        if (mWriter != null) {
+            mWriter.interrupt();
+        }
+        mWrites.clear();
+        mListener.onClosed();
+    }
+
+    private void read() {
+        DataInputStream in = new DataInputStream(mInputStream);
+        byte[] head = new byte[HEAD_SIZE];
+        try {
+            while (!mClosed.get()) {
+                in.readFully(head);
+                int length = head[1] & 0xFF;
+                if (length < HEAD_SIZE) {
+                    Log.e(TAG, "Malformed frame length: " + length);
+                    break;
+                }
+                byte[] frame = new byte[length];
+                frame[0] = head[0];
+                frame[1] = head[1];
+                in.readFully(frame, HEAD_SIZE, length - HEAD_SIZE);
+                mListener.onFrame(frame);
+            }
+        } catch (IOException e) {
+            if (!mClosed.get()) {
+                Log.i(TAG, "Read ended: " + e.getMessage());
+            }
+        }
+        close();
+    }
+
+    private void write() {
+        byte[] buffer = new byte[Math.max(mMaxWriteSize, HEAD_SIZE)];
+        try {
+            while (!mClosed.get()) {
+                byte[] frame = mWrites.take();
+                if (frame.length > buffer.length) {
+                    mOutputStream.write(frame);
+                } else {
+                    /* Pack queued frames into one write, i.e. one L2CAP SDU */
+                    int size = 0;
+                    while (true) {
+                        System.arraycopy(frame, 0, buffer, size, frame.length);
+                        size += frame.length;
+                        byte[] next = mWrites.peek();
+                        if (next == null || size + next.length > buffer.length) {
+                            break;
+                        }
+                        frame = mWrites.poll();
+                    }
+                    mOutputStream.write(buffer, 0, size);
+                }
+                mOutputStream.flush();
+                mListener.onSent();
+            }
+        } catch (InterruptedException e) {
+            /* Closed */
+        } catch (IOException e) {
+            if (!mClosed.get()) {
+                Log.i(TAG, "Write ended: " + e.getMessage());
+            }
+        }
+        close();
+    }
+}
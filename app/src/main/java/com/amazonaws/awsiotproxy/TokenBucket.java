@@ -0,0 +1,111 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+/**
+ * Token bucket refilled continuously at a fixed rate, each admitted request takes one token.
+ */
+public class TokenBucket {
+    private final double mTokensPerNs;
+    private final double mCapacity;
+    private double mTokens;
+    private long mLastRefillNs;
+
+    /**
+     * Instantiates a full TokenBucket.
+     *
+     * @param ratePerSecond Sustained rate.
+     * @param burst         Number of requests which may be admitted at once.
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        if (ratePerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive.");
+        }
+        mTokensPerNs = ratePerSecond / 1e9;
+        mCapacity = burst;
+        mTokens = burst;
+        mLastRefillNs = System.nanoTime();
+    }
+
+    /**
+     * @return True if a token was taken.
+     */
+    public boolean tryTake() {
+        return tryTake(1);
+    }
+
+    /**
+     * Take several tokens at once, e.g. one per byte. A request larger than the burst is
+     * admitted once the bucket is full and leaves it in debt.
+     *
+     * @param tokens Tokens to take.
+     * @return True if the tokens were taken.
+     */
+    public synchronized boolean tryTake(int tokens) {
+        if (!hasTokens(tokens)) {
+            return false;
+        }
+        mTokens -= tokens;
+        return true;
+    }
+
+    /**
+     * @return True if tryTake() would succeed right now.
+     */
+    public boolean hasToken() {
+        return hasTokens(1);
+    }
+
+    /**
+     * @param tokens Tokens needed.
+     * @return True if tryTake(tokens) would succeed right now.
+     */
+    public synchronized boolean hasTokens(int tokens) {
+        refill();
+        return mTokens >= Math.min(tokens, mCapacity);
+    }
+
+    /**
+     * @return Milliseconds until the next token is available, 0 if one is available now.
+     */
+    public long getWaitMs() {
+        return getWaitMs(1);
+    }
+
+    /**
+     * @param tokens Tokens needed.
+     * @return Milliseconds until tryTake(tokens) may succeed, 0 if it would succeed now.
+     */
+    public synchronized long getWaitMs(int tokens) {
+        refill();
+        double needed = Math.min(tokens, mCapacity);
+        if (mTokens >= needed) {
+            return 0;
+        }
+        return (long) Math.ceil((needed - mTokens) / mTokensPerNs / 1e6);
+    }
+
+    private void refill() {
+        long nowNs = System.nanoTime();
+        mTokens = Math.min(mCapacity, mTokens + (nowNs - mLastRefillNs) * mTokensPerNs);
+        mLastRefillNs = nowNs;
+    }
+}
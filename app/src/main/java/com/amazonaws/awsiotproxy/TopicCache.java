@@ -0,0 +1,63 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Small direct mapped cache of topic strings keyed by their UTF-8 bytes, so the few topics a
+ * device publishes to are not decoded into a new String for every message.
+ */
+final class TopicCache {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int SIZE = 64;
+    private final byte[][] mKeys = new byte[SIZE][];
+    private final String[] mTopics = new String[SIZE];
+
+    /**
+     * @return Topic decoded from src[from, to), the same instance for the same bytes if cached.
+     */
+    synchronized String intern(byte[] src, int from, int to) {
+        int hash = 1;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + src[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (SIZE - 1);
+        byte[] key = mKeys[slot];
+        if (key != null && key.length == to - from && regionEquals(key, src, from)) {
+            return mTopics[slot];
+        }
+        String topic = new String(src, from, to - from, UTF_8);
+        mKeys[slot] = Arrays.copyOfRange(src, from, to);
+        mTopics[slot] = topic;
+        return topic;
+    }
+
+    private static boolean regionEquals(byte[] key, byte[] src, int from) {
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != src[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
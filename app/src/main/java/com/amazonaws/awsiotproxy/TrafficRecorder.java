@@ -0,0 +1,151 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Captures raw frames exchanged with things into a compact binary file, which TrafficReplayer
+ * can feed back through the proxy later.
+ * <p>
+ * File layout: "TLVC", version byte, start time (8 bytes, ms since epoch), then records of
+ * [kind byte][varint thing index][varint ms since previous record][varint length][bytes].
+ * A THING record maps a new thing index to its UTF-8 thing id and precedes its first frame.
+ */
+public class TrafficRecorder {
+    private static final String TAG = "TrafficRecorder";
+    static final byte[] MAGIC = {'T', 'L', 'V', 'C'};
+    static final int VERSION = 1;
+    static final int KIND_THING = 0;
+    private final DataOutputStream mOutput;
+    private final Map<String, Integer> mThingIndexes = new HashMap<>();
+    private long mLastTimestampMs;
+    private boolean mClosed;
+
+    public enum Direction {
+        FROM_THING,
+        TO_THING,
+    }
+
+    /**
+     * Instantiates a new TrafficRecorder writing to a capture file.
+     *
+     * @param captureFile Capture file, overwritten if exists.
+     * @throws IOException If the file cannot be created.
+     */
+    public TrafficRecorder(@NonNull File captureFile) throws IOException {
+        this(new FileOutputStream(captureFile));
+    }
+
+    public TrafficRecorder(@NonNull OutputStream output) throws IOException {
+        mOutput = new DataOutputStream(new BufferedOutputStream(output));
+        mLastTimestampMs = System.currentTimeMillis();
+        mOutput.write(MAGIC);
+        mOutput.writeByte(VERSION);
+        mOutput.writeLong(mLastTimestampMs);
+    }
+
+    /**
+     * Append a frame to capture.
+     *
+     * @param thingId   Thing the frame is exchanged with.
+     * @param direction Direction of the frame.
+     * @param data      Raw frame bytes.
+     */
+    public synchronized void record(String thingId, Direction direction, byte[] data) {
+        if (mClosed) {
+            return;
+        }
+        try {
+            Integer thingIndex = mThingIndexes.get(thingId);
+            if (thingIndex == null) {
+                thingIndex = mThingIndexes.size();
+                mThingIndexes.put(thingId, thingIndex);
+                writeRecord(KIND_THING, thingIndex, 0, thingId.getBytes("UTF-8"));
+            }
+            long nowMs = Math.max(System.currentTimeMillis(), mLastTimestampMs);
+            writeRecord(direction.ordinal() + 1, thingIndex, nowMs - mLastTimestampMs, data);
+            mLastTimestampMs = nowMs;
+        } catch (IOException e) {
+            Log.e(TAG, "Capture write error, recording stopped.", e);
+            close();
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        if (!mClosed) {
+            mOutput.flush();
+        }
+    }
+
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mOutput.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Capture close error.", e);
+        }
+    }
+
+    private void writeRecord(int kind, int thingIndex, long deltaMs, byte[] data) throws IOException {
+        mOutput.writeByte(kind);
+        writeVarint(mOutput, thingIndex);
+        writeVarint(mOutput, deltaMs);
+        writeVarint(mOutput, data.length);
+        mOutput.write(data);
+    }
+
+    static void writeVarint(DataOutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+
+    static long readVarint(DataInputStream input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new EOFException("Malformed varint");
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Feeds frames captured by TrafficRecorder back through the proxy pipeline, at original pace,
+ * N times faster or as fast as possible, and reports the throughput reached.
+ */
+public class TrafficReplayer {
+    private static final String TAG = "TrafficReplayer";
+    public static final double MAX_SPEED = 0;
+    private final File mCaptureFile;
+
+    public static class Result {
+        public int frames;
+        public long bytes;
+        public int skippedFrames;
+        public long elapsedMs;
+
+        public double framesPerSecond() {
+            return elapsedMs == 0 ? frames * 1000.0 : frames * 1000.0 / elapsedMs;
+        }
+
+        @Override
+        public String toString() {
+            return frames + " frames, " + bytes + " bytes in " + elapsedMs + "ms ("
+                    + (int) framesPerSecond() + " frames/s), " + skippedFrames + " skipped";
+        }
+    }
+
+    public TrafficReplayer(@NonNull File captureFile) {
+        mCaptureFile = captureFile;
+    }
+
+    /**
+     * Replay every frame captured from things into the matched thing, as if it was just read
+     * from the device. Frames sent to things are outputs of the proxy and are not replayed.
+     *
+     * @param things Things to replay into, keyed by thing id. Frames of other things are skipped.
+     * @param speed  1 for original pace, N for N times faster, MAX_SPEED for no delay.
+     * @return Replay result.
+     * @throws IOException If capture file cannot be read.
+     */
+    public Result replay(@NonNull Map<String, CustomizedThing> things, double speed) throws IOException {
+        Result result = new Result();
+        List<String> thingIds = new ArrayList<>();
+        long captureTimeMs = 0;
+        long startNs = System.nanoTime();
+        try (InputStream input = new BufferedInputStream(new FileInputStream(mCaptureFile))) {
+            DataInputStream dataInput = new DataInputStream(input);
+            readHeader(dataInput);
+            while (true) {
+                int kind = dataInput.read();
+                if (kind < 0) {
+                    break;
+                }
+                int thingIndex = (int) TrafficRecorder.readVarint(dataInput);
+                captureTimeMs += TrafficRecorder.readVarint(dataInput);
+                byte[] data = new byte[(int) TrafficRecorder.readVarint(dataInput)];
+                dataInput.readFully(data);
+
+                if (kind == TrafficRecorder.KIND_THING) {
+                    thingIds.add(new String(data, "UTF-8"));
+                    continue;
+                }
+                if (kind != TrafficRecorder.Direction.FROM_THING.ordinal() + 1) {
+                    continue;
+                }
+                CustomizedThing thing = thingIndex < thingIds.size() ? things.get(thingIds.get(thingIndex)) : null;
+                if (thing == null) {
+                    result.skippedFrames++;
+                    continue;
+                }
+                if (speed > 0) {
+                    waitUntil(startNs + (long) (captureTimeMs * 1000000L / speed));
+                }
+                thing.handleFrameFromThing(data);
+                result.frames++;
+                result.bytes += data.length;
+            }
+        }
+        result.elapsedMs = (System.nanoTime() - startNs) / 1000000L;
+        Log.i(TAG, "Replayed " + mCaptureFile.getName() + ": " + result);
+        return result;
+    }
+
+    private static void readHeader(DataInputStream input) throws IOException {
+        byte[] magic = new byte[TrafficRecorder.MAGIC.length];
+        input.readFully(magic);
+        if (!Arrays.equals(magic, TrafficRecorder.MAGIC)) {
+            throw new IOException("Not a traffic capture file");
+        }
+        int version = input.readUnsignedByte();
+        if (version != TrafficRecorder.VERSION) {
+            throw new IOException("Unsupported capture version " + version);
+        }
+        input.readLong();
+    }
+
+    private static void waitUntil(long deadlineNs) {
+        long remainingMs = (deadlineNs - System.nanoTime()) / 1000000L;
+        if (remainingMs <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(remainingMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
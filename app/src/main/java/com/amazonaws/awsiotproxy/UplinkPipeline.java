@@ -0,0 +1,113 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chain of UplinkStage ending at a terminal publisher.
+ */
+public class UplinkPipeline {
+    private final UplinkStage.Next mTerminal;
+    private final AbsorbedListener mAbsorbedListener;
+    private volatile Chain mChain = new Chain(new ArrayList<UplinkStage>());
+
+    public interface AbsorbedListener {
+        /**
+         * Called when a stage absorbed an envelope.
+         *
+         * @param envelope Absorbed envelope.
+         */
+        void onAbsorbed(CustomizedMqttEnvelope envelope);
+    }
+
+    /**
+     * Instantiates a new UplinkPipeline.
+     *
+     * @param terminal         Receives envelopes passed by every stage.
+     * @param absorbedListener Called for envelopes absorbed by a stage.
+     */
+    public UplinkPipeline(@NonNull UplinkStage.Next terminal, @NonNull AbsorbedListener absorbedListener) {
+        mTerminal = terminal;
+        mAbsorbedListener = absorbedListener;
+    }
+
+    /**
+     * Append a stage right before the terminal publisher.
+     *
+     * @param stage Stage to append.
+     */
+    public synchronized void addStage(@NonNull UplinkStage stage) {
+        List<UplinkStage> stages = new ArrayList<>(mChain.mStages);
+        stages.add(stage);
+        mChain = new Chain(stages);
+    }
+
+    public synchronized void removeStage(@NonNull UplinkStage stage) {
+        List<UplinkStage> stages = new ArrayList<>(mChain.mStages);
+        stages.remove(stage);
+        mChain = new Chain(stages);
+    }
+
+    /**
+     * Run an envelope through every stage.
+     *
+     * @param envelope Publish envelope received from thing.
+     */
+    public void process(CustomizedMqttEnvelope envelope) {
+        mChain.process(0, envelope);
+    }
+
+    /**
+     * Immutable snapshot of stages, envelopes already in flight finish on the snapshot they
+     * entered even if stages are changed meanwhile.
+     */
+    private class Chain {
+        private final List<UplinkStage> mStages;
+        private final List<UplinkStage.Next> mNexts = new ArrayList<>();
+
+        Chain(List<UplinkStage> stages) {
+            mStages = stages;
+            for (int i = 0; i < stages.size(); i++) {
+                final int nextIndex = i + 1;
+                mNexts.add(new UplinkStage.Next() {
+                    @Override
+                    public void publish(CustomizedMqttEnvelope envelope) {
+                        process(nextIndex, envelope);
+                    }
+                });
+            }
+        }
+
+        void process(int index, CustomizedMqttEnvelope envelope) {
+            if (index == mStages.size()) {
+                mTerminal.publish(envelope);
+                return;
+            }
+            if (!mStages.get(index).process(envelope, mNexts.get(index))) {
+                mAbsorbedListener.onAbsorbed(envelope);
+            }
+        }
+    }
+}
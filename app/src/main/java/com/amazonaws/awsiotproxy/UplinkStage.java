@@ -0,0 +1,47 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+/**
+ * A processing step between envelopes published by thing and AWS IoT core. Stages are chained
+ * in the order they are added to a thing, the last stage hands envelopes to publishToIoT().
+ */
+public interface UplinkStage {
+
+    interface Next {
+        /**
+         * Hand an envelope to the following stage, may be called later from another thread.
+         *
+         * @param envelope Envelope to publish.
+         */
+        void publish(CustomizedMqttEnvelope envelope);
+    }
+
+    /**
+     * Process a publish envelope received from thing.
+     *
+     * @param envelope Publish envelope.
+     * @param next     Following stage.
+     * @return False if the envelope was absorbed by this stage and will never reach next, the
+     * proxy then acknowledges it to thing right away.
+     */
+    boolean process(CustomizedMqttEnvelope envelope, Next next);
+}
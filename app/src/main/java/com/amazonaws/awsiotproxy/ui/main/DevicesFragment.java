@@ -39,6 +39,7 @@ import androidx.core.content.ContextCompat;
 import androidx.fragment.app.Fragment;
 
 import android.os.ParcelUuid;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -46,11 +47,21 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.amazonaws.awsiotproxy.CapabilityCache;
+import com.amazonaws.awsiotproxy.DeviceRegistry;
+import com.amazonaws.awsiotproxy.CloudReadiness;
 import com.amazonaws.awsiotproxy.CustomizedThing;
+import com.amazonaws.awsiotproxy.DeviceShadow;
 import com.amazonaws.awsiotproxy.ESP32CustomizedThing;
+import com.amazonaws.awsiotproxy.FairUplinkScheduler;
+import com.amazonaws.awsiotproxy.LanCustomizedThing;
 import com.amazonaws.awsiotproxy.MyDummyCustomizedThing;
 import com.amazonaws.awsiotproxy.ProxyConfig;
 import com.amazonaws.awsiotproxy.R;
+import com.amazonaws.awsiotproxy.RetainedMessageCache;
+import com.amazonaws.awsiotproxy.RpcChannel;
+import com.amazonaws.awsiotproxy.TimeSeriesStore;
+import com.amazonaws.awsiotproxy.TrafficRecorder;
 import com.amazonaws.mobile.client.AWSMobileClient;
 
 import androidx.recyclerview.widget.DefaultItemAnimator;
@@ -58,7 +69,10 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -68,6 +82,12 @@ import static com.amazonaws.mobile.auth.core.internal.util.ThreadUtils.runOnUiTh
 
 
 public class DevicesFragment extends Fragment {
+    private static final String TAG = "DevicesFragment";
+    private static final String CAPTURE_FILE_NAME = "traffic.cap";
+    private static final String HISTORY_DIRECTORY_NAME = "history";
+    private static final String CAPABILITIES_PREFS_NAME = "thing_capabilities";
+    private static final String DEVICE_REGISTRY_PREFS_NAME = "device_registry";
+    private static final long UPLINK_STARVATION_MS = 1000;
 
     private ArrayList<CustomizedThing> mDevicesList = new ArrayList<>();
     private SwipeRefreshLayout mSwipeRefreshLayout;
@@ -77,6 +97,12 @@ public class DevicesFragment extends Fragment {
     private BluetoothAdapter mBluetoothAdapter;
     private BluetoothManager mBluetoothManager;
     private CustomizedThing.OnConnectionStateListener mOnConnectionStateListener;
+    private DeviceShadow mDeviceShadow;
+    private FairUplinkScheduler mUplinkScheduler;
+    private RpcChannel mRpcChannel;
+    private TimeSeriesStore mHistoryStore;
+    private DeviceRegistry mDeviceRegistry;
+    private TrafficRecorder mTrafficRecorder;
 
     public static DevicesFragment newInstance() {
         return new DevicesFragment();
@@ -131,10 +157,18 @@ public class DevicesFragment extends Fragment {
             }
 
             @Override
-            public void onThingConnectionStateChanged(CustomizedThing thing, CustomizedThing.ThingConnectionState state) {
+            public void onThingConnectionStateChanged(final CustomizedThing thing, CustomizedThing.ThingConnectionState state) {
                 if (state == CustomizedThing.ThingConnectionState.Thing_Connected) {
                     makeToast("Thing Connected, Connecting to AWS");
-                    thing.connectToIoT();
+                    /* Known things reconnect at startup, possibly before sign-in and policy attachment are done */
+                    CloudReadiness.runWhenReady(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (thing.getThingConnectionState() == CustomizedThing.ThingConnectionState.Thing_Connected) {
+                                thing.connectToIoT();
+                            }
+                        }
+                    });
                 }
                 if (state == CustomizedThing.ThingConnectionState.Thing_Disconnected) {
                     makeToast("Thing Disconnected, Disconnecting from AWS");
@@ -142,6 +176,40 @@ public class DevicesFragment extends Fragment {
                 }
             }
         };
+        if (ProxyConfig.captureTraffic) {
+            try {
+                mTrafficRecorder = new TrafficRecorder(new File(getContext().getFilesDir(), CAPTURE_FILE_NAME));
+                CustomizedThing.setTrafficRecorder(mTrafficRecorder);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot start traffic capture.", e);
+            }
+        }
+        if (ProxyConfig.historyCapacity > 0) {
+            mHistoryStore = new TimeSeriesStore(new File(getContext().getFilesDir(), HISTORY_DIRECTORY_NAME),
+                    ProxyConfig.historyCapacity, ProxyConfig.historyMaxSeries);
+        }
+        if (ProxyConfig.negotiateCapabilities) {
+            CustomizedThing.setCapabilityCache(new CapabilityCache(
+                    getContext().getSharedPreferences(CAPABILITIES_PREFS_NAME, Context.MODE_PRIVATE)));
+        }
+        if (ProxyConfig.retainedCacheSize > 0) {
+            CustomizedThing.setRetainedCache(new RetainedMessageCache(ProxyConfig.retainedCacheSize,
+                    ProxyConfig.retainedCacheTtlMs));
+        }
+        if (!ProxyConfig.shadowStateTopic.isEmpty()) {
+            mDeviceShadow = new DeviceShadow(ProxyConfig.shadowStateTopic, DeviceShadow.DEFAULT_DELTA_TOPIC);
+        }
+        if (ProxyConfig.rpcCacheSize > 0) {
+            mRpcChannel = new RpcChannel(RpcChannel.DEFAULT_TOPIC_PREFIX, ProxyConfig.rpcCacheSize,
+                    RpcChannel.DEFAULT_TIMEOUT_MS, ProxyConfig.rpcCacheTtlMs);
+        }
+        if (ProxyConfig.reconnectKnownDevices) {
+            mDeviceRegistry = new DeviceRegistry(
+                    getContext().getSharedPreferences(DEVICE_REGISTRY_PREFS_NAME, Context.MODE_PRIVATE));
+        }
+        if (ProxyConfig.uplinkBytesPerSecond > 0) {
+            mUplinkScheduler = new FairUplinkScheduler(ProxyConfig.uplinkBytesPerSecond, UPLINK_STARVATION_MS);
+        }
         /**
          * Here we created a dummy devices
          */
@@ -149,10 +217,49 @@ public class DevicesFragment extends Fragment {
                 ProxyConfig.brokerEndpoint,
                 AWSMobileClient.getInstance(), getActivity());
         dummyThing.setOnConnectionStateListener(mOnConnectionStateListener);
+        addUplinkStages(dummyThing);
         mDevicesList.add(dummyThing);
+        for (String lanDevice : ProxyConfig.lanDevices) {
+            addLanDevice(lanDevice);
+        }
+        if (mDeviceRegistry != null && mBluetoothAdapter != null && mBluetoothAdapter.isEnabled()) {
+            /* Known things need no scan, connect to them by address right away */
+            for (DeviceRegistry.Device device : mDeviceRegistry.getAll()) {
+                ESP32CustomizedThing knownThing = addNewEsp32(mBluetoothAdapter.getRemoteDevice(device.address), device.name);
+                if (knownThing != null) {
+                    knownThing.connectToThing();
+                }
+            }
+        }
         makeToast("Swipe down to scan BLE devices");
     }
 
+    @Override
+    public void onStop() {
+        super.onStop();
+        if (mHistoryStore != null) {
+            mHistoryStore.flush();
+        }
+        /* Process may be killed from here on without another callback */
+        if (mTrafficRecorder != null) {
+            try {
+                mTrafficRecorder.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot flush traffic capture.", e);
+            }
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mTrafficRecorder != null) {
+            CustomizedThing.setTrafficRecorder(null);
+            mTrafficRecorder.close();
+            mTrafficRecorder = null;
+        }
+    }
+
     public void addThingChangeListener(ThingChangeListener listener) {
         if (listener != null && !mListeners.contains(listener)) {
             mListeners.add(listener);
@@ -165,6 +272,13 @@ public class DevicesFragment extends Fragment {
         }
     }
 
+    /**
+     * @return Recent readings of every thing for charts, null if history is disabled.
+     */
+    public TimeSeriesStore getHistoryStore() {
+        return mHistoryStore;
+    }
+
     private void notifyThingChangeListener(CustomizedThing thing) {
         for (ThingChangeListener listener : mListeners) {
             if (listener != null) {
@@ -173,17 +287,63 @@ public class DevicesFragment extends Fragment {
         }
     }
 
-    private void addNewEsp32(BluetoothDevice bluetoothDevice) {
+    /**
+     * @param thingId Thing name, the device name for scanned devices.
+     * @return New thing, null if thing is listed already.
+     */
+    private ESP32CustomizedThing addNewEsp32(BluetoothDevice bluetoothDevice, String thingId) {
         for (CustomizedThing existThing : mDevicesList) {
-            if (bluetoothDevice.getName().equals(existThing.getThingId())) {
-                return;
+            if (thingId.equals(existThing.getThingId())) {
+                return null;
             }
         }
-        ESP32CustomizedThing newThing = new ESP32CustomizedThing(bluetoothDevice.getName(),
+        ESP32CustomizedThing newThing = new ESP32CustomizedThing(thingId,
                 ProxyConfig.brokerEndpoint, AWSMobileClient.getInstance(), getContext(), bluetoothDevice);
+        newThing.setL2capPsm(ProxyConfig.l2capPsm);
+        newThing.setDeviceRegistry(mDeviceRegistry);
         newThing.setOnConnectionStateListener(mOnConnectionStateListener);
+        addUplinkStages(newThing);
         mDevicesList.add(newThing);
         mDevicesRecyclerViewAdapter.notifyDataSetChanged();
+        return newThing;
+    }
+
+    private void addLanDevice(String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        if (colon < 0) {
+            Log.e(TAG, "LAN device needs host:port, got: " + hostAndPort);
+            return;
+        }
+        InetSocketAddress address;
+        try {
+            address = InetSocketAddress.createUnresolved(hostAndPort.substring(0, colon),
+                    Integer.parseInt(hostAndPort.substring(colon + 1)));
+        } catch (IllegalArgumentException e) {
+            /* Also covers NumberFormatException of a malformed port */
+            Log.e(TAG, "LAN device needs a port between 0 and 65535, got: " + hostAndPort);
+            return;
+        }
+        LanCustomizedThing newThing = new LanCustomizedThing(hostAndPort, ProxyConfig.brokerEndpoint,
+                AWSMobileClient.getInstance(), address, LanCustomizedThing.Protocol.TCP);
+        newThing.setOnConnectionStateListener(mOnConnectionStateListener);
+        addUplinkStages(newThing);
+        mDevicesList.add(newThing);
+    }
+
+    private void addUplinkStages(CustomizedThing thing) {
+        /* History first so it sees every reading, scheduler last as it feeds MQTT */
+        if (mHistoryStore != null) {
+            thing.addUplinkStage(mHistoryStore);
+        }
+        if (mDeviceShadow != null) {
+            thing.enableDeviceShadow(mDeviceShadow);
+        }
+        if (mRpcChannel != null) {
+            thing.enableRpc(mRpcChannel);
+        }
+        if (mUplinkScheduler != null) {
+            thing.addUplinkStage(mUplinkScheduler);
+        }
     }
 
     private DevicesRecyclerViewAdapter.ViewHolder getViewHolderByThingId(final String thingId) {
@@ -278,7 +438,7 @@ public class DevicesFragment extends Fragment {
                 public void onScanResult(int callbackType, ScanResult result) {
                     super.onScanResult(callbackType, result);
                     if (result != null) {
-                        mFragmentReference.get().addNewEsp32(result.getDevice());
+                        mFragmentReference.get().addNewEsp32(result.getDevice(), result.getDevice().getName());
                     }
                 }
             };
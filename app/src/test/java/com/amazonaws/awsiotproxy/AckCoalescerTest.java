@@ -0,0 +1,92 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AckCoalescerTest {
+    private final List<byte[]> mAcks = Collections.synchronizedList(new ArrayList<byte[]>());
+    private final AckCoalescer mCoalescer = new AckCoalescer(20, new AckCoalescer.AckSink() {
+        @Override
+        public void onAck(MyTLV ack) {
+            mAcks.add(ack.encodedBytesStream);
+        }
+    });
+
+    private static CustomizedMqttEnvelope decode(String raw) throws Exception {
+        byte[] encoded = new MyTLV(MyTLV.TLVType.PUB, raw.getBytes("UTF-8")).encodedBytesStream;
+        return new MyTLV(encoded).toCustomizedMqttEnvelope();
+    }
+
+    @Test
+    public void consecutiveIdsAreMergedIntoRanges() {
+        for (int id : new int[]{5, 3, 4, 9, 7, 8, 12}) {
+            mCoalescer.add(id);
+        }
+        mCoalescer.add(4);
+        mCoalescer.flush();
+        assertEquals(3, mAcks.size());
+        assertArrayEquals(MyTLV.newAckRange(3, 5).encodedBytesStream, mAcks.get(0));
+        assertArrayEquals(MyTLV.newAckRange(7, 9).encodedBytesStream, mAcks.get(1));
+        assertArrayEquals(MyTLV.newPubAck(12).encodedBytesStream, mAcks.get(2));
+        mCoalescer.flush();
+        assertEquals(3, mAcks.size());
+    }
+
+    @Test
+    public void windowFlushesOnItsOwn() throws Exception {
+        mCoalescer.add(1);
+        mCoalescer.add(2);
+        assertEquals(0, mAcks.size());
+        for (int i = 0; i < 100 && mAcks.isEmpty(); i++) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, mAcks.size());
+        assertArrayEquals(MyTLV.newAckRange(1, 2).encodedBytesStream, mAcks.get(0));
+        /* Ids added after a flush start a new window */
+        mCoalescer.add(7);
+        for (int i = 0; i < 100 && mAcks.size() < 2; i++) {
+            Thread.sleep(5);
+        }
+        assertArrayEquals(MyTLV.newPubAck(7).encodedBytesStream, mAcks.get(1));
+    }
+
+    @Test
+    public void malformedMessageIdsAreIgnored() throws Exception {
+        assertEquals(CustomizedMqttEnvelope.NO_MESSAGE_ID, decode("[t]1#{a:1}").messageId);
+        assertEquals(CustomizedMqttEnvelope.NO_MESSAGE_ID, decode("[t]1#65536{a:1}").messageId);
+        assertEquals(CustomizedMqttEnvelope.NO_MESSAGE_ID, decode("[t]1#99999999999{a:1}").messageId);
+        assertEquals(65535, decode("[t]1#65535{a:1}").messageId);
+        assertEquals(0, decode("[t]1#0{a:1}").messageId);
+        CustomizedMqttEnvelope untagged = decode("[t]1{a:1}");
+        assertEquals(AWSIotMqttQos.QOS1, untagged.qoS);
+        assertEquals(CustomizedMqttEnvelope.NO_MESSAGE_ID, untagged.messageId);
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BulkTransferChannelTest {
+    private static final String PREFIX = "bulk/thing";
+    private static final long RETRANSMIT_TIMEOUT_MS = 20;
+    private final List<BulkTransferChannel.Progress> mProgress = new ArrayList<>();
+    private final BulkTransferChannel mChannel = new BulkTransferChannel(PREFIX, 4, RETRANSMIT_TIMEOUT_MS,
+            new BulkTransferChannel.Listener() {
+                @Override
+                public void onReady() {
+                }
+
+                @Override
+                public void onProgress(BulkTransferChannel.Progress progress) {
+                    synchronized (mProgress) {
+                        mProgress.add(progress);
+                    }
+                }
+            });
+
+    /**
+     * Thing side of the protocol, keeps what it received across disconnects.
+     */
+    private static class Device {
+        int id = -1;
+        byte[] data;
+        BitSet received = new BitSet();
+        int blockCount;
+        int crc;
+        int dataFrames;
+        boolean corruptOnce;
+
+        byte[] onFrame(byte[] frame) {
+            int frameId = ((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF);
+            if (frame[0] == MyTLV.TLVType.BULK_BEGIN.ordinal()) {
+                if (frameId != id) {
+                    id = frameId;
+                    int length = ((frame[4] & 0xFF) << 24) | ((frame[5] & 0xFF) << 16) | ((frame[6] & 0xFF) << 8) | (frame[7] & 0xFF);
+                    crc = ((frame[8] & 0xFF) << 24) | ((frame[9] & 0xFF) << 16) | ((frame[10] & 0xFF) << 8) | (frame[11] & 0xFF);
+                    data = new byte[length];
+                    received.clear();
+                    blockCount = (length + (frame[12] & 0xFF) - 1) / (frame[12] & 0xFF);
+                }
+                return ack();
+            }
+            if (frameId != id) {
+                return null;
+            }
+            dataFrames++;
+            int block = ((frame[4] & 0xFF) << 8) | (frame[5] & 0xFF);
+            System.arraycopy(frame, 6, data, block * BulkTransferChannel.BLOCK_SIZE, frame.length - 6);
+            received.set(block);
+            return ack();
+        }
+
+        byte[] ack() {
+            int next = received.nextClearBit(0);
+            int bitmap = 0;
+            for (int bit = 0; bit < 32; bit++) {
+                if (received.get(next + 1 + bit)) {
+                    bitmap |= 1 << (31 - bit);
+                }
+            }
+            int status = BulkTransferChannel.STATUS_IN_PROGRESS;
+            if (next >= blockCount) {
+                if (corruptOnce) {
+                    corruptOnce = false;
+                    data[0]++;
+                }
+                CRC32 check = new CRC32();
+                check.update(data, 0, data.length);
+                status = (int) check.getValue() == crc ? BulkTransferChannel.STATUS_VERIFIED
+                        : BulkTransferChannel.STATUS_CRC_ERROR;
+            }
+            return new MyTLV(MyTLV.TLVType.BULK_ACK, new byte[]{(byte) (id >> 8), (byte) id, (byte) (next >> 8),
+                    (byte) next, (byte) (bitmap >>> 24), (byte) (bitmap >> 16), (byte) (bitmap >> 8), (byte) bitmap,
+                    (byte) status}).encodedBytesStream;
+        }
+    }
+
+    private static byte[] object(int size) {
+        byte[] object = new byte[size];
+        new Random(size).nextBytes(object);
+        return object;
+    }
+
+    private void publish(String objectId, byte[] object, int chunkSize) {
+        int count = (object.length + chunkSize - 1) / chunkSize;
+        /* Last chunk first and one duplicate, as QoS1 may deliver them */
+        for (int i = count - 1; i >= 0; i--) {
+            byte[] chunk = Arrays.copyOfRange(object, i * chunkSize, Math.min(object.length, (i + 1) * chunkSize));
+            assertTrue(mChannel.onCloudMessage(PREFIX + "/" + objectId + "/" + i + "/" + count, chunk));
+            if (i == count - 1) {
+                mChannel.onCloudMessage(PREFIX + "/" + objectId + "/" + i + "/" + count, chunk);
+            }
+        }
+    }
+
+    /**
+     * Move frames between channel and device until the transfer ended.
+     *
+     * @param lossEvery Every n-th data frame is lost, 0 for none.
+     */
+    private BulkTransferChannel.Progress run(Device device, int lossEvery, int maxFrames) throws Exception {
+        int sent = 0;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (mProgress) {
+                for (BulkTransferChannel.Progress progress : mProgress) {
+                    if (progress.state == BulkTransferChannel.State.DONE || progress.state == BulkTransferChannel.State.FAILED) {
+                        return progress;
+                    }
+                }
+            }
+            byte[] frame = mChannel.nextFrame();
+            if (frame == null) {
+                Thread.sleep(5);
+                continue;
+            }
+            if (sent++ == maxFrames) {
+                return null;
+            }
+            if (lossEvery > 0 && frame[0] == MyTLV.TLVType.BULK_DATA.ordinal() && sent % lossEvery == 0) {
+                continue;
+            }
+            byte[] ack = device.onFrame(frame);
+            if (ack != null) {
+                assertTrue(mChannel.onFrame(ack));
+            }
+        }
+        throw new AssertionError("Timed out");
+    }
+
+    @Test
+    public void lossyTransferCompletesWithSelectiveRetransmit() throws Exception {
+        byte[] object = object(5000);
+        mChannel.setLinkUp(true);
+        publish("config", object, 1024);
+        Device device = new Device();
+        mChannel.onFrame(device.onFrame(mChannel.nextFrame()));
+        /* Window of 4 blocks, nothing more until thing acknowledges */
+        for (int i = 0; i < 4; i++) {
+            assertEquals(MyTLV.TLVType.BULK_DATA.ordinal(), mChannel.nextFrame()[0]);
+        }
+        assertNull(mChannel.nextFrame());
+        BulkTransferChannel.Progress progress = run(device, 3, -1);
+        assertEquals(BulkTransferChannel.State.DONE, progress.state);
+        assertArrayEquals(object, device.data);
+        assertEquals(5000, progress.ackedBytes);
+        assertTrue(progress.retransmits > 0);
+    }
+
+    @Test
+    public void transferResumesAfterDisconnect() throws Exception {
+        byte[] object = object(4000);
+        mChannel.setLinkUp(true);
+        publish("table", object, 4000);
+        Device device = new Device();
+        assertNull(run(device, 0, 10));
+        mChannel.setLinkUp(false);
+        assertNull(mChannel.nextFrame());
+        mChannel.setLinkUp(true);
+        assertEquals(MyTLV.TLVType.BULK_BEGIN.ordinal(), mChannel.nextFrame()[0]);
+        mChannel.setLinkUp(false);
+        mChannel.setLinkUp(true);
+        assertEquals(BulkTransferChannel.State.DONE, run(device, 0, -1).state);
+        assertArrayEquals(object, device.data);
+        /* Blocks thing had before the disconnect were not sent again */
+        assertEquals(20, device.dataFrames);
+    }
+
+    @Test
+    public void corruptedCopyIsSentAgainUnderNewId() throws Exception {
+        byte[] object = object(1000);
+        mChannel.setLinkUp(true);
+        publish("firmware", object, 300);
+        Device device = new Device();
+        device.corruptOnce = true;
+        BulkTransferChannel.Progress progress = run(device, 0, -1);
+        assertEquals(BulkTransferChannel.State.DONE, progress.state);
+        assertArrayEquals(object, device.data);
+        assertEquals(10, device.dataFrames);
+    }
+
+    @Test
+    public void foreignTopicsAndFramesAreIgnored() {
+        assertFalse(mChannel.onCloudMessage(PREFIX + "/progress", new byte[1]));
+        assertFalse(mChannel.onCloudMessage("other/a/0/1", new byte[1]));
+        assertFalse(mChannel.onFrame(new MyTLV(MyTLV.TLVType.PUB, "[a]0{}".getBytes()).encodedBytesStream));
+        assertNull(mChannel.getProgress());
+    }
+
+    @Test
+    public void incompleteAndRedeliveredObjectsAreNotKept() throws Exception {
+        final int[] ready = {0};
+        BulkTransferChannel channel = new BulkTransferChannel(PREFIX, 4, RETRANSMIT_TIMEOUT_MS,
+                new BulkTransferChannel.Listener() {
+                    @Override
+                    public void onReady() {
+                        ready[0]++;
+                    }
+
+                    @Override
+                    public void onProgress(BulkTransferChannel.Progress progress) {
+                    }
+                });
+        for (int i = 0; i < 10; i++) {
+            channel.onCloudMessage(PREFIX + "/part" + i + "/0/2", new byte[4]);
+        }
+        assertEquals(8, channel.getAssemblyCount());
+        /* Oldest incomplete object was evicted and starts over */
+        channel.onCloudMessage(PREFIX + "/part0/1/2", new byte[4]);
+        assertEquals(0, ready[0]);
+
+        channel.onCloudMessage(PREFIX + "/part9/1/2", new byte[4]);
+        assertEquals(1, ready[0]);
+        /* Redelivered chunks of an assembled object do not send it again */
+        channel.onCloudMessage(PREFIX + "/part9/0/2", new byte[4]);
+        channel.onCloudMessage(PREFIX + "/part9/1/2", new byte[4]);
+        assertEquals(1, ready[0]);
+        assertEquals(7, channel.getAssemblyCount());
+
+        channel.setAssemblyTtlMs(20);
+        Thread.sleep(40);
+        channel.onCloudMessage(PREFIX + "/part8/1/2", new byte[4]);
+        assertEquals(1, channel.getAssemblyCount());
+        assertEquals(1, ready[0]);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package com.amazonaws.awsiotproxy;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CloudReadinessTest {
+    private final List<String> mRun = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        CloudReadiness.reset();
+    }
+
+    private Runnable task(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRun.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void tasksWaitForReadiness() {
+        CloudReadiness.runWhenReady(task("a"));
+        CloudReadiness.runWhenReady(task("b"));
+        assertTrue(mRun.isEmpty());
+        CloudReadiness.setReady();
+        assertEquals(2, mRun.size());
+        assertEquals("a", mRun.get(0));
+        /* Once ready tasks run right away */
+        CloudReadiness.runWhenReady(task("c"));
+        assertEquals("c", mRun.get(2));
+    }
+
+    @Test
+    public void resetDefersAgainAndDropsPending() {
+        CloudReadiness.runWhenReady(task("a"));
+        CloudReadiness.reset();
+        CloudReadiness.setReady();
+        assertTrue(mRun.isEmpty());
+        CloudReadiness.reset();
+        CloudReadiness.runWhenReady(task("b"));
+        assertTrue(mRun.isEmpty());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttClientStatusCallback;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttMessageDeliveryCallback;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttNewMessageCallback;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class CustomizedMqttEnvelopeTest {
+
+    private static CustomizedMqttEnvelope obtain(String topic) {
+        return CustomizedMqttEnvelope.obtain(topic, AWSIotMqttQos.QOS1,
+                CustomizedMqttEnvelope.CustomizedMqttEnvelopeType.Publish, "{}".getBytes());
+    }
+
+    @Test
+    public void releasedEnvelopeIsRecycled() {
+        CustomizedMqttEnvelope envelope = obtain("a").withMessageId(7);
+        envelope.priority = CustomizedMqttEnvelope.Priority.ALARM;
+        envelope.release();
+        assertNull(envelope.topic);
+        CustomizedMqttEnvelope recycled = obtain("b");
+        assertSame(envelope, recycled);
+        assertEquals("b", recycled.topic);
+        assertEquals(CustomizedMqttEnvelope.NO_MESSAGE_ID, recycled.messageId);
+        assertEquals(CustomizedMqttEnvelope.Priority.NORMAL, recycled.priority);
+        recycled.release();
+    }
+
+    @Test
+    public void retainedEnvelopeNeedsEveryRelease() {
+        CustomizedMqttEnvelope envelope = obtain("a").retain();
+        envelope.release();
+        assertEquals("a", envelope.topic);
+        envelope.release();
+        assertNull(envelope.topic);
+        try {
+            envelope.release();
+            fail("Second release must be rejected");
+        } catch (IllegalStateException expected) {
+            /* Expected */
+        }
+    }
+
+    @Test
+    public void failedPublishReleasesEnvelopeOnce() {
+        RecordingThing thing = new RecordingThing("thing", new ProxyMqttClient.Factory() {
+            @Override
+            public ProxyMqttClient create(String clientId, String brokerEndpoint, AWSCredentialsProvider awsCredentials) {
+                return new ProxyMqttClient() {
+                    @Override
+                    public void connect(AWSIotMqttClientStatusCallback statusCallback) {
+                        statusCallback.onStatusChanged(AWSIotMqttClientStatusCallback.AWSIotMqttClientStatus.Connected, null);
+                    }
+
+                    @Override
+                    public void disconnect() {
+                    }
+
+                    @Override
+                    public void publishData(byte[] data, String topic, AWSIotMqttQos qos,
+                                            AWSIotMqttMessageDeliveryCallback deliveryCallback, Object userData) {
+                        /* As AWSIotMqttManager does when the publish cannot be queued */
+                        deliveryCallback.statusChanged(AWSIotMqttMessageDeliveryCallback.MessageDeliveryStatus.Fail, userData);
+                        throw new AmazonClientException("Client error while publishing.");
+                    }
+
+                    @Override
+                    public void subscribeToTopic(String topicFilter, AWSIotMqttQos qos, AWSIotMqttNewMessageCallback callback) {
+                    }
+
+                    @Override
+                    public void unsubscribeTopic(String topicFilter) {
+                    }
+                };
+            }
+        });
+        thing.connectToThing();
+        thing.connectToIoT();
+        CustomizedMqttEnvelope envelope = obtain("proxy/test");
+        thing.handleEnvelopeFromThing(envelope);
+        assertNull(envelope.topic);
+        /* Back in the pool once, the next message gets it to itself */
+        CustomizedMqttEnvelope next = obtain("proxy/next");
+        assertSame(envelope, next);
+        assertEquals("proxy/next", next.topic);
+        next.release();
+    }
+}
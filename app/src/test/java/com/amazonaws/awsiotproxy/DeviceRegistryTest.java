@@ -0,0 +1,57 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceRegistryTest {
+    @Test
+    public void listsMostRecentlyConnectedFirst() {
+        DeviceRegistry registry = new DeviceRegistry(null);
+        registry.put(new DeviceRegistry.Device("AA:00", "old", 23, false, 1000));
+        registry.put(new DeviceRegistry.Device("AA:01", "new", 64, true, 3000));
+        registry.put(new DeviceRegistry.Device("AA:02", "middle", 64, true, 2000));
+        List<DeviceRegistry.Device> devices = registry.getAll();
+        assertEquals("new", devices.get(0).name);
+        assertEquals("middle", devices.get(1).name);
+        assertEquals("old", devices.get(2).name);
+        registry.remove("AA:01");
+        assertNull(registry.get("AA:01"));
+        assertEquals(2, registry.getAll().size());
+    }
+
+    @Test
+    public void entryRoundTripsThroughJson() {
+        DeviceRegistry.Device device = new DeviceRegistry.Device("AA:00", "esp32", 64, true, 1234);
+        DeviceRegistry.Device decoded = DeviceRegistry.Device.fromJson("AA:00", device.toJson());
+        assertEquals("AA:00", decoded.address);
+        assertEquals("esp32", decoded.name);
+        assertEquals(64, decoded.mtu);
+        assertTrue(decoded.splitProfile);
+        assertEquals(1234, decoded.lastConnectedMs);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import org.junit.Test;
+
+import software.amazon.freertos.amazonfreertossdk.AmazonFreeRTOSConstants.MqttConnectionState;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceShadowTest {
+    private final DeviceShadow mShadow = new DeviceShadow("proxy/state", DeviceShadow.DEFAULT_DELTA_TOPIC);
+    private final List<CustomizedMqttEnvelope> mPublished = new ArrayList<>();
+    private final UplinkStage.Next mNext = new UplinkStage.Next() {
+        @Override
+        public void publish(CustomizedMqttEnvelope envelope) {
+            mPublished.add(envelope);
+        }
+    };
+
+    private boolean report(String topic, String payload) {
+        CustomizedMqttEnvelope envelope = CustomizedMqttEnvelope.newPublishEnvelope(topic, AWSIotMqttQos.QOS1, payload.getBytes());
+        envelope.thingId = "lamp";
+        return mShadow.process(envelope, mNext);
+    }
+
+    @Test
+    public void onlyChangedKeysAreReported() {
+        assertTrue(report("proxy/state", "{\"led\":1,\"temp\":\"25\",\"net\":{\"rssi\":-60,\"ch\":6}}"));
+        assertEquals("$aws/things/lamp/shadow/update", mPublished.get(0).topic);
+        assertEquals("{\"state\":{\"reported\":{\"led\":1,\"temp\":\"25\",\"net\":{\"rssi\":-60,\"ch\":6}}}}",
+                new String(mPublished.get(0).payload));
+
+        assertFalse(report("proxy/state", "{\"led\":1,\"temp\":\"25\",\"net\":{\"rssi\":-60,\"ch\":6}}"));
+        assertEquals(1, mShadow.getSuppressedCount());
+
+        assertTrue(report("proxy/state", "{\"led\":1,\"temp\":\"26\",\"net\":{\"rssi\":-62,\"ch\":6}}"));
+        assertEquals("{\"state\":{\"reported\":{\"temp\":\"26\",\"net\":{\"rssi\":-62}}}}",
+                new String(mPublished.get(1).payload));
+        assertEquals(2, mShadow.getUpdateCount());
+
+        /* Other topics pass unchanged */
+        assertTrue(report("proxy/log", "{\"led\":1}"));
+        assertEquals("proxy/log", mPublished.get(2).topic);
+    }
+
+    @Test
+    public void desiredDeltaIsForwardedCompactly() {
+        report("proxy/state", "{\"led\":0,\"mode\":\"eco\"}");
+        byte[] delta = mShadow.onCloudMessage("lamp", "$aws/things/lamp/shadow/update/delta",
+                "{\"version\":12,\"timestamp\":1600000000,\"state\":{\"led\":1,\"mode\":\"eco\"},\"metadata\":{\"led\":{\"timestamp\":1600000000}}}".getBytes());
+        /* mode is already reported by thing */
+        assertEquals("{\"led\":1}", new String(delta));
+        assertEquals("{\"led\":1,\"mode\":\"eco\"}", mShadow.getDesired("lamp"));
+
+        assertNull(mShadow.onCloudMessage("lamp", "$aws/things/lamp/shadow/update/delta",
+                "{\"version\":13,\"state\":{\"mode\":\"eco\"}}".getBytes()));
+    }
+
+    @Test
+    public void documentIsSeededFromCloudAndResyncedOnReject() {
+        byte[] delta = mShadow.onCloudMessage("lamp", "$aws/things/lamp/shadow/get/accepted",
+                ("{\"state\":{\"desired\":{\"led\":1},\"reported\":{\"led\":0,\"mode\":\"eco\"},"
+                        + "\"delta\":{\"led\":1}},\"version\":3}").getBytes());
+        assertEquals("{\"led\":1}", new String(delta));
+        assertFalse(report("proxy/state", "{\"led\":0,\"mode\":\"eco\"}"));
+
+        mShadow.onCloudMessage("lamp", "$aws/things/lamp/shadow/update/rejected", "{\"code\":409}".getBytes());
+        assertTrue(report("proxy/state", "{\"led\":0,\"mode\":\"eco\"}"));
+        assertEquals("{\"state\":{\"reported\":{\"led\":0,\"mode\":\"eco\"}}}", new String(mPublished.get(0).payload));
+    }
+
+    @Test
+    public void legacyAckEchoesReportAsSent() throws Exception {
+        InMemoryMqttBroker broker = new InMemoryMqttBroker();
+        try {
+            final RecordingThing thing = new RecordingThing("lamp", broker);
+            thing.enableDeviceShadow(mShadow);
+            thing.connectToThing();
+            thing.connectToIoT();
+            RecordingThing.waitFor(new RecordingThing.Condition() {
+                @Override
+                public boolean isMet() {
+                    return thing.getMqttConnectionState() == MqttConnectionState.MQTT_Connected;
+                }
+            }, 1000);
+            thing.receiveFromThing(new MyTLV(MyTLV.TLVType.PUB, "[proxy/state]1{led:1}".getBytes()).encodedBytesStream);
+            RecordingThing.waitFor(new RecordingThing.Condition() {
+                @Override
+                public boolean isMet() {
+                    return thing.sentFrames.size() == 1;
+                }
+            }, 1000);
+
+            assertEquals(1, mShadow.getUpdateCount());
+            byte[] ack = thing.sentFrames.get(0);
+            assertEquals(MyTLV.TLVType.PUBACK.ordinal(), ack[0]);
+            assertEquals("{\"led\":\"1\"}", new String(ack, 2, ack.length - 2, "UTF-8"));
+        } finally {
+            broker.shutdown();
+        }
+    }
+}
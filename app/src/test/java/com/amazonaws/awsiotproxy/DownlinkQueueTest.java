@@ -0,0 +1,131 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import org.junit.Test;
+
+import software.amazon.freertos.amazonfreertossdk.AmazonFreeRTOSConstants.MqttConnectionState;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownlinkQueueTest {
+
+    private static CustomizedMqttEnvelope envelope(String topic, String payload) {
+        return CustomizedMqttEnvelope.newPublishEnvelope(topic, AWSIotMqttQos.QOS0, payload.getBytes());
+    }
+
+    @Test
+    public void dropOldestAndDropNewest() {
+        DownlinkQueue oldest = new DownlinkQueue(2, DownlinkQueue.Policy.DROP_OLDEST);
+        DownlinkQueue newest = new DownlinkQueue(2, DownlinkQueue.Policy.DROP_NEWEST);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(oldest.offer(envelope("t", "" + i)));
+            assertEquals(i < 2, newest.offer(envelope("t", "" + i)));
+        }
+        assertEquals("1", new String(oldest.poll().payload));
+        assertEquals("0", new String(newest.poll().payload));
+        assertEquals(1, oldest.getDroppedCount());
+        assertEquals(1, newest.getDroppedCount());
+        assertEquals(2, oldest.getMaxDepth());
+    }
+
+    @Test
+    public void conflateKeepsLatestPerTopicInPlace() {
+        DownlinkQueue queue = new DownlinkQueue(4, DownlinkQueue.Policy.CONFLATE_LATEST);
+        queue.offer(envelope("a", "a1"));
+        queue.offer(envelope("b", "b1"));
+        queue.offer(envelope("a", "a2"));
+        queue.offer(envelope("a", "a3"));
+
+        assertEquals(2, queue.getDepth());
+        assertEquals(2, queue.getConflatedCount());
+        assertEquals("a3", new String(queue.poll().payload));
+        queue.offer(envelope("a", "a4"));
+        assertEquals("b1", new String(queue.poll().payload));
+        assertEquals("a4", new String(queue.poll().payload));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void blockWaitsForRoomThenDrops() throws Exception {
+        final DownlinkQueue queue = new DownlinkQueue(1, DownlinkQueue.Policy.BLOCK, 50);
+        queue.offer(envelope("t", "0"));
+        long startMs = System.currentTimeMillis();
+        assertFalse(queue.offer(envelope("t", "1")));
+        assertTrue(System.currentTimeMillis() - startMs >= 50);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.poll();
+            }
+        }).start();
+        assertTrue(queue.offer(envelope("t", "2")));
+        assertEquals("2", new String(queue.poll().payload));
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void disconnectedThingDrainsInOrderOnReconnect() throws Exception {
+        InMemoryMqttBroker broker = new InMemoryMqttBroker();
+        final RecordingThing thing = new RecordingThing("thing", broker);
+        try {
+            thing.connectToIoT();
+            RecordingThing.waitFor(new RecordingThing.Condition() {
+                @Override
+                public boolean isMet() {
+                    return thing.getMqttConnectionState() == MqttConnectionState.MQTT_Connected;
+                }
+            }, 1000);
+            thing.setDownlinkQueue(new DownlinkQueue(3, DownlinkQueue.Policy.DROP_OLDEST));
+            thing.subscribeToIoT("proxy/down", AWSIotMqttQos.QOS0);
+            for (int i = 0; i < 5; i++) {
+                broker.publish("proxy/down", ("{\"seq\":" + i + "}").getBytes());
+            }
+            RecordingThing.waitFor(new RecordingThing.Condition() {
+                @Override
+                public boolean isMet() {
+                    return thing.getDownlinkQueue().getDroppedCount() == 2;
+                }
+            }, 1000);
+            assertEquals(0, thing.published.size());
+
+            thing.connectToThing();
+            assertEquals(3, thing.published.size());
+            for (int i = 0; i < 3; i++) {
+                assertEquals("{\"seq\":" + (i + 2) + "}", new String(thing.published.get(i).payload));
+            }
+            assertEquals(0, thing.getDownlinkQueue().getDepth());
+        } finally {
+            broker.shutdown();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FairUplinkSchedulerTest {
+    private final List<String> mPublished = new CopyOnWriteArrayList<>();
+    private final UplinkStage.Next mNext = new UplinkStage.Next() {
+        @Override
+        public void publish(CustomizedMqttEnvelope envelope) {
+            mPublished.add(envelope.thingId);
+        }
+    };
+
+    private void publish(FairUplinkScheduler scheduler, String thingId, int count) {
+        for (int i = 0; i < count; i++) {
+            CustomizedMqttEnvelope envelope = CustomizedMqttEnvelope.newPublishEnvelope(
+                    "proxy/test", AWSIotMqttQos.QOS0, new byte[90]);
+            envelope.thingId = thingId;
+            scheduler.process(envelope, mNext);
+        }
+    }
+
+    private int count(String thingId, int first, int last) {
+        int count = 0;
+        for (String published : mPublished.subList(first, last)) {
+            if (published.equals(thingId)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void quietThingIsNotStarvedByFloodingThing() throws Exception {
+        FairUplinkScheduler scheduler = new FairUplinkScheduler(20000, 100);
+        publish(scheduler, "noisy", 100);
+        publish(scheduler, "sensor", 5);
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mPublished.size() == 105;
+            }
+        }, 3000);
+
+        assertEquals(5, count("sensor", 0, 40));
+        FairUplinkScheduler.Stats sensor = scheduler.getStats("sensor");
+        FairUplinkScheduler.Stats noisy = scheduler.getStats("noisy");
+        assertEquals(0, sensor.starved);
+        assertTrue(noisy.starved > 0);
+        assertTrue(sensor.maxWaitMs < noisy.maxWaitMs);
+    }
+
+    @Test
+    public void bandwidthIsSharedByWeight() throws Exception {
+        FairUplinkScheduler scheduler = new FairUplinkScheduler(20000, 1000)
+                .setClass("critical", "gold")
+                .setClassWeight("gold", 3);
+        publish(scheduler, "critical", 100);
+        publish(scheduler, "bulk", 100);
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mPublished.size() >= 120;
+            }
+        }, 3000);
+
+        int critical = count("critical", 20, 120);
+        assertTrue("critical got " + critical + " of 100", critical >= 70 && critical <= 80);
+    }
+}
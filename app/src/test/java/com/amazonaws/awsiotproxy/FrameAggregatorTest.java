@@ -0,0 +1,151 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameAggregatorTest {
+    private final List<byte[]> mWrites = Collections.synchronizedList(new ArrayList<byte[]>());
+    private final List<Boolean> mControlWrites = Collections.synchronizedList(new ArrayList<Boolean>());
+    private final FrameAggregator mAggregator = new FrameAggregator(20, 20, new FrameAggregator.Sink() {
+        @Override
+        public boolean write(byte[] data, boolean control) {
+            mWrites.add(data);
+            mControlWrites.add(control);
+            return true;
+        }
+    });
+
+    private static byte[] ack(int messageId) {
+        return MyTLV.newPubAck(messageId).encodedBytesStream;
+    }
+
+    @Test
+    public void legacyThingGetsOneFramePerWrite() {
+        mAggregator.add(ack(1));
+        mAggregator.add(ack(2));
+        assertEquals(1, mWrites.size());
+        assertTrue(mAggregator.isBacklogged());
+        mAggregator.onWriteComplete();
+        assertArrayEquals(ack(2), mWrites.get(1));
+        assertFalse(mAggregator.isBacklogged());
+    }
+
+    @Test
+    public void framesQueuedDuringWriteArePacked() {
+        mAggregator.setBatching(true);
+        /* Fills a write on its own, no need to wait */
+        mAggregator.add(new MyTLV(MyTLV.TLVType.PUB, new byte[18]).encodedBytesStream);
+        assertEquals(1, mWrites.size());
+        for (int i = 0; i < 6; i++) {
+            mAggregator.add(ack(i));
+        }
+        mAggregator.onWriteComplete();
+        /* Five 4 byte acks fill the 20 byte write */
+        assertEquals(2, mWrites.size());
+        assertEquals(20, mWrites.get(1).length);
+        List<byte[]> frames = FrameAggregator.split(mWrites.get(1));
+        assertEquals(5, frames.size());
+        assertArrayEquals(ack(4), frames.get(4));
+        mAggregator.onWriteComplete();
+        assertArrayEquals(ack(5), mWrites.get(2));
+        assertEquals(7.0 / 3, mAggregator.getFramesPerWrite(), 0.001);
+    }
+
+    @Test
+    public void partialWriteIsFlushedAfterDelay() throws Exception {
+        mAggregator.setBatching(true);
+        mAggregator.add(ack(1));
+        mAggregator.add(ack(2));
+        assertTrue(mWrites.isEmpty());
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mWrites.size() == 1;
+            }
+        }, 1000);
+        assertEquals(2, FrameAggregator.split(mWrites.get(0)).size());
+    }
+
+    @Test
+    public void controlFramesGoAheadOfDownlink() {
+        byte[] publish = new MyTLV(MyTLV.TLVType.PUB, new byte[10]).encodedBytesStream;
+        mAggregator.add(publish);
+        mAggregator.add(publish);
+        mAggregator.addControl(ack(1));
+        mAggregator.onWriteComplete();
+        mAggregator.onWriteComplete();
+        assertEquals(3, mWrites.size());
+        assertArrayEquals(ack(1), mWrites.get(1));
+        assertEquals(Arrays.asList(false, true, false), mControlWrites);
+        /* Acks never hold downlink back */
+        assertFalse(mAggregator.isBacklogged());
+    }
+
+    @Test
+    public void failedWriteIsRetried() throws Exception {
+        final List<byte[]> writes = Collections.synchronizedList(new ArrayList<byte[]>());
+        final int[] failures = {1};
+        FrameAggregator aggregator = new FrameAggregator(20, 20, new FrameAggregator.Sink() {
+            @Override
+            public boolean write(byte[] data, boolean control) {
+                if (failures[0]-- > 0) {
+                    return false;
+                }
+                writes.add(data);
+                return true;
+            }
+        });
+        aggregator.add(ack(1));
+        /* Frame is kept for the retry */
+        assertTrue(writes.isEmpty());
+        assertTrue(aggregator.isBacklogged());
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return writes.size() == 1;
+            }
+        }, 1000);
+        assertArrayEquals(ack(1), writes.get(0));
+        aggregator.add(ack(2));
+        aggregator.onWriteComplete();
+        assertArrayEquals(ack(2), writes.get(1));
+        assertEquals(1.0, aggregator.getFramesPerWrite(), 0.001);
+    }
+
+    @Test
+    public void splitDropsMalformedTail() {
+        byte[] data = {(byte) MyTLV.TLVType.PUBACK.ordinal(), 4, 0, 1, (byte) MyTLV.TLVType.PUBACK.ordinal(), 9, 0};
+        List<byte[]> frames = FrameAggregator.split(data);
+        assertEquals(1, frames.size());
+        assertArrayEquals(ack(1), frames.get(0));
+    }
+}
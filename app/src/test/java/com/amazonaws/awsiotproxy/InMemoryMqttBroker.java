@@ -0,0 +1,258 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttClientStatusCallback;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttClientStatusCallback.AWSIotMqttClientStatus;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttMessageDeliveryCallback;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttMessageDeliveryCallback.MessageDeliveryStatus;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttNewMessageCallback;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for AWS IoT core, so the MQTT path of CustomizedThing can be exercised
+ * without a live endpoint. Supports QoS0/1, '+'/'#' wildcards and simulated latency, message
+ * loss, publish throttling and connection drops.
+ */
+public class InMemoryMqttBroker implements ProxyMqttClient.Factory {
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final List<Client> mClients = new CopyOnWriteArrayList<>();
+    private final Random mRandom = new Random(0);
+    private final AtomicLong mPublishedCount = new AtomicLong();
+    private final AtomicLong mDeliveredCount = new AtomicLong();
+    private final AtomicLong mLostCount = new AtomicLong();
+    private final AtomicLong mThrottledCount = new AtomicLong();
+    private volatile long mLatencyMs;
+    private volatile double mLossRate;
+    private volatile int mMaxPublishesPerSecond;
+
+    @Override
+    public ProxyMqttClient create(String clientId, String brokerEndpoint, AWSCredentialsProvider awsCredentials) {
+        return new Client(clientId);
+    }
+
+    /**
+     * @param latencyMs One way latency applied to connect, publish and delivery.
+     */
+    public void setLatencyMs(long latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    /**
+     * @param lossRate Probability in [0, 1] that a publish is lost, QoS1 publishers see it fail.
+     */
+    public void setLossRate(double lossRate) {
+        mLossRate = lossRate;
+    }
+
+    /**
+     * @param maxPublishesPerSecond Per client publish limit, 0 for unlimited.
+     */
+    public void setMaxPublishesPerSecond(int maxPublishesPerSecond) {
+        mMaxPublishesPerSecond = maxPublishesPerSecond;
+    }
+
+    /**
+     * Publish a message on behalf of cloud, e.g. a downlink message to things.
+     *
+     * @param topic   Topic to publish.
+     * @param payload Payload to publish.
+     */
+    public void publish(String topic, byte[] payload) {
+        mPublishedCount.incrementAndGet();
+        route(topic, payload);
+    }
+
+    /**
+     * Simulate network loss, every connected client sees ConnectionLost.
+     */
+    public void dropConnections() {
+        for (final Client client : mClients) {
+            mClients.remove(client);
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    client.mSubscriptions.clear();
+                    client.notifyStatus(AWSIotMqttClientStatus.ConnectionLost);
+                }
+            });
+        }
+    }
+
+    public long getPublishedCount() {
+        return mPublishedCount.get();
+    }
+
+    public long getDeliveredCount() {
+        return mDeliveredCount.get();
+    }
+
+    public long getLostCount() {
+        return mLostCount.get();
+    }
+
+    public long getThrottledCount() {
+        return mThrottledCount.get();
+    }
+
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private void route(final String topic, final byte[] payload) {
+        for (Client client : mClients) {
+            for (final Subscription subscription : client.mSubscriptions) {
+                if (MqttTopics.matches(subscription.mTopicFilter, topic)) {
+                    mExecutor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            mDeliveredCount.incrementAndGet();
+                            subscription.mCallback.onMessageArrived(topic, payload);
+                        }
+                    }, mLatencyMs, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    private static class Subscription {
+        private final String mTopicFilter;
+        private final AWSIotMqttNewMessageCallback mCallback;
+
+        Subscription(String topicFilter, AWSIotMqttNewMessageCallback callback) {
+            mTopicFilter = topicFilter;
+            mCallback = callback;
+        }
+    }
+
+    private class Client implements ProxyMqttClient {
+        private final String mClientId;
+        private final List<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+        private AWSIotMqttClientStatusCallback mStatusCallback;
+        private long mThrottleWindowStartMs;
+        private int mThrottleWindowCount;
+
+        Client(String clientId) {
+            mClientId = clientId;
+        }
+
+        @Override
+        public void connect(AWSIotMqttClientStatusCallback statusCallback) {
+            mStatusCallback = statusCallback;
+            notifyStatus(AWSIotMqttClientStatus.Connecting);
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    for (Client client : mClients) {
+                        if (client != Client.this && client.mClientId.equals(mClientId)) {
+                            /* Same client id takes over the previous session, like AWS IoT core does */
+                            mClients.remove(client);
+                            client.notifyStatus(AWSIotMqttClientStatus.ConnectionLost);
+                        }
+                    }
+                    mClients.add(Client.this);
+                    notifyStatus(AWSIotMqttClientStatus.Connected);
+                }
+            }, mLatencyMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void disconnect() {
+            mClients.remove(this);
+            mSubscriptions.clear();
+        }
+
+        @Override
+        public void publishData(final byte[] data, final String topic, final AWSIotMqttQos qos,
+                                final AWSIotMqttMessageDeliveryCallback deliveryCallback, final Object userData) {
+            if (!mClients.contains(this)) {
+                throw new IllegalStateException("Client is disconnected.");
+            }
+            final MessageDeliveryStatus status;
+            if (isThrottled()) {
+                mThrottledCount.incrementAndGet();
+                status = MessageDeliveryStatus.Fail;
+            } else if (mRandom.nextDouble() < mLossRate) {
+                mLostCount.incrementAndGet();
+                status = qos == AWSIotMqttQos.QOS1 ? MessageDeliveryStatus.Fail : MessageDeliveryStatus.Success;
+            } else {
+                mPublishedCount.incrementAndGet();
+                status = MessageDeliveryStatus.Success;
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        route(topic, data);
+                    }
+                }, mLatencyMs, TimeUnit.MILLISECONDS);
+            }
+            if (deliveryCallback != null) {
+                /* PUBACK of QoS1 takes a round trip */
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliveryCallback.statusChanged(status, userData);
+                    }
+                }, qos == AWSIotMqttQos.QOS1 ? 2 * mLatencyMs : 0, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void subscribeToTopic(String topicFilter, AWSIotMqttQos qos, AWSIotMqttNewMessageCallback callback) {
+            mSubscriptions.add(new Subscription(topicFilter, callback));
+        }
+
+        @Override
+        public void unsubscribeTopic(String topicFilter) {
+            for (Subscription subscription : mSubscriptions) {
+                if (subscription.mTopicFilter.equals(topicFilter)) {
+                    mSubscriptions.remove(subscription);
+                }
+            }
+        }
+
+        private synchronized boolean isThrottled() {
+            if (mMaxPublishesPerSecond <= 0) {
+                return false;
+            }
+            long nowMs = System.currentTimeMillis();
+            if (nowMs - mThrottleWindowStartMs >= 1000) {
+                mThrottleWindowStartMs = nowMs;
+                mThrottleWindowCount = 0;
+            }
+            return ++mThrottleWindowCount > mMaxPublishesPerSecond;
+        }
+
+        private void notifyStatus(AWSIotMqttClientStatus status) {
+            if (mStatusCallback != null) {
+                mStatusCallback.onStatusChanged(status, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import software.amazon.freertos.amazonfreertossdk.AmazonFreeRTOSConstants.MqttConnectionState;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryMqttBrokerTest {
+    private InMemoryMqttBroker mBroker;
+    private RecordingThing mThing;
+
+    @Before
+    public void setUp() throws Exception {
+        mBroker = new InMemoryMqttBroker();
+        mThing = new RecordingThing("thing", mBroker);
+        mThing.connectToThing();
+        mThing.connectToIoT();
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mThing.getMqttConnectionState() == MqttConnectionState.MQTT_Connected;
+            }
+        }, 1000);
+    }
+
+    @After
+    public void tearDown() {
+        CustomizedThing.setRetainedCache(null);
+        mBroker.shutdown();
+    }
+
+    @Test
+    public void topicMatches() {
+        assertTrue(MqttTopics.matches("proxy/test", "proxy/test"));
+        assertTrue(MqttTopics.matches("proxy/+", "proxy/test"));
+        assertTrue(MqttTopics.matches("proxy/#", "proxy/test/a"));
+        assertTrue(MqttTopics.matches("#", "proxy"));
+        assertFalse(MqttTopics.matches("proxy/+", "proxy/test/a"));
+        assertFalse(MqttTopics.matches("proxy/test/a", "proxy/test"));
+    }
+
+    @Test
+    public void publishedQos1IsAcknowledgedWithMessageId() throws Exception {
+        mThing.receiveFromThing(new MyTLV(MyTLV.TLVType.PUB, "[proxy/test]1#258{temp:25.56}".getBytes()).encodedBytesStream);
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mThing.sentFrames.size() == 1;
+            }
+        }, 1000);
+        assertArrayEquals(new byte[]{(byte) MyTLV.TLVType.PUBACK.ordinal(), 4, 1, 2}, mThing.sentFrames.get(0));
+        assertEquals(1, mBroker.getPublishedCount());
+    }
+
+    @Test
+    public void deliveredEnvelopeIsReleased() throws Exception {
+        final CustomizedMqttEnvelope envelope = new MyTLV(MyTLV.TLVType.PUB,
+                "[proxy/test]1#1{temp:25.56}".getBytes()).toCustomizedMqttEnvelope();
+        mThing.handleEnvelopeFromThing(envelope);
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return envelope.topic == null;
+            }
+        }, 1000);
+        assertEquals(1, mThing.sentFrames.size());
+    }
+
+    @Test
+    public void subscribedThingReceivesCloudMessage() throws Exception {
+        mThing.subscribeToIoT("proxy/+", com.amazonaws.mobileconnectors.iot.AWSIotMqttQos.QOS0);
+        mBroker.publish("proxy/down", "{\"led\":1}".getBytes());
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mThing.published.size() == 1;
+            }
+        }, 1000);
+        assertEquals("proxy/down", mThing.published.get(0).topic);
+    }
+
+    @Test
+    public void resubscribingThingGetsRetainedMessageOthersDoNot() throws Exception {
+        CustomizedThing.setRetainedCache(new RetainedMessageCache(16, 60000));
+        mThing.subscribeToIoT("proxy/+", com.amazonaws.mobileconnectors.iot.AWSIotMqttQos.QOS0);
+        mBroker.publish("proxy/state", "{\"led\":1}".getBytes());
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mThing.published.size() == 1;
+            }
+        }, 1000);
+        final RecordingThing other = new RecordingThing("other", mBroker);
+        other.connectToThing();
+        other.connectToIoT();
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return other.getMqttConnectionState() == MqttConnectionState.MQTT_Connected;
+            }
+        }, 1000);
+        other.subscribeToIoT("proxy/state", com.amazonaws.mobileconnectors.iot.AWSIotMqttQos.QOS0);
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return other.sentFrames.size() == 1;
+            }
+        }, 1000);
+        /* Only the SUBACK, another thing's messages are not replayed */
+        assertEquals(MyTLV.TLVType.SUBACK.ordinal(), other.sentFrames.get(0)[0]);
+        assertTrue(other.published.isEmpty());
+
+        /* No cloud publish after the subscription, the message comes from the cache */
+        mThing.disconnectFromThing();
+        mThing.connectToThing();
+        mThing.subscribeToIoT("proxy/state", com.amazonaws.mobileconnectors.iot.AWSIotMqttQos.QOS0);
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mThing.published.size() == 2;
+            }
+        }, 1000);
+        assertArrayEquals("{\"led\":1}".getBytes(), mThing.published.get(1).payload);
+    }
+
+    @Test
+    public void lostPublishIsNotAcknowledgedUntilThingRetries() throws Exception {
+        byte[] frame = new MyTLV(MyTLV.TLVType.PUB, "[proxy/test]1#9{temp:25.56}".getBytes()).encodedBytesStream;
+        mBroker.setLatencyMs(20);
+        mBroker.setLossRate(1);
+        mThing.receiveFromThing(frame);
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mBroker.getLostCount() == 1;
+            }
+        }, 1000);
+        /* Failed delivery takes the same round trip as a PUBACK */
+        Thread.sleep(100);
+        assertEquals(0, mThing.sentFrames.size());
+        mBroker.setLossRate(0);
+        mThing.receiveFromThing(frame);
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mThing.sentFrames.size() == 1;
+            }
+        }, 1000);
+        assertArrayEquals(MyTLV.newPubAck(9).encodedBytesStream, mThing.sentFrames.get(0));
+        assertEquals(1, mBroker.getPublishedCount());
+    }
+
+    @Test
+    public void rateLimiterDefersWhatBrokerWouldThrottle() throws Exception {
+        mBroker.setMaxPublishesPerSecond(5);
+        /* Steady rate below the broker limit, a burst would exceed its fixed one second window */
+        mThing.getRateLimiter().setPublishRate(4, 1);
+        for (int i = 1; i <= 8; i++) {
+            mThing.receiveFromThing(new MyTLV(MyTLV.TLVType.PUB,
+                    ("[proxy/test]1#" + i + "{n:" + i + "}").getBytes()).encodedBytesStream);
+        }
+        assertTrue(mThing.getRateLimiter().getDeferredCount() > 0);
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mBroker.getPublishedCount() == 8;
+            }
+        }, 3000);
+        assertEquals(0, mBroker.getThrottledCount());
+    }
+
+    @Test
+    public void lostConnectionIsReported() throws Exception {
+        mBroker.dropConnections();
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mThing.getMqttConnectionState() == MqttConnectionState.MQTT_Disconnected;
+            }
+        }, 1000);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import software.amazon.freertos.amazonfreertossdk.AmazonFreeRTOSConstants.MqttConnectionState;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LanCustomizedThingTest {
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    private InMemoryMqttBroker mBroker;
+    private ServerSocket mDeviceServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mBroker = new InMemoryMqttBroker();
+        mDeviceServer = new ServerSocket(0, 128, LOOPBACK);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDeviceServer.close();
+        mBroker.shutdown();
+    }
+
+    private LanCustomizedThing connect(String thingId, InetSocketAddress deviceAddress,
+                                       LanCustomizedThing.Protocol protocol) throws Exception {
+        final LanCustomizedThing thing = new LanCustomizedThing(thingId, "localhost", null, deviceAddress, protocol);
+        thing.setMqttClientFactory(mBroker);
+        thing.connectToThing();
+        thing.connectToIoT();
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return thing.getThingConnectionState() == CustomizedThing.ThingConnectionState.Thing_Connected
+                        && thing.getMqttConnectionState() == MqttConnectionState.MQTT_Connected;
+            }
+        }, 1000);
+        return thing;
+    }
+
+    private LanCustomizedThing connectTcp(String thingId) throws Exception {
+        return connect(thingId, (InetSocketAddress) mDeviceServer.getLocalSocketAddress(), LanCustomizedThing.Protocol.TCP);
+    }
+
+    private static byte[] frame(String value) {
+        return new MyTLV(MyTLV.TLVType.PUB, value.getBytes()).encodedBytesStream;
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws Exception {
+        byte[] frame = new byte[2];
+        in.readFully(frame);
+        frame = Arrays.copyOf(frame, frame[1] & 0xFF);
+        in.readFully(frame, 2, frame.length - 2);
+        return frame;
+    }
+
+    @Test
+    public void framesSplitAcrossReadsArePublishedAndAcked() throws Exception {
+        connectTcp("lan");
+        Socket device = mDeviceServer.accept();
+        device.setSoTimeout(1000);
+        byte[] first = frame("[proxy/test]1#1{temp:1}");
+        byte[] second = frame("[proxy/test]1#2{temp:2}");
+        OutputStream out = device.getOutputStream();
+        /* First frame and the head of the second in one segment, the rest later */
+        byte[] segment = Arrays.copyOf(first, first.length + 3);
+        System.arraycopy(second, 0, segment, first.length, 3);
+        out.write(segment);
+        out.flush();
+        Thread.sleep(50);
+        out.write(second, 3, second.length - 3);
+        out.flush();
+        DataInputStream in = new DataInputStream(device.getInputStream());
+        assertArrayEquals(new byte[]{(byte) MyTLV.TLVType.PUBACK.ordinal(), 4, 0, 1}, readFrame(in));
+        assertArrayEquals(new byte[]{(byte) MyTLV.TLVType.PUBACK.ordinal(), 4, 0, 2}, readFrame(in));
+        assertEquals(2, mBroker.getPublishedCount());
+        device.close();
+    }
+
+    @Test
+    public void cloudMessageIsWrittenToDevice() throws Exception {
+        LanCustomizedThing thing = connectTcp("lan");
+        Socket device = mDeviceServer.accept();
+        device.setSoTimeout(1000);
+        DataInputStream in = new DataInputStream(device.getInputStream());
+        thing.subscribeToIoT("proxy/down", AWSIotMqttQos.QOS0);
+        assertEquals(MyTLV.TLVType.SUBACK.ordinal(), readFrame(in)[0]);
+        mBroker.publish("proxy/down", "{\"led\":1}".getBytes());
+        byte[] downlink = readFrame(in);
+        assertEquals("[proxy/down]0{{\"led\":1}}", new String(downlink, 2, downlink.length - 2, "UTF-8"));
+        device.close();
+    }
+
+    @Test
+    public void manyThingsShareOneSelector() throws Exception {
+        List<Socket> devices = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            connectTcp("lan" + i);
+            Socket device = mDeviceServer.accept();
+            device.setSoTimeout(1000);
+            devices.add(device);
+        }
+        for (int i = 0; i < devices.size(); i++) {
+            devices.get(i).getOutputStream().write(frame("[proxy/test]1#" + i + "{temp:1}"));
+        }
+        for (int i = 0; i < devices.size(); i++) {
+            byte[] ack = readFrame(new DataInputStream(devices.get(i).getInputStream()));
+            assertEquals(i, ((ack[2] & 0xFF) << 8) | (ack[3] & 0xFF));
+            devices.get(i).close();
+        }
+        assertEquals(100, mBroker.getPublishedCount());
+    }
+
+    @Test
+    public void udpDatagramMayCarrySeveralFrames() throws Exception {
+        DatagramSocket device = new DatagramSocket(0, LOOPBACK);
+        device.setSoTimeout(1000);
+        LanCustomizedThing thing = connect("udp", (InetSocketAddress) device.getLocalSocketAddress(),
+                LanCustomizedThing.Protocol.UDP);
+        /* Device learns the proxy's address from the first datagram it receives */
+        thing.subscribeToIoT("proxy/down", AWSIotMqttQos.QOS0);
+        DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+        device.receive(packet);
+        assertEquals(MyTLV.TLVType.SUBACK.ordinal(), packet.getData()[0]);
+        byte[] first = frame("[proxy/test]1#1{temp:1}");
+        byte[] second = frame("[proxy/test]1#2{temp:2}");
+        byte[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        device.send(new DatagramPacket(both, both.length, packet.getSocketAddress()));
+        for (int id = 1; id <= 2; id++) {
+            device.receive(packet);
+            assertArrayEquals(new byte[]{(byte) MyTLV.TLVType.PUBACK.ordinal(), 4, 0, (byte) id},
+                    Arrays.copyOf(packet.getData(), packet.getLength()));
+        }
+        device.close();
+    }
+}
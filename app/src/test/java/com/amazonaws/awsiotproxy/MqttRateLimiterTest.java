@@ -0,0 +1,99 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import software.amazon.freertos.amazonfreertossdk.AmazonFreeRTOSConstants.MqttConnectionState;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MqttRateLimiterTest {
+
+    @Test
+    public void burstIsShapedBelowBrokerLimit() throws Exception {
+        final InMemoryMqttBroker broker = new InMemoryMqttBroker();
+        broker.setMaxPublishesPerSecond(50);
+        final RecordingThing thing = new RecordingThing("thing", broker);
+        try {
+            thing.getRateLimiter().setPublishRate(40, 10);
+            thing.connectToIoT();
+            RecordingThing.waitFor(new RecordingThing.Condition() {
+                @Override
+                public boolean isMet() {
+                    return thing.getMqttConnectionState() == MqttConnectionState.MQTT_Connected;
+                }
+            }, 1000);
+            for (int i = 0; i < 60; i++) {
+                thing.publishToIoT("proxy/test", AWSIotMqttQos.QOS0, ("{\"seq\":" + i + "}").getBytes());
+            }
+            assertTrue(thing.getRateLimiter().getDeferredDepth() > 0);
+            RecordingThing.waitFor(new RecordingThing.Condition() {
+                @Override
+                public boolean isMet() {
+                    return broker.getPublishedCount() == 60;
+                }
+            }, 5000);
+            assertEquals(0, broker.getThrottledCount());
+            assertEquals(0, thing.getRateLimiter().getDroppedCount());
+        } finally {
+            broker.shutdown();
+        }
+    }
+
+    @Test
+    public void topicLimitKeepsOrderPerTopicOnly() throws Exception {
+        final List<String> sent = new CopyOnWriteArrayList<>();
+        MqttRateLimiter limiter = new MqttRateLimiter(new MqttRateLimiter.Sink() {
+            @Override
+            public boolean onAdmitted(CustomizedMqttEnvelope envelope) {
+                sent.add(envelope.topic + new String(envelope.payload));
+                return true;
+            }
+        });
+        limiter.addTopicLimit("slow/+", 10, 1);
+
+        assertTrue(limiter.admit(CustomizedMqttEnvelope.newPublishEnvelope("slow/a", AWSIotMqttQos.QOS0, "1".getBytes())));
+        assertFalse(limiter.admit(CustomizedMqttEnvelope.newPublishEnvelope("slow/a", AWSIotMqttQos.QOS0, "2".getBytes())));
+        /* Other topics are deferred behind it, but not held back by its topic bucket */
+        assertFalse(limiter.admit(CustomizedMqttEnvelope.newPublishEnvelope("fast", AWSIotMqttQos.QOS0, "1".getBytes())));
+        assertFalse(limiter.admit(CustomizedMqttEnvelope.newPublishEnvelope("slow/a", AWSIotMqttQos.QOS0, "3".getBytes())));
+        limiter.drain();
+        assertEquals("fast1", sent.get(0));
+
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return sent.size() == 3;
+            }
+        }, 1000);
+        assertEquals("slow/a2", sent.get(1));
+        assertEquals("slow/a3", sent.get(2));
+        assertEquals(3, limiter.getDeferredCount());
+    }
+}
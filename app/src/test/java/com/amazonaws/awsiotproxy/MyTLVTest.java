@@ -0,0 +1,80 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MyTLVTest {
+
+    private static CustomizedMqttEnvelope decode(String raw) throws Exception {
+        byte[] encoded = new MyTLV(MyTLV.TLVType.PUB, raw.getBytes("UTF-8")).encodedBytesStream;
+        return new MyTLV(encoded).toCustomizedMqttEnvelope();
+    }
+
+    @Test
+    public void publishIsConvertedToJson() throws Exception {
+        CustomizedMqttEnvelope envelope = decode("[proxy/test]1{name:dummy;temp:25.56;bat:98%}");
+        assertEquals("proxy/test", envelope.topic);
+        assertEquals(AWSIotMqttQos.QOS1, envelope.qoS);
+        assertEquals(CustomizedMqttEnvelope.NO_MESSAGE_ID, envelope.messageId);
+        assertEquals("{\"name\":\"dummy\",\"temp\":\"25.56\",\"bat\":\"98%\"}", new String(envelope.payload, "UTF-8"));
+    }
+
+    @Test
+    public void paddedFrameAndEscapedValues() throws Exception {
+        CustomizedMqttEnvelope envelope = decode("[esp]0#7{a:\"q\\;b}\0\0");
+        assertEquals(7, envelope.messageId);
+        assertEquals("{\"a\":\"\\\"q\\\\\"}", new String(envelope.payload, "UTF-8"));
+    }
+
+    @Test
+    public void topicIsCached() throws Exception {
+        assertSame(decode("[proxy/test]0{a:1}").topic, decode("[proxy/test]0{a:2}").topic);
+    }
+
+    @Test
+    public void malformedFrameIsIgnored() throws Exception {
+        assertNull(decode("no topic"));
+    }
+
+    @Test
+    public void ackCarriesMessageIdOnly() {
+        CustomizedMqttEnvelope envelope = CustomizedMqttEnvelope.newPublishEnvelope("t", AWSIotMqttQos.QOS1,
+                "{}".getBytes()).withMessageId(0x1234);
+        assertArrayEquals(new byte[]{1, 4, 0x12, 0x34}, MyTLV.newAck(envelope).encodedBytesStream);
+        assertArrayEquals(new byte[]{7, 6, 0, 1, 0, 9}, MyTLV.newAckRange(1, 9).encodedBytesStream);
+    }
+
+    @Test
+    public void downlinkPublishIsEncoded() throws Exception {
+        CustomizedMqttEnvelope envelope = CustomizedMqttEnvelope.newPublishEnvelope("a/b", AWSIotMqttQos.QOS1,
+                "{\"x\":1}".getBytes());
+        byte[] encoded = new MyTLV(envelope).encodedBytesStream;
+        assertEquals("[a/b]1{{\"x\":1}}", new String(encoded, 2, encoded.length - 2, "UTF-8"));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import software.amazon.freertos.amazonfreertossdk.AmazonFreeRTOSConstants.MqttConnectionState;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PayloadCompressorTest {
+    private static final byte[] READING = "{\"name\":\"esp32\",\"temp\":\"25.56\",\"humidity\":\"41.20\",\"bat\":\"98%\",\"rssi\":\"-67\"}".getBytes();
+
+    @Test
+    public void dictionaryBeatsPlainDeflate() throws Exception {
+        byte[] plain = PayloadCodec.compress(READING, Deflater.BEST_SPEED, 0);
+        byte[] preset = PayloadCodec.compress(READING, Deflater.BEST_SPEED, PayloadCodec.DEVICE_JSON_DICTIONARY_ID);
+
+        assertTrue(PayloadCodec.isCompressed(preset));
+        assertTrue(preset.length < plain.length);
+        assertTrue(preset.length < READING.length / 2);
+        assertArrayEquals(READING, PayloadCodec.decompress(plain));
+        assertArrayEquals(READING, PayloadCodec.decompress(preset));
+    }
+
+    @Test
+    public void rulesApplyPerTopicAboveThreshold() throws Exception {
+        PayloadCompressor compressor = new PayloadCompressor()
+                .addRule(new PayloadCompressor.Rule("proxy/+/telemetry", 32).dictionary(PayloadCodec.DEVICE_JSON_DICTIONARY_ID));
+        byte[] small = "{\"a\":1}".getBytes();
+
+        assertSame(small, compressor.compress("proxy/esp/telemetry", small));
+        assertSame(READING, compressor.compress("proxy/esp/config", READING));
+        byte[] compressed = compressor.compress("proxy/esp/telemetry", READING);
+        assertTrue(PayloadCodec.isCompressed(compressed));
+        assertSame(compressed, compressor.compress("proxy/esp/telemetry", compressed));
+        assertArrayEquals(READING, PayloadCodec.decompress(compressed));
+    }
+
+    @Test
+    public void uncompressedAndIncompressiblePayloadsPassThrough() throws Exception {
+        byte[] random = new byte[64];
+        new Random(0).nextBytes(random);
+        random[0] = '{';
+
+        assertSame(random, PayloadCodec.compress(random, Deflater.BEST_SPEED, 0));
+        assertSame(READING, PayloadCodec.decompress(READING));
+        assertFalse(PayloadCodec.isCompressed(READING));
+    }
+
+    @Test
+    public void unknownDictionaryIsRejected() throws Exception {
+        byte[] compressed = PayloadCodec.compress(READING, Deflater.BEST_SPEED, PayloadCodec.DEVICE_JSON_DICTIONARY_ID);
+        compressed[2] = 42;
+        try {
+            PayloadCodec.decompress(compressed);
+            fail("Unknown dictionary accepted.");
+        } catch (IOException expected) {
+            /* Expected */
+        }
+    }
+
+    @Test
+    public void compressedDownlinkIsBinaryFramed() throws Exception {
+        byte[] compressed = PayloadCodec.compress(READING, Deflater.BEST_SPEED, PayloadCodec.DEVICE_JSON_DICTIONARY_ID);
+        RecordingThing thing = new RecordingThing("thing", null);
+        thing.setDownlinkCompressor(new PayloadCompressor().addRule(new PayloadCompressor.Rule("#", 0)));
+        byte[] frame = thing.encodeForThing(CustomizedMqttEnvelope.newPublishEnvelope("a/b", AWSIotMqttQos.QOS1, compressed));
+        assertEquals(MyTLV.TLVType.PUB_BINARY.ordinal(), frame[0]);
+        assertEquals(frame.length, frame[1] & 0xFF);
+        assertEquals(AWSIotMqttQos.QOS1.ordinal(), frame[2]);
+        assertEquals(3, frame[3]);
+        assertEquals("a/b", new String(frame, 4, 3, "UTF-8"));
+        assertArrayEquals(READING, PayloadCodec.decompress(Arrays.copyOfRange(frame, 7, frame.length)));
+        /* Plain payloads keep the text frame */
+        assertEquals(MyTLV.TLVType.PUB.ordinal(),
+                thing.encodeForThing(CustomizedMqttEnvelope.newPublishEnvelope("a/b", AWSIotMqttQos.QOS1, READING))[0]);
+    }
+
+    @Test
+    public void legacyThingGetsTextFrameWhateverThePayload() {
+        RecordingThing thing = new RecordingThing("thing", null);
+        /* Cloud payload which happens to start like a compressed one */
+        byte[] payload = {0x1B, 0x01, 'x'};
+        byte[] frame = thing.encodeForThing(CustomizedMqttEnvelope.newPublishEnvelope("a/b", AWSIotMqttQos.QOS0, payload));
+        assertEquals(MyTLV.TLVType.PUB.ordinal(), frame[0]);
+        assertArrayEquals(payload, Arrays.copyOfRange(frame, 9, 12));
+    }
+
+    @Test
+    public void legacyAckEchoesPayloadAsSent() throws Exception {
+        InMemoryMqttBroker broker = new InMemoryMqttBroker();
+        try {
+            final RecordingThing thing = new RecordingThing("thing", broker);
+            thing.addUplinkStage(new PayloadCompressor().addRule(new PayloadCompressor.Rule("#", 0)));
+            thing.connectToThing();
+            thing.connectToIoT();
+            RecordingThing.waitFor(new RecordingThing.Condition() {
+                @Override
+                public boolean isMet() {
+                    return thing.getMqttConnectionState() == MqttConnectionState.MQTT_Connected;
+                }
+            }, 1000);
+            thing.receiveFromThing(new MyTLV(MyTLV.TLVType.PUB,
+                    "[proxy/test]1{name:esp32;temp:25.56;humidity:41.20}".getBytes()).encodedBytesStream);
+            RecordingThing.waitFor(new RecordingThing.Condition() {
+                @Override
+                public boolean isMet() {
+                    return thing.sentFrames.size() == 1;
+                }
+            }, 1000);
+            byte[] ack = thing.sentFrames.get(0);
+            assertEquals(MyTLV.TLVType.PUBACK.ordinal(), ack[0]);
+            assertEquals("{\"name\":\"esp32\",\"temp\":\"25.56\",\"humidity\":\"41.20\"}",
+                    new String(ack, 2, ack.length - 2, "UTF-8"));
+        } finally {
+            broker.shutdown();
+        }
+    }
+}
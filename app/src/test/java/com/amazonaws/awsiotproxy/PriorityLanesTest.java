@@ -0,0 +1,157 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.awsiotproxy.CustomizedMqttEnvelope.Priority;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import org.junit.Test;
+
+import software.amazon.freertos.amazonfreertossdk.AmazonFreeRTOSConstants.MqttConnectionState;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PriorityLanesTest {
+    private final PriorityLanes mLanes = new PriorityLanes()
+            .addTopicRule("alarm/#", Priority.ALARM)
+            .addPayloadRule("\"alarm\"", Priority.ALARM)
+            .addTopicRule("logs/#", Priority.BULK);
+
+    private CustomizedMqttEnvelope envelope(String topic, String payload) {
+        CustomizedMqttEnvelope envelope = CustomizedMqttEnvelope.newPublishEnvelope(topic, AWSIotMqttQos.QOS0, payload.getBytes());
+        envelope.thingId = "thing";
+        mLanes.classify(envelope);
+        return envelope;
+    }
+
+    @Test
+    public void classifiesByTopicAndPayload() {
+        assertEquals(Priority.ALARM, envelope("alarm/smoke", "{}").priority);
+        assertEquals(Priority.ALARM, envelope("proxy/test", "{\"state\":\"alarm\"}").priority);
+        assertEquals(Priority.BULK, envelope("logs/boot", "{}").priority);
+        assertEquals(Priority.NORMAL, envelope("proxy/test", "{\"temp\":25}").priority);
+    }
+
+    @Test
+    public void downlinkQueueServesAlarmFirstAndEvictsLowerLanes() {
+        DownlinkQueue queue = new DownlinkQueue(2, DownlinkQueue.Policy.DROP_NEWEST);
+        queue.offer(envelope("logs/a", "1"));
+        queue.offer(envelope("proxy/test", "2"));
+        assertTrue(queue.offer(envelope("alarm/smoke", "3")));
+        assertFalse(queue.offer(envelope("proxy/test", "4")));
+
+        assertEquals("3", new String(queue.poll().payload));
+        assertEquals("2", new String(queue.poll().payload));
+        assertEquals(0, queue.getDepth());
+        assertEquals(2, queue.getDroppedCount());
+    }
+
+    @Test
+    public void deferredPublishesDrainByLane() throws Exception {
+        final List<String> sent = new CopyOnWriteArrayList<>();
+        MqttRateLimiter limiter = new MqttRateLimiter(new MqttRateLimiter.Sink() {
+            @Override
+            public boolean onAdmitted(CustomizedMqttEnvelope envelope) {
+                sent.add(envelope.topic);
+                return true;
+            }
+        });
+        limiter.setPublishRate(20, 1);
+        assertTrue(limiter.admit(envelope("proxy/first", "1")));
+        assertFalse(limiter.admit(envelope("logs/boot", "2")));
+        assertFalse(limiter.admit(envelope("proxy/test", "3")));
+        assertFalse(limiter.admit(envelope("alarm/smoke", "4")));
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return sent.size() == 3;
+            }
+        }, 1000);
+
+        assertEquals("alarm/smoke", sent.get(0));
+        assertEquals("proxy/test", sent.get(1));
+        assertEquals("logs/boot", sent.get(2));
+    }
+
+    @Test
+    public void uplinkSchedulerSendsAlarmAheadAndTracksSlo() throws Exception {
+        final List<String> published = new CopyOnWriteArrayList<>();
+        final FairUplinkScheduler scheduler = new FairUplinkScheduler(1000, 1000);
+        UplinkStage.Next next = new UplinkStage.Next() {
+            @Override
+            public void publish(CustomizedMqttEnvelope envelope) {
+                mLanes.recordDelivered(envelope, true);
+                published.add(envelope.topic);
+            }
+        };
+        for (int i = 0; i < 20; i++) {
+            scheduler.process(envelope("proxy/test", new String(new char[200]).replace('\0', ' ')), next);
+        }
+        scheduler.process(envelope("alarm/smoke", "{}"), next);
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return published.contains("alarm/smoke");
+            }
+        }, 2000);
+
+        assertTrue(published.indexOf("alarm/smoke") < 5);
+        assertEquals(1, mLanes.getUplinkStats(Priority.ALARM).getCount());
+        assertEquals(0, mLanes.getUplinkStats(Priority.ALARM).getOverSloCount());
+    }
+
+    @Test
+    public void compressedDownlinkIsClassifiedByPayload() throws Exception {
+        InMemoryMqttBroker broker = new InMemoryMqttBroker();
+        CustomizedThing.setPriorityLanes(mLanes);
+        try {
+            final RecordingThing thing = new RecordingThing("thing", broker);
+            thing.setDownlinkCompressor(new PayloadCompressor().addRule(new PayloadCompressor.Rule("#", 0)));
+            thing.connectToThing();
+            thing.connectToIoT();
+            RecordingThing.waitFor(new RecordingThing.Condition() {
+                @Override
+                public boolean isMet() {
+                    return thing.getMqttConnectionState() == MqttConnectionState.MQTT_Connected;
+                }
+            }, 1000);
+            thing.subscribeToIoT("proxy/+", AWSIotMqttQos.QOS0);
+            broker.publish("proxy/down", "{\"state\":\"alarm\",\"zone\":\"kitchen\"}".getBytes());
+            RecordingThing.waitFor(new RecordingThing.Condition() {
+                @Override
+                public boolean isMet() {
+                    return thing.published.size() == 1;
+                }
+            }, 1000);
+
+            assertTrue(PayloadCodec.isCompressed(thing.published.get(0).payload));
+            assertEquals(Priority.ALARM, thing.published.get(0).priority);
+        } finally {
+            CustomizedThing.setPriorityLanes(new PriorityLanes());
+            broker.shutdown();
+        }
+    }
+}
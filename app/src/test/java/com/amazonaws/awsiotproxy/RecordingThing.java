@@ -0,0 +1,82 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * CustomizedThing without a local transport, it records every frame sent to thing.
+ */
+public class RecordingThing extends CustomizedThing {
+    public final List<byte[]> sentFrames = new CopyOnWriteArrayList<>();
+    public final List<CustomizedMqttEnvelope> published = new CopyOnWriteArrayList<>();
+
+    public RecordingThing(String thingId, ProxyMqttClient.Factory mqttClientFactory) {
+        super(thingId, "localhost", null);
+        setMqttClientFactory(mqttClientFactory);
+    }
+
+    @Override
+    public void connectToThing() {
+        setThingConnectionState(ThingConnectionState.Thing_Connected);
+    }
+
+    @Override
+    public void disconnectFromThing() {
+        setThingConnectionState(ThingConnectionState.Thing_Disconnected);
+    }
+
+    @Override
+    protected void publishToThing(CustomizedMqttEnvelope envelope) {
+        published.add(envelope);
+        byte[] frame = encodeForThing(envelope);
+        if (frame != null) {
+            sendDataToThing(frame);
+        }
+    }
+
+    @Override
+    protected void sendDataToThing(byte[] data) {
+        sentFrames.add(data);
+    }
+
+    /**
+     * Feed a frame into the proxy as if it was read from thing.
+     */
+    public void receiveFromThing(byte[] data) {
+        handleEnvelopeFromThing(new MyTLV(data).toCustomizedMqttEnvelope());
+    }
+
+    public static void waitFor(Condition condition, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!condition.isMet()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Timed out");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    public interface Condition {
+        boolean isMet();
+    }
+}
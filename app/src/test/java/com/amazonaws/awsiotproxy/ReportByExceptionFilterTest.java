@@ -0,0 +1,113 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReportByExceptionFilterTest {
+    private final List<CustomizedMqttEnvelope> mPublished = new ArrayList<>();
+    private final UplinkStage.Next mNext = new UplinkStage.Next() {
+        @Override
+        public void publish(CustomizedMqttEnvelope envelope) {
+            mPublished.add(envelope);
+        }
+    };
+
+    private boolean report(ReportByExceptionFilter filter, String topic, String temp) {
+        CustomizedMqttEnvelope envelope = CustomizedMqttEnvelope.newPublishEnvelope(topic, AWSIotMqttQos.QOS0,
+                ("{\"temp\":\"" + temp + "\"}").getBytes());
+        envelope.thingId = "thing";
+        return filter.process(envelope, mNext);
+    }
+
+    @Test
+    public void absoluteDeadBand() {
+        ReportByExceptionFilter filter = new ReportByExceptionFilter()
+                .addRule(new ReportByExceptionFilter.Rule("sensors/+", 0).absolute("temp", 0.5));
+        assertTrue(report(filter, "sensors/a", "20.0"));
+        assertFalse(report(filter, "sensors/a", "20.4"));
+        /* Measured from the last forwarded value, not the last reading */
+        assertTrue(report(filter, "sensors/a", "20.5"));
+        assertFalse(report(filter, "sensors/a", "20.1"));
+        assertEquals(2, filter.getSuppressedCount());
+        /* Non numeric values change meaningfully */
+        assertTrue(report(filter, "sensors/a", "n/a"));
+    }
+
+    @Test
+    public void percentDeadBand() {
+        ReportByExceptionFilter filter = new ReportByExceptionFilter()
+                .addRule(new ReportByExceptionFilter.Rule("sensors/+", 0).percent("temp", 10));
+        assertTrue(report(filter, "sensors/a", "50%"));
+        assertFalse(report(filter, "sensors/a", "54%"));
+        assertTrue(report(filter, "sensors/a", "45%"));
+    }
+
+    @Test
+    public void bothDeadBandsHaveToBeExceeded() {
+        ReportByExceptionFilter filter = new ReportByExceptionFilter()
+                .addRule(new ReportByExceptionFilter.Rule("sensors/+", 0).absolute("temp", 1).percent("temp", 10));
+        assertTrue(report(filter, "sensors/a", "100"));
+        /* Over the absolute dead-band only */
+        assertFalse(report(filter, "sensors/a", "105"));
+        assertTrue(report(filter, "sensors/a", "110"));
+        assertTrue(report(filter, "sensors/b", "5"));
+        /* Over the percent dead-band only */
+        assertFalse(report(filter, "sensors/b", "5.8"));
+        assertTrue(report(filter, "sensors/b", "6"));
+    }
+
+    @Test
+    public void silentTopicGetsHeartbeat() throws Exception {
+        ReportByExceptionFilter filter = new ReportByExceptionFilter()
+                .addRule(new ReportByExceptionFilter.Rule("sensors/+", 30));
+        assertTrue(report(filter, "sensors/a", "20"));
+        assertFalse(report(filter, "sensors/a", "20"));
+        Thread.sleep(40);
+        assertTrue(report(filter, "sensors/a", "20"));
+        assertFalse(report(filter, "sensors/a", "20"));
+    }
+
+    @Test
+    public void leastRecentlyUsedTopicIsForgotten() {
+        ReportByExceptionFilter filter = new ReportByExceptionFilter()
+                .addRule(new ReportByExceptionFilter.Rule("sensors/+", 0));
+        report(filter, "sensors/0", "20");
+        report(filter, "sensors/1", "20");
+        for (int i = 2; i < 257; i++) {
+            report(filter, "sensors/" + i, "20");
+            /* Keeps sensors/1 recently used */
+            assertFalse(report(filter, "sensors/1", "20"));
+        }
+        /* 257 topics seen, sensors/0 was evicted and is forwarded like a new topic */
+        assertFalse(report(filter, "sensors/1", "20"));
+        assertTrue(report(filter, "sensors/0", "20"));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetainedMessageCacheTest {
+
+    @Test
+    public void latestMessagePerTopicMatchesWildcards() {
+        RetainedMessageCache cache = new RetainedMessageCache(8, 60000);
+        cache.put("lamp", "room/1/temp", "20".getBytes());
+        cache.put("lamp", "room/1/temp", "21".getBytes());
+        cache.put("lamp", "room/2/temp", "19".getBytes());
+        cache.put("lamp", "hall/light", "on".getBytes());
+        List<RetainedMessageCache.Message> matches = cache.match("lamp", "room/+/temp");
+        assertEquals(2, matches.size());
+        assertEquals("21", new String(cache.match("lamp", "room/1/temp").get(0).payload));
+        assertEquals(3, cache.match("lamp", "#").size());
+        cache.put("lamp", "hall/light", new byte[0]);
+        assertTrue(cache.match("lamp", "hall/light").isEmpty());
+    }
+
+    @Test
+    public void leastRecentlyUsedTopicIsEvicted() {
+        RetainedMessageCache cache = new RetainedMessageCache(2, 60000);
+        cache.put("lamp", "a", "1".getBytes());
+        cache.put("lamp", "b", "2".getBytes());
+        cache.match("lamp", "a");
+        cache.put("lamp", "c", "3".getBytes());
+        assertEquals(2, cache.getSize());
+        assertTrue(cache.match("lamp", "b").isEmpty());
+        assertEquals(1, cache.match("lamp", "a").size());
+    }
+
+    @Test
+    public void messagesAreOnlyReplayedToThingWhichReceivedThem() {
+        RetainedMessageCache cache = new RetainedMessageCache(8, 60000);
+        cache.put("lamp", "room/1/temp", "20".getBytes());
+        cache.put("fan", "room/1/temp", "21".getBytes());
+        assertTrue(cache.match("door", "#").isEmpty());
+        assertEquals("20", new String(cache.match("lamp", "room/+/temp").get(0).payload));
+        assertEquals(1, cache.match("fan", "#").size());
+        cache.put("fan", "room/1/temp", new byte[0]);
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void expiredMessagesAreNotReplayed() throws Exception {
+        RetainedMessageCache cache = new RetainedMessageCache(8, 20);
+        cache.put("lamp", "a", "1".getBytes());
+        Thread.sleep(40);
+        assertTrue(cache.match("lamp", "a").isEmpty());
+        assertEquals(0, cache.getSize());
+        assertEquals(1, cache.getExpiredCount());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RpcChannelTest {
+    private final RpcChannel mChannel = new RpcChannel(RpcChannel.DEFAULT_TOPIC_PREFIX, 16, 5000, 60000);
+    private final List<CustomizedMqttEnvelope> mForwarded = new ArrayList<>();
+    private final List<String> mResponses = Collections.synchronizedList(new ArrayList<String>());
+    private final UplinkStage.Next mNext = new UplinkStage.Next() {
+        @Override
+        public void publish(CustomizedMqttEnvelope envelope) {
+            mForwarded.add(envelope);
+        }
+    };
+
+    private void register(final String thingId) {
+        mChannel.register(thingId, new RpcChannel.Responder() {
+            @Override
+            public void respond(String topic, byte[] payload) {
+                mResponses.add(thingId + " " + topic + " " + new String(payload));
+            }
+        });
+    }
+
+    private boolean request(String thingId, String method, String payload) {
+        CustomizedMqttEnvelope envelope = CustomizedMqttEnvelope.newPublishEnvelope("rpc/request/" + method,
+                AWSIotMqttQos.QOS1, payload.getBytes());
+        envelope.thingId = thingId;
+        return mChannel.process(envelope, mNext);
+    }
+
+    @Test
+    public void responseIsCachedForOtherThings() {
+        register("a");
+        register("b");
+        assertTrue(request("a", "config", "{\"v\":1}"));
+        assertEquals("rpc/request/config/a/0", mForwarded.get(0).topic);
+        assertEquals("rpc/response/+/a/+", mChannel.getResponseFilter("a"));
+
+        mChannel.onCloudMessage("rpc/response/config/a/0", "{\"rate\":5}".getBytes());
+        assertEquals("a rpc/response/config {\"rate\":5}", mResponses.get(0));
+
+        assertFalse(request("b", "config", "{\"v\":1}"));
+        assertEquals(1, mForwarded.size());
+        assertEquals("b rpc/response/config {\"rate\":5}", mResponses.get(1));
+        assertEquals(1, mChannel.getCacheHitCount());
+
+        /* Another question goes to the cloud */
+        assertTrue(request("b", "config", "{\"v\":2}"));
+        assertEquals(2, mForwarded.size());
+    }
+
+    @Test
+    public void equalRequestsInFlightAreCoalesced() {
+        register("a");
+        register("b");
+        assertTrue(request("a", "time", "{}"));
+        assertFalse(request("b", "time", "{}"));
+        assertEquals(1, mForwarded.size());
+        assertEquals(1, mChannel.getCoalescedCount());
+        mChannel.onCloudMessage("rpc/response/time/a/0", "{\"t\":1600000000}".getBytes());
+        assertEquals(2, mResponses.size());
+        assertTrue(mResponses.contains("b rpc/response/time {\"t\":1600000000}"));
+
+        /* Late duplicate is ignored */
+        mChannel.onCloudMessage("rpc/response/time/a/0", "{\"t\":1600000001}".getBytes());
+        assertEquals(2, mResponses.size());
+    }
+
+    @Test
+    public void uncachedMethodTimesOut() throws Exception {
+        mChannel.addMethod("reboot", 30, 0);
+        register("a");
+        register("b");
+        assertTrue(request("a", "reboot", "{}"));
+        assertTrue(request("b", "reboot", "{}"));
+        assertEquals(2, mForwarded.size());
+        long deadline = System.currentTimeMillis() + 1000;
+        while (mResponses.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(mResponses.contains("a rpc/response/reboot {\"error\":\"timeout\"}"));
+        assertTrue(mResponses.contains("b rpc/response/reboot {\"error\":\"timeout\"}"));
+        assertEquals(2, mChannel.getTimeoutCount());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import software.amazon.freertos.amazonfreertossdk.AmazonFreeRTOSConstants.MqttConnectionState;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TelemetryAggregatorTest {
+    private final List<CustomizedMqttEnvelope> mPublished = new ArrayList<>();
+    private final UplinkStage.Next mNext = new UplinkStage.Next() {
+        @Override
+        public void publish(CustomizedMqttEnvelope envelope) {
+            mPublished.add(envelope);
+        }
+    };
+    private InMemoryMqttBroker mBroker;
+
+    @After
+    public void tearDown() {
+        if (mBroker != null) {
+            mBroker.shutdown();
+        }
+    }
+
+    private boolean add(TelemetryAggregator aggregator, String payload) {
+        return aggregator.process(CustomizedMqttEnvelope.newPublishEnvelope("sensors/temp", AWSIotMqttQos.QOS0,
+                payload.getBytes()), mNext);
+    }
+
+    private JsonObject lastSummary(String field) {
+        CustomizedMqttEnvelope envelope = mPublished.get(mPublished.size() - 1);
+        return new JsonParser().parse(new String(envelope.payload)).getAsJsonObject().getAsJsonObject(field);
+    }
+
+    @Test
+    public void tumblingWindowStartsOverAfterEachSummary() {
+        TelemetryAggregator aggregator = new TelemetryAggregator()
+                .addRule(new TelemetryAggregator.Rule("sensors/+", 60000).publishTo("sensors/summary"));
+        assertFalse(add(aggregator, "{\"temp\":\"1\"}"));
+        assertFalse(add(aggregator, "{\"temp\":\"3\"}"));
+        aggregator.flush();
+        assertEquals(1, mPublished.size());
+        assertEquals("sensors/summary", mPublished.get(0).topic);
+        assertEquals(2, lastSummary("temp").get("count").getAsLong());
+        assertEquals(2.0, lastSummary("temp").get("mean").getAsDouble(), 0.001);
+        add(aggregator, "{\"temp\":\"5\"}");
+        aggregator.flush();
+        assertEquals(1, lastSummary("temp").get("count").getAsLong());
+        assertEquals(5.0, lastSummary("temp").get("min").getAsDouble(), 0.001);
+        /* Empty window publishes nothing */
+        aggregator.flush();
+        assertEquals(2, mPublished.size());
+    }
+
+    @Test
+    public void slidingWindowDropsOldestBucket() {
+        TelemetryAggregator aggregator = new TelemetryAggregator()
+                .addRule(new TelemetryAggregator.Rule("sensors/+", 30000).sliding(10000));
+        for (int i = 1; i <= 3; i++) {
+            add(aggregator, "{\"temp\":\"" + i + "\"}");
+            aggregator.flush();
+            assertEquals(i, lastSummary("temp").get("count").getAsLong());
+        }
+        add(aggregator, "{\"temp\":\"4\"}");
+        aggregator.flush();
+        assertEquals(3, lastSummary("temp").get("count").getAsLong());
+        assertEquals(2.0, lastSummary("temp").get("min").getAsDouble(), 0.001);
+        assertEquals(4.0, lastSummary("temp").get("max").getAsDouble(), 0.001);
+    }
+
+    @Test
+    public void lastIsLatestNumericReading() {
+        TelemetryAggregator aggregator = new TelemetryAggregator()
+                .addRule(new TelemetryAggregator.Rule("sensors/+", 30000).sliding(10000));
+        add(aggregator, "{\"temp\":\"3\"}");
+        aggregator.flush();
+        add(aggregator, "{\"temp\":\"err\"}");
+        aggregator.flush();
+        assertFalse(new String(mPublished.get(1).payload).contains("NaN"));
+        assertEquals(3.0, lastSummary("temp").get("last").getAsDouble(), 0.001);
+    }
+
+    @Test
+    public void readingOutsideNormalRangePassesThrough() {
+        TelemetryAggregator aggregator = new TelemetryAggregator()
+                .addRule(new TelemetryAggregator.Rule("sensors/+", 60000).passthroughOutside("temp", 0, 50));
+        assertFalse(add(aggregator, "{\"temp\":\"20\"}"));
+        assertTrue(add(aggregator, "{\"temp\":\"80\"}"));
+        assertEquals(1, mPublished.size());
+        assertArrayEquals("{\"temp\":\"80\"}".getBytes(), mPublished.get(0).payload);
+        /* Passed through readings still count towards the summary */
+        aggregator.flush();
+        assertEquals(2, lastSummary("temp").get("count").getAsLong());
+    }
+
+    @Test
+    public void aggregatedQos1ReadingIsAcknowledgedOnce() throws Exception {
+        mBroker = new InMemoryMqttBroker();
+        final RecordingThing thing = new RecordingThing("thing", mBroker);
+        TelemetryAggregator aggregator = new TelemetryAggregator()
+                .addRule(new TelemetryAggregator.Rule("sensors/+", 60000));
+        thing.addUplinkStage(aggregator);
+        thing.connectToThing();
+        thing.connectToIoT();
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return thing.getMqttConnectionState() == MqttConnectionState.MQTT_Connected;
+            }
+        }, 1000);
+        thing.receiveFromThing(new MyTLV(MyTLV.TLVType.PUB, "[sensors/temp]1#5{temp:21}".getBytes()).encodedBytesStream);
+        aggregator.flush();
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mBroker.getPublishedCount() == 1;
+            }
+        }, 1000);
+        /* Summary delivery callback has run by now */
+        Thread.sleep(50);
+        assertEquals(1, thing.sentFrames.size());
+        assertArrayEquals(MyTLV.newPubAck(5).encodedBytesStream, thing.sentFrames.get(0));
+    }
+}
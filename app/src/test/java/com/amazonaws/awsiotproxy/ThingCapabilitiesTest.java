@@ -0,0 +1,127 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ThingCapabilitiesTest {
+
+    @After
+    public void tearDown() {
+        CustomizedThing.setCapabilityCache(null);
+    }
+
+    private static byte[] caps(ThingCapabilities capabilities) {
+        return new MyTLV(MyTLV.TLVType.CAPS, capabilities.encode()).encodedBytesStream;
+    }
+
+    @Test
+    public void fastestCommonConfigurationIsChosen() {
+        ThingCapabilities thing = new ThingCapabilities(ThingCapabilities.VERSION_1 | ThingCapabilities.VERSION_2 | 1 << 5, 180,
+                ThingCapabilities.FEATURE_ACK_RANGE | ThingCapabilities.FEATURE_BATCHING | 1 << 7);
+        ThingCapabilities negotiated = ThingCapabilities.PROXY.negotiate(thing);
+        assertEquals(1, negotiated.getVersion());
+        assertEquals(180, negotiated.maxFrameSize);
+        assertTrue(negotiated.has(ThingCapabilities.FEATURE_ACK_RANGE));
+        assertTrue(negotiated.has(ThingCapabilities.FEATURE_BATCHING));
+        assertFalse(negotiated.has(ThingCapabilities.FEATURE_COMPRESSION));
+        assertEquals(thing, ThingCapabilities.decode(caps(thing)));
+        assertEquals(negotiated, ThingCapabilities.unpack(negotiated.pack()));
+    }
+
+    @Test
+    public void handshakeOnConnectIsCachedForReconnect() {
+        CapabilityCache cache = new CapabilityCache(null);
+        CustomizedThing.setCapabilityCache(cache);
+        RecordingThing thing = new RecordingThing("esp32", null);
+        thing.connectToThing();
+        assertEquals(1, thing.sentFrames.size());
+        assertEquals(MyTLV.TLVType.HELLO.ordinal(), thing.sentFrames.get(0)[0]);
+        assertArrayEquals(ThingCapabilities.PROXY.encode(), ThingCapabilities.decode(thing.sentFrames.get(0)).encode());
+        assertEquals(ThingCapabilities.LEGACY, thing.getCapabilities());
+
+        thing.handleFrameFromThing(caps(new ThingCapabilities(ThingCapabilities.VERSION_1, 100,
+                ThingCapabilities.FEATURE_COMPRESSION | ThingCapabilities.FEATURE_ACK_RANGE)));
+        assertEquals(100, thing.getCapabilities().maxFrameSize);
+        assertNotNull(cache.get("esp32"));
+
+        /* A new connection, e.g. after the app restarted, starts on the cached configuration */
+        RecordingThing again = new RecordingThing("esp32", null);
+        again.connectToThing();
+        assertEquals(cache.get("esp32"), again.getCapabilities());
+        assertEquals(MyTLV.TLVType.HELLO.ordinal(), again.sentFrames.get(0)[0]);
+    }
+
+    @Test
+    public void proxyOnlyAdvertisesWhatItImplements() {
+        assertEquals(ThingCapabilities.VERSION_1, ThingCapabilities.PROXY.versions);
+        assertFalse(ThingCapabilities.PROXY.has(ThingCapabilities.FEATURE_NOTIFY));
+    }
+
+    @Test
+    public void downlinkLongerThanNegotiatedFrameIsDropped() {
+        CustomizedThing.setCapabilityCache(new CapabilityCache(null));
+        RecordingThing thing = new RecordingThing("esp32", null);
+        thing.connectToThing();
+        thing.handleFrameFromThing(caps(new ThingCapabilities(ThingCapabilities.VERSION_1, 32, 0)));
+        thing.sentFrames.clear();
+
+        thing.publishToThing(CustomizedMqttEnvelope.newPublishEnvelope("a/b", AWSIotMqttQos.QOS0, new byte[8]));
+        thing.publishToThing(CustomizedMqttEnvelope.newPublishEnvelope("a/b", AWSIotMqttQos.QOS0, new byte[32]));
+        assertEquals(1, thing.sentFrames.size());
+        assertTrue(thing.sentFrames.get(0).length <= 32);
+    }
+
+    @Test
+    public void ackRangesFollowNegotiatedCapabilities() {
+        CustomizedThing.setCapabilityCache(new CapabilityCache(null));
+        RecordingThing thing = new RecordingThing("esp32", null);
+        thing.setAckCoalescingWindow(1000);
+        thing.connectToThing();
+        /* Thing declines ack ranges, coalescing set before is turned off */
+        thing.handleFrameFromThing(caps(new ThingCapabilities(ThingCapabilities.VERSION_1, 255, 0)));
+        thing.sentFrames.clear();
+        thing.sendAckToThing(CustomizedMqttEnvelope.newPublishEnvelope("a/b", AWSIotMqttQos.QOS1, new byte[0]).withMessageId(7));
+        assertArrayEquals(MyTLV.newPubAck(7).encodedBytesStream, thing.sentFrames.get(0));
+
+        thing.handleFrameFromThing(caps(new ThingCapabilities(ThingCapabilities.VERSION_1, 255,
+                ThingCapabilities.FEATURE_ACK_RANGE)));
+        thing.sentFrames.clear();
+        thing.sendAckToThing(CustomizedMqttEnvelope.newPublishEnvelope("a/b", AWSIotMqttQos.QOS1, new byte[0]).withMessageId(8));
+        assertTrue(thing.sentFrames.isEmpty());
+    }
+
+    @Test
+    public void thingsAreNotGreetedWithoutCache() {
+        RecordingThing thing = new RecordingThing("legacy", null);
+        thing.connectToThing();
+        assertTrue(thing.sentFrames.isEmpty());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TimeSeriesBatchTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        int count = 100;
+        long[] timestamps = new long[count];
+        List<Map<String, String>> readings = new ArrayList<>();
+        int jsonBytes = 0;
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = 1600000000000L + i * 5000 + (i % 3 == 0 ? 7 : 0) + (i == 50 ? 100000 : 0);
+            Map<String, String> reading = new LinkedHashMap<>();
+            reading.put("name", "esp32");
+            reading.put("temp", TimeSeriesBatch.format((2556 + i) / 100.0));
+            reading.put("bat", i < 60 ? "98%" : "97%");
+            if (i % 10 == 0) {
+                reading.put("rssi", String.valueOf(-60 - i % 7));
+            }
+            readings.add(reading);
+            jsonBytes += "{\"name\":\"esp32\",\"temp\":\"25.56\",\"bat\":\"98%\"}".length();
+        }
+
+        byte[] batch = TimeSeriesBatch.encode(timestamps, readings);
+        List<TimeSeriesBatch.Reading> decoded = TimeSeriesBatch.decode(batch);
+
+        assertTrue("batch should be much smaller than JSON", batch.length * 4 < jsonBytes);
+        assertEquals(count, decoded.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(timestamps[i], decoded.get(i).timestampMs);
+            assertEquals("esp32", decoded.get(i).fields.get("name"));
+            assertEquals(Double.parseDouble(readings.get(i).get("temp")), decoded.get(i).fields.get("temp"));
+            assertEquals(readings.get(i).get("bat"), decoded.get(i).fields.get("bat"));
+            assertEquals(i % 10 == 0, decoded.get(i).fields.containsKey("rssi"));
+        }
+        assertFalse(decoded.get(1).fields.containsKey("rssi"));
+        assertEquals(-60.0, decoded.get(0).fields.get("rssi"));
+    }
+
+    @Test
+    public void valuesWhichDoNotRoundTripStayText() throws Exception {
+        String[] values = {"25", "-3", "25.56", "007", "1.10", "10f", " 5", "0x1p3", "-0", "1e3", "NaN"};
+        long[] timestamps = new long[values.length];
+        List<Map<String, String>> readings = new ArrayList<>();
+        for (int i = 0; i < values.length; i++) {
+            timestamps[i] = i;
+            Map<String, String> reading = new LinkedHashMap<>();
+            reading.put("v" + i, values[i]);
+            readings.add(reading);
+        }
+        List<TimeSeriesBatch.Reading> decoded = TimeSeriesBatch.decode(TimeSeriesBatch.encode(timestamps, readings));
+        for (int i = 0; i < values.length; i++) {
+            Object value = decoded.get(i).fields.get("v" + i);
+            assertEquals(values[i], value instanceof Double ? TimeSeriesBatch.format((Double) value) : value);
+            assertEquals(i < 3, value instanceof Double);
+        }
+    }
+
+    @Test
+    public void malformedCountsAreRejected() {
+        byte[][] batches = {
+                /* Count larger than the batch */
+                {TimeSeriesBatch.VERSION, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F},
+                /* Count which is negative as a long */
+                {TimeSeriesBatch.VERSION, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01},
+                /* Field name longer than the batch */
+                {TimeSeriesBatch.VERSION, 1, 1, 0x7F, 'a'},
+        };
+        for (byte[] batch : batches) {
+            try {
+                TimeSeriesBatch.decode(batch);
+                fail("Malformed batch must be rejected");
+            } catch (IOException expected) {
+                /* Expected */
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import software.amazon.freertos.amazonfreertossdk.AmazonFreeRTOSConstants.MqttConnectionState;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimeSeriesBatcherTest {
+    private final List<CustomizedMqttEnvelope> mPublished = new CopyOnWriteArrayList<>();
+    private final UplinkStage.Next mNext = new UplinkStage.Next() {
+        @Override
+        public void publish(CustomizedMqttEnvelope envelope) {
+            mPublished.add(envelope);
+        }
+    };
+    private InMemoryMqttBroker mBroker;
+
+    @After
+    public void tearDown() {
+        if (mBroker != null) {
+            mBroker.shutdown();
+        }
+    }
+
+    private static CustomizedMqttEnvelope reading(int temp) {
+        CustomizedMqttEnvelope envelope = CustomizedMqttEnvelope.newPublishEnvelope("sensors/temp", AWSIotMqttQos.QOS1,
+                ("{\"temp\":\"" + temp + "\"}").getBytes());
+        envelope.thingId = "thing";
+        return envelope;
+    }
+
+    @Test
+    public void fullBatchIsPublishedRightAway() throws Exception {
+        TimeSeriesBatcher batcher = new TimeSeriesBatcher(3, 60000).addTopic("sensors/+");
+        assertFalse(batcher.process(reading(1), mNext));
+        assertFalse(batcher.process(reading(2), mNext));
+        assertEquals(0, mPublished.size());
+        assertFalse(batcher.process(reading(3), mNext));
+        assertEquals(1, mPublished.size());
+        assertEquals("sensors/temp" + TimeSeriesBatcher.BATCH_TOPIC_SUFFIX, mPublished.get(0).topic);
+        assertEquals(AWSIotMqttQos.QOS1, mPublished.get(0).qoS);
+        assertEquals(3, TimeSeriesBatch.decode(mPublished.get(0).payload).size());
+        /* Next reading opens a new batch */
+        batcher.process(reading(4), mNext);
+        batcher.flush();
+        assertEquals(1, TimeSeriesBatch.decode(mPublished.get(1).payload).size());
+    }
+
+    @Test
+    public void partialBatchIsPublishedAfterMaxDelay() throws Exception {
+        TimeSeriesBatcher batcher = new TimeSeriesBatcher(100, 30).addTopic("sensors/+");
+        batcher.process(reading(1), mNext);
+        batcher.process(reading(2), mNext);
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mPublished.size() == 1;
+            }
+        }, 1000);
+        assertEquals(2, TimeSeriesBatch.decode(mPublished.get(0).payload).size());
+        /* Timer of a published batch does not fire again */
+        Thread.sleep(60);
+        assertEquals(1, mPublished.size());
+    }
+
+    @Test
+    public void alarmIsNotHeldBack() {
+        TimeSeriesBatcher batcher = new TimeSeriesBatcher(100, 60000).addTopic("sensors/+");
+        CustomizedMqttEnvelope alarm = reading(99);
+        alarm.priority = CustomizedMqttEnvelope.Priority.ALARM;
+        assertTrue(batcher.process(alarm, mNext));
+        assertEquals(1, mPublished.size());
+        assertArrayEquals("{\"temp\":\"99\"}".getBytes(), mPublished.get(0).payload);
+    }
+
+    @Test
+    public void batchDeliverySendsNoExtraAck() throws Exception {
+        mBroker = new InMemoryMqttBroker();
+        final RecordingThing thing = new RecordingThing("thing", mBroker);
+        TimeSeriesBatcher batcher = new TimeSeriesBatcher(2, 60000).addTopic("sensors/+");
+        thing.addUplinkStage(batcher);
+        thing.connectToThing();
+        thing.connectToIoT();
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return thing.getMqttConnectionState() == MqttConnectionState.MQTT_Connected;
+            }
+        }, 1000);
+        thing.receiveFromThing(new MyTLV(MyTLV.TLVType.PUB, "[sensors/temp]1#1{temp:21}".getBytes()).encodedBytesStream);
+        thing.receiveFromThing(new MyTLV(MyTLV.TLVType.PUB, "[sensors/temp]1#2{temp:22}".getBytes()).encodedBytesStream);
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mBroker.getPublishedCount() == 1;
+            }
+        }, 1000);
+        Thread.sleep(50);
+        /* Each reading was acked when batched, the batch itself is not */
+        assertEquals(2, thing.sentFrames.size());
+        assertArrayEquals(MyTLV.newPubAck(1).encodedBytesStream, thing.sentFrames.get(0));
+        assertArrayEquals(MyTLV.newPubAck(2).encodedBytesStream, thing.sentFrames.get(1));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TimeSeriesStoreTest {
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("store").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void ringKeepsLatestReadingsAcrossReopen() {
+        TimeSeriesStore store = new TimeSeriesStore(mDirectory, 64, 4);
+        for (int i = 0; i < 100; i++) {
+            store.append("esp32", "temp", 1000L * i, i);
+        }
+        store.flush();
+
+        TimeSeriesStore reopened = new TimeSeriesStore(mDirectory, 64, 4);
+        List<TimeSeriesStore.Sample> all = reopened.query("esp32", "temp", 0, Long.MAX_VALUE);
+        assertEquals(64, all.size());
+        assertEquals(36000, all.get(0).timestampMs);
+        assertEquals(99.0, all.get(63).value, 0);
+
+        List<TimeSeriesStore.Sample> range = reopened.query("esp32", "temp", 50000, 60000);
+        assertEquals(10, range.size());
+        assertEquals(50.0, range.get(0).value, 0);
+        assertTrue(reopened.query("esp32", "humidity", 0, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void downsampleReducesRangeToBuckets() {
+        TimeSeriesStore store = new TimeSeriesStore(mDirectory, 1024, 4);
+        for (int i = 0; i < 100; i++) {
+            store.append("esp32", "temp", 1000L * i, i % 10);
+        }
+        List<TimeSeriesStore.Bucket> buckets = store.downsample("esp32", "temp", 0, 100000, 10);
+
+        assertEquals(10, buckets.size());
+        assertEquals(20000, buckets.get(2).startMs);
+        assertEquals(0.0, buckets.get(2).min, 0);
+        assertEquals(9.0, buckets.get(2).max, 0);
+        assertEquals(4.5, buckets.get(2).mean, 1e-9);
+        assertEquals(10, buckets.get(2).count);
+    }
+
+    @Test
+    public void downsampleOfEmptyRangeIsEmpty() {
+        TimeSeriesStore store = new TimeSeriesStore(mDirectory, 64, 4);
+        store.append("esp32", "temp", 1000, 1);
+        assertTrue(store.downsample("esp32", "temp", 1000, 1000, 10).isEmpty());
+        assertTrue(store.downsample("esp32", "temp", 2000, 0, 10).isEmpty());
+        try {
+            store.downsample("esp32", "temp", 0, 2000, 0);
+            fail("Zero buckets accepted.");
+        } catch (IllegalArgumentException expected) {
+            /* Expected */
+        }
+    }
+
+    @Test
+    public void stageRecordsNumericFieldsAndPassesEnvelopeOn() throws Exception {
+        TimeSeriesStore store = new TimeSeriesStore(mDirectory, 16, 1);
+        final CustomizedMqttEnvelope[] published = new CustomizedMqttEnvelope[1];
+        CustomizedMqttEnvelope envelope = new MyTLV(new MyTLV(MyTLV.TLVType.PUB,
+                "[proxy/test]0{name:esp32;temp:25.56;bat:98%}".getBytes()).encodedBytesStream).toCustomizedMqttEnvelope();
+        envelope.thingId = "esp32";
+
+        assertTrue(store.process(envelope, new UplinkStage.Next() {
+            @Override
+            public void publish(CustomizedMqttEnvelope envelope) {
+                published[0] = envelope;
+            }
+        }));
+        assertEquals(envelope, published[0]);
+        assertEquals(25.56, store.query("esp32", "temp", 0, Long.MAX_VALUE).get(0).value, 1e-9);
+        /* Only one series allowed, bat did not fit */
+        assertTrue(store.query("esp32", "bat", 0, Long.MAX_VALUE).isEmpty());
+        assertTrue(store.query("esp32", "name", 0, Long.MAX_VALUE).isEmpty());
+    }
+}
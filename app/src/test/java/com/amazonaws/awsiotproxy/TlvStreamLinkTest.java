@@ -0,0 +1,153 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TlvStreamLinkTest {
+    private static final int MAX_WRITE_SIZE = 64;
+    private final List<byte[]> mFrames = new CopyOnWriteArrayList<>();
+    private final AtomicInteger mClosedCount = new AtomicInteger();
+    private final List<Integer> mWriteSizes = new CopyOnWriteArrayList<>();
+    private PipedOutputStream mDeviceOut;
+    private DataInputStream mDeviceIn;
+    private TlvStreamLink mLink;
+
+    @Before
+    public void setUp() throws Exception {
+        /* Both directions of a channel as pipes, the device side is driven by the test */
+        final PipedInputStream linkIn = new PipedInputStream();
+        mDeviceOut = new PipedOutputStream(linkIn);
+        final PipedOutputStream pipeOut = new PipedOutputStream();
+        mDeviceIn = new DataInputStream(new PipedInputStream(pipeOut, 4096));
+        final OutputStream linkOut = new FilterOutputStream(pipeOut) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                mWriteSizes.add(len);
+                out.write(b, off, len);
+            }
+        };
+        mLink = new TlvStreamLink(linkIn, linkOut, new Closeable() {
+            @Override
+            public void close() throws IOException {
+                linkIn.close();
+                linkOut.close();
+            }
+        }, MAX_WRITE_SIZE, new TlvStreamLink.Listener() {
+            @Override
+            public void onFrame(byte[] frame) {
+                mFrames.add(frame);
+            }
+
+            @Override
+            public void onSent() {
+            }
+
+            @Override
+            public void onClosed() {
+                mClosedCount.incrementAndGet();
+            }
+        });
+        mLink.start("test");
+    }
+
+    @After
+    public void tearDown() {
+        mLink.close();
+    }
+
+    private static byte[] frame(String value) {
+        return new MyTLV(MyTLV.TLVType.PUB, value.getBytes()).encodedBytesStream;
+    }
+
+    @Test
+    public void framesAreSplitFromTheStream() throws Exception {
+        byte[] first = frame("[a]0{x:1}");
+        byte[] second = frame("[b]0{y:2}");
+        byte[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        mDeviceOut.write(both, 0, first.length + 1);
+        mDeviceOut.flush();
+        mDeviceOut.write(both, first.length + 1, second.length - 1);
+        mDeviceOut.flush();
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mFrames.size() == 2;
+            }
+        }, 1000);
+        assertArrayEquals(first, mFrames.get(0));
+        assertArrayEquals(second, mFrames.get(1));
+    }
+
+    @Test
+    public void queuedFramesArePackedWithoutSplittingAny() throws Exception {
+        byte[] frame = frame("[topic]0{value:12345}");
+        int count = 10;
+        for (int i = 0; i < count; i++) {
+            mLink.send(frame);
+        }
+        byte[] received = new byte[frame.length * count];
+        mDeviceIn.readFully(received);
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(frame, Arrays.copyOfRange(received, i * frame.length, (i + 1) * frame.length));
+        }
+        for (int size : mWriteSizes) {
+            assertTrue(size <= MAX_WRITE_SIZE);
+            assertEquals(0, size % frame.length);
+        }
+        assertEquals(0, mLink.getPendingCount());
+    }
+
+    @Test
+    public void malformedStreamClosesLinkOnce() throws Exception {
+        mDeviceOut.write(new byte[]{(byte) MyTLV.TLVType.PUB.ordinal(), 1});
+        mDeviceOut.flush();
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return mLink.isClosed();
+            }
+        }, 1000);
+        mLink.close();
+        assertEquals(1, mClosedCount.get());
+        assertFalse(mLink.send(frame("[a]0{x:1}")));
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ *
+ *  * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  * SPDX-License-Identifier: MIT-0
+ *  *
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ *  * software and associated documentation files (the "Software"), to deal in the Software
+ *  * without restriction, including without limitation the rights to use, copy, modify,
+ *  * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ *  * permit persons to whom the Software is furnished to do so.
+ *  *
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ *  * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *  * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package com.amazonaws.awsiotproxy;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import software.amazon.freertos.amazonfreertossdk.AmazonFreeRTOSConstants.MqttConnectionState;
+
+import static org.junit.Assert.assertEquals;
+
+public class TrafficReplayerTest {
+
+    @Test
+    public void replaysFramesFromThingOnly() throws Exception {
+        File captureFile = File.createTempFile("traffic", ".cap");
+        captureFile.deleteOnExit();
+        TrafficRecorder recorder = new TrafficRecorder(captureFile);
+        byte[] pub = new MyTLV(MyTLV.TLVType.PUB, "[proxy/test]0{temp:25.56}".getBytes()).encodedBytesStream;
+        recorder.record("thing", TrafficRecorder.Direction.FROM_THING, pub);
+        recorder.record("thing", TrafficRecorder.Direction.TO_THING, MyTLV.newPubAck(1).encodedBytesStream);
+        recorder.record("other", TrafficRecorder.Direction.FROM_THING, pub);
+        recorder.record("thing", TrafficRecorder.Direction.FROM_THING, pub);
+        recorder.close();
+
+        InMemoryMqttBroker broker = new InMemoryMqttBroker();
+        final RecordingThing thing = new RecordingThing("thing", broker);
+        thing.connectToIoT();
+        RecordingThing.waitFor(new RecordingThing.Condition() {
+            @Override
+            public boolean isMet() {
+                return thing.getMqttConnectionState() == MqttConnectionState.MQTT_Connected;
+            }
+        }, 1000);
+        Map<String, CustomizedThing> things = new HashMap<>();
+        things.put("thing", thing);
+
+        TrafficReplayer.Result result = new TrafficReplayer(captureFile).replay(things, TrafficReplayer.MAX_SPEED);
+
+        assertEquals(2, result.frames);
+        assertEquals(1, result.skippedFrames);
+        assertEquals(2, broker.getPublishedCount());
+        broker.shutdown();
+    }
+}